@@ -0,0 +1,287 @@
+package org.monarch.sim;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+
+/**
+ * This class finds the least common subsumer (LCS) of two nodes in the
+ * database, for traversals which don't have a snapshot to walk.
+ *
+ * The ancestors of the second node are expanded best first, from a heap keyed
+ * by IC. When IC never increases going up, the first ancestor of the first
+ * node to come off the heap has the highest IC of any common ancestor. Nodes
+ * with the same IC are all checked before stopping, and the smallest id wins,
+ * so cycles and ties give the same answer every time. Otherwise every ancestor
+ * of the second node is checked.
+ *
+ * For comparing two collections of nodes, getMatrix() finds each node's
+ * ancestors only once. The ancestors of each node in the second collection are
+ * sorted by IC, and each pair's MICA is the first of them above the node from
+ * the first collection.
+ *
+ * Subclasses decide which edges lead up and where IC comes from, and may
+ * find the ancestor sets for getMatrix() some faster way.
+ */
+public abstract class AncestorSearch {
+
+	// Shared by every search on a thread, so searches are cheap to create.
+	private static final ThreadLocal<ClosureEngine.Closure []> workspaces = new ThreadLocal<ClosureEngine.Closure []>() {
+		@Override
+		protected ClosureEngine.Closure [] initialValue() {
+			return new ClosureEngine.Closure [] {
+				new ClosureEngine.Closure(1024), new ClosureEngine.Closure(1024)
+			};
+		}
+	};
+
+	private static final ThreadLocal<IdHeap> heaps = new ThreadLocal<IdHeap>() {
+		@Override
+		protected IdHeap initialValue() {
+			return new IdHeap(64);
+		}
+	};
+
+	protected abstract Iterable<Node> getParents(Node n);
+
+	protected abstract double getIC(Node n);
+
+	/**
+	 * Whether a node may be returned as an LCS. Nodes which can't are still
+	 * searched through.
+	 *
+	 * @param n	The node to check
+	 */
+	protected boolean isCandidate(Node n) {
+		return true;
+	}
+
+	/**
+	 * Whether IC never increases going up the edges getParents() follows,
+	 * which holds when the scores were counted along the same edges.
+	 */
+	protected boolean isMonotone() {
+		return true;
+	}
+
+	/**
+	 * Finds the common ancestor of two nodes with the highest IC.
+	 *
+	 * @param first		The first node
+	 * @param second	The second node
+	 * @return			The LCS, or null if the nodes have no common ancestor
+	 */
+	public Node findLCS(Node first, Node second) {
+		GraphDatabaseService db = first.getGraphDatabase();
+
+		// Mark everything above the first node.
+		ClosureEngine.Closure firstAncestors = fillAncestors(first, workspaces.get()[0]);
+
+		ClosureEngine.Closure visited = workspaces.get()[1];
+		visited.clear(0);
+		IdHeap heap = heaps.get();
+		heap.clear();
+		heap.push(ClosureEngine.getIndex(second), getIC(second));
+
+		boolean monotone = isMonotone();
+		Node lcs = null;
+		double lcsIC = 0;
+		while (!heap.isEmpty())
+		{
+			// Once we have an LCS, only ties are left to check.
+			if (monotone && lcs != null && heap.peekKey() < lcsIC)
+			{
+				break;
+			}
+
+			double ic = heap.peekKey();
+			int next = heap.pop();
+			if (!visited.add(next))
+			{
+				continue;
+			}
+
+			Node nextNode = db.getNodeById(next);
+			if (firstAncestors.contains(next) && isCandidate(nextNode)
+					&& (lcs == null || ic > lcsIC || (ic == lcsIC && next < lcs.getId())))
+			{
+				lcs = nextNode;
+				lcsIC = ic;
+			}
+
+			for (Node parent : getParents(nextNode))
+			{
+				if (!visited.contains(ClosureEngine.getIndex(parent)))
+				{
+					heap.push(ClosureEngine.getIndex(parent), getIC(parent));
+				}
+			}
+		}
+
+		return lcs;
+	}
+
+	// Fills a closure with the Neo4j ids of everything above a node (inclusive).
+	private ClosureEngine.Closure fillAncestors(Node n, ClosureEngine.Closure ancestors) {
+		GraphDatabaseService db = n.getGraphDatabase();
+		ancestors.clear(0);
+		ancestors.add(ClosureEngine.getIndex(n));
+		for (int head = 0; head < ancestors.size(); head++)
+		{
+			for (Node parent : getParents(db.getNodeById(ancestors.get(head))))
+			{
+				ancestors.add(ClosureEngine.getIndex(parent));
+			}
+		}
+		return ancestors;
+	}
+
+	/**
+	 * Finds everything above a node (inclusive) for getMatrix(), as ids which
+	 * getNode() turns back into nodes. By default these are Neo4j ids, found
+	 * by walking getParents(). The closure is only read until the next call on
+	 * the same thread.
+	 *
+	 * @param n	The node to start from
+	 */
+	protected ClosureEngine.Closure getAncestors(Node n) {
+		return fillAncestors(n, workspaces.get()[0]);
+	}
+
+	/**
+	 * Finds the node with an id from getAncestors().
+	 *
+	 * @param db	The database the node is in
+	 * @param id	The id of the node
+	 */
+	protected Node getNode(GraphDatabaseService db, int id) {
+		return db.getNodeById(id);
+	}
+
+	/**
+	 * Finds the MICA of every pair of nodes from two collections.
+	 *
+	 * @param firstNodes	The nodes for the rows of the matrix
+	 * @param secondNodes	The nodes for the columns of the matrix
+	 * @param pool			The pool to fill rows on, or null to fill them serially
+	 */
+	public ICMatrix getMatrix(Collection<Node> firstNodes, Collection<Node> secondNodes, ForkJoinPool pool) {
+		ICMatrix matrix = new ICMatrix(new ArrayList<>(firstNodes), new ArrayList<>(secondNodes));
+		int [][] candidates = new int [matrix.getColumns().size()][];
+		double [][] scores = new double [matrix.getColumns().size()][];
+
+		if (pool != null)
+		{
+			pool.invoke(new MatrixTask(matrix, candidates, scores, true, 0, candidates.length));
+			pool.invoke(new MatrixTask(matrix, candidates, scores, false, 0, matrix.getRows().size()));
+		}
+		else
+		{
+			for (int column = 0; column < candidates.length; column++)
+			{
+				sortColumn(matrix, candidates, scores, column);
+			}
+			for (int row = 0; row < matrix.getRows().size(); row++)
+			{
+				fillRow(matrix, candidates, scores, row);
+			}
+		}
+		return matrix;
+	}
+
+	// Lists the candidates above a column's node from the highest IC down.
+	private void sortColumn(ICMatrix matrix, int [][] candidates, double [][] scores, int column) {
+		Node n = matrix.getColumns().get(column);
+		GraphDatabaseService db = n.getGraphDatabase();
+		ClosureEngine.Closure ancestors = getAncestors(n);
+		IdHeap heap = heaps.get();
+		heap.clear();
+		for (int i = 0; i < ancestors.size(); i++)
+		{
+			Node ancestor = getNode(db, ancestors.get(i));
+			if (isCandidate(ancestor))
+			{
+				heap.push(ancestors.get(i), getIC(ancestor));
+			}
+		}
+
+		// Ties come off the heap smallest id first, as in findLCS().
+		candidates[column] = new int [heap.size()];
+		scores[column] = new double [heap.size()];
+		for (int i = 0; !heap.isEmpty(); i++)
+		{
+			scores[column][i] = heap.peekKey();
+			candidates[column][i] = heap.pop();
+		}
+	}
+
+	private void fillRow(ICMatrix matrix, int [][] candidates, double [][] scores, int row) {
+		Node n = matrix.getRows().get(row);
+		GraphDatabaseService db = n.getGraphDatabase();
+		ClosureEngine.Closure ancestors = getAncestors(n);
+		for (int column = 0; column < candidates.length; column++)
+		{
+			for (int i = 0; i < candidates[column].length; i++)
+			{
+				if (ancestors.contains(candidates[column][i]))
+				{
+					matrix.micas[row][column] = getNode(db, candidates[column][i]);
+					matrix.ic[row][column] = scores[column][i];
+					break;
+				}
+			}
+		}
+	}
+
+	private class MatrixTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private ICMatrix matrix;
+		private int [][] candidates;
+		private double [][] scores;
+		private boolean columns;
+		private int from;
+		private int to;
+
+		public MatrixTask(ICMatrix matrix, int [][] candidates, double [][] scores,
+				boolean columns, int from, int to) {
+			this.matrix = matrix;
+			this.candidates = candidates;
+			this.scores = scores;
+			this.columns = columns;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			// Each row or column is a whole closure, so split down to single ones.
+			if (to - from > 1)
+			{
+				int middle = (from + to) >>> 1;
+				invokeAll(new MatrixTask(matrix, candidates, scores, columns, from, middle),
+						new MatrixTask(matrix, candidates, scores, columns, middle, to));
+				return;
+			}
+
+			for (int i = from; i < to; i++)
+			{
+				if (columns)
+				{
+					sortColumn(matrix, candidates, scores, i);
+				}
+				else
+				{
+					fillRow(matrix, candidates, scores, i);
+				}
+			}
+		}
+
+	}
+
+}
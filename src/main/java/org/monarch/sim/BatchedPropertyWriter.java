@@ -0,0 +1,233 @@
+package org.monarch.sim;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * This class collects node property writes in memory and commits them to the
+ * database in large transactions, rather than one transaction per write.
+ *
+ * Increments to int properties are merged per node as they arrive, so a node
+ * incremented many times before a flush costs a single write. Writes are not
+ * visible in the database until they are flushed, and each flush commits all
+ * of them in one transaction. Writes queued together between flushes are
+ * committed or lost together, so a caller which only flushes at consistent
+ * points never leaves half its work behind.
+ */
+public class BatchedPropertyWriter {
+
+	private static final Logger logger = Logger.getLogger(BatchedPropertyWriter.class.getName());
+
+	/**
+	 * The number of pending writes flushIfFull() waits for unless told otherwise.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 50000;
+
+	private final GraphDatabaseService db;
+	private final int batchSize;
+
+	// The pending increments for each property.
+	private final Map<String, LongIntMap> increments = new LinkedHashMap<>();
+	private int incrementCount = 0;
+
+	// The pending plain writes, in order, with null values for removals.
+	private long [] setIds = new long [16];
+	private String [] setKeys = new String [16];
+	private Object [] setValues = new Object [16];
+	private int setCount = 0;
+
+	private long written = 0;
+
+	public BatchedPropertyWriter(GraphDatabaseService db) {
+		this(db, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Sets up a writer with nothing pending.
+	 *
+	 * @param db		The database to write to
+	 * @param batchSize	The number of pending writes flushIfFull() waits for
+	 */
+	public BatchedPropertyWriter(GraphDatabaseService db, int batchSize) {
+		if (batchSize < 1)
+		{
+			throw new IllegalArgumentException("The batch size must be positive, not " + batchSize);
+		}
+		this.db = db;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Queues an increment to an int property, which counts as 0 if unset.
+	 * A property stored as another kind of number is read as an int, and
+	 * written back as one.
+	 *
+	 * @param nodeId	The id of the node to write to
+	 * @param key		The property
+	 * @param delta		The amount to add
+	 */
+	public void increment(long nodeId, String key, int delta) {
+		checkNodeId(nodeId);
+		LongIntMap deltas = increments.get(key);
+		if (deltas == null)
+		{
+			deltas = new LongIntMap();
+			increments.put(key, deltas);
+		}
+		int before = deltas.size();
+		deltas.add(nodeId, delta);
+		incrementCount += deltas.size() - before;
+	}
+
+	/**
+	 * Queues a property write.
+	 *
+	 * @param nodeId	The id of the node to write to
+	 * @param key		The property
+	 * @param value		The value, which must be a valid property value
+	 */
+	public void setProperty(long nodeId, String key, Object value) {
+		if (value == null)
+		{
+			throw new IllegalArgumentException("Property values must not be null");
+		}
+		queue(nodeId, key, value);
+	}
+
+	private void queue(long nodeId, String key, Object value) {
+		checkNodeId(nodeId);
+		if (setCount == setIds.length)
+		{
+			setIds = Arrays.copyOf(setIds, 2 * setCount);
+			setKeys = Arrays.copyOf(setKeys, 2 * setCount);
+			setValues = Arrays.copyOf(setValues, 2 * setCount);
+		}
+		setIds[setCount] = nodeId;
+		setKeys[setCount] = key;
+		setValues[setCount] = value;
+		setCount++;
+	}
+
+	private static void checkNodeId(long nodeId) {
+		if (nodeId < 0)
+		{
+			throw new IllegalArgumentException("Node ids must not be negative, not " + nodeId);
+		}
+	}
+
+	/**
+	 * Queues the removal of a property, which may not be set.
+	 *
+	 * @param nodeId	The id of the node to remove from
+	 * @param key		The property
+	 */
+	public void removeProperty(long nodeId, String key) {
+		queue(nodeId, key, null);
+	}
+
+	/**
+	 * The number of writes waiting to be flushed.
+	 */
+	public int getPendingCount() {
+		return incrementCount + setCount;
+	}
+
+	/**
+	 * The number of writes flushed so far.
+	 */
+	public long getWrittenCount() {
+		return written;
+	}
+
+	/**
+	 * Flushes if a batch's worth of writes is pending. Callers should only
+	 * call this where the pending writes make sense together.
+	 */
+	public void flushIfFull() {
+		if (getPendingCount() >= batchSize)
+		{
+			flush();
+		}
+	}
+
+	// Reads the count an increment adds to. Other writers may have stored it
+	// as some other kind of number.
+	private static int getCount(Node n, String key) {
+		if (!n.hasProperty(key))
+		{
+			return 0;
+		}
+		Object value = n.getProperty(key);
+		if (!(value instanceof Number))
+		{
+			throw new IllegalStateException("Can't increment " + key + " on node " + n.getId()
+					+ ", which holds " + value.getClass().getSimpleName() + " " + value);
+		}
+		return ((Number) value).intValue();
+	}
+
+	/**
+	 * Commits every pending write in one transaction. If the transaction
+	 * fails, none of the writes are made, and they stay pending.
+	 * Increments are written before plain writes.
+	 */
+	public void flush() {
+		int pending = getPendingCount();
+		if (pending == 0)
+		{
+			return;
+		}
+
+		Transaction tx = db.beginTx();
+		try
+		{
+			for (Map.Entry<String, LongIntMap> entry : increments.entrySet())
+			{
+				String key = entry.getKey();
+				LongIntMap deltas = entry.getValue();
+				for (int slot = 0; slot < deltas.getCapacity(); slot++)
+				{
+					long nodeId = deltas.getKey(slot);
+					if (nodeId == -1)
+					{
+						continue;
+					}
+					Node n = db.getNodeById(nodeId);
+					n.setProperty(key, getCount(n, key) + deltas.getValue(slot));
+				}
+			}
+			for (int i = 0; i < setCount; i++)
+			{
+				Node n = db.getNodeById(setIds[i]);
+				if (setValues[i] == null)
+				{
+					n.removeProperty(setKeys[i]);
+				}
+				else
+				{
+					n.setProperty(setKeys[i], setValues[i]);
+				}
+			}
+			tx.success();
+		}
+		finally
+		{
+			tx.finish();
+		}
+
+		increments.clear();
+		incrementCount = 0;
+		Arrays.fill(setKeys, 0, setCount, null);
+		Arrays.fill(setValues, 0, setCount, null);
+		setCount = 0;
+		written += pending;
+		logger.fine("Wrote " + pending + " properties, " + written + " in all");
+	}
+
+}
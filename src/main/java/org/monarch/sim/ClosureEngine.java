@@ -0,0 +1,341 @@
+package org.monarch.sim;
+
+import java.util.Arrays;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * This class finds ancestor and descendant closures, and shortest paths, in a
+ * graph snapshot without allocating.
+ *
+ * Each thread keeps a few reusable closures. A closure marks the nodes it
+ * holds by stamping them with the current epoch, so clearing it is just a
+ * matter of moving to the next epoch. The closure's id buffer doubles as the
+ * work queue for the breadth first search which fills it.
+ *
+ * A closure returned by this class is only valid until the same thread asks
+ * for another closure in the same slot.
+ */
+public class ClosureEngine {
+
+	/**
+	 * The number of closures each thread may hold at once.
+	 */
+	public static final int SLOTS = 2;
+
+	private final GraphSnapshot view;
+	private final ThreadLocal<Closure []> workspaces = new ThreadLocal<Closure []>() {
+		@Override
+		protected Closure [] initialValue() {
+			Closure [] closures = new Closure [SLOTS];
+			for (int i = 0; i < SLOTS; i++)
+			{
+				closures[i] = new Closure(view.size());
+			}
+			return closures;
+		}
+	};
+
+	/**
+	 * Constructs an engine to find closures in a snapshot.
+	 *
+	 * @param view	The snapshot to walk, already restricted to the relevant edges
+	 */
+	public ClosureEngine(GraphSnapshot view) {
+		this.view = view;
+	}
+
+	public GraphSnapshot getView() {
+		return view;
+	}
+
+	/**
+	 * Finds the index of a node for closures which hold Neo4j ids rather than
+	 * dense ids, as searches without a snapshot do.
+	 *
+	 * @param n	The node
+	 * @throws IllegalArgumentException if the node's id doesn't fit in an int
+	 */
+	public static int getIndex(Node n) {
+		long id = n.getId();
+		if (id < 0 || id > Integer.MAX_VALUE)
+		{
+			throw new IllegalArgumentException("Node id " + id + " is too large to index");
+		}
+		return (int) id;
+	}
+
+	/**
+	 * Finds all nodes anywhere above a given node (inclusive).
+	 *
+	 * @param id	The dense id of the node
+	 * @param slot	Which of this thread's closures to fill
+	 */
+	public Closure getAncestors(int id, int slot) {
+		return fill(id, view.parentOffsets, view.parents, workspaces.get()[slot]);
+	}
+
+	/**
+	 * Finds all nodes anywhere below a given node (inclusive).
+	 *
+	 * @param id	The dense id of the node
+	 * @param slot	Which of this thread's closures to fill
+	 */
+	public Closure getDescendants(int id, int slot) {
+		return fill(id, view.childOffsets, view.children, workspaces.get()[slot]);
+	}
+
+	/**
+	 * Empties one of this thread's closures, for callers filling it themselves.
+	 *
+	 * @param slot	Which of this thread's closures to clear
+	 */
+	public Closure getEmptyClosure(int slot) {
+		Closure closure = workspaces.get()[slot];
+		closure.clear(view.size());
+		return closure;
+	}
+
+	/**
+	 * Finds a shortest path up from one node to another.
+	 * The search runs up from the first node and down from the second at the
+	 * same time, a level at a time from whichever side has the smaller frontier.
+	 * This uses both of the thread's closures.
+	 *
+	 * @param first		The dense id of the lower node
+	 * @param second	The dense id of the upper node
+	 * @return			The dense ids along the path, or null if there isn't one
+	 */
+	public int [] getPath(int first, int second) {
+		Closure up = workspaces.get()[0];
+		Closure down = workspaces.get()[1];
+		up.clear(view.size());
+		down.clear(view.size());
+		up.add(first, first);
+		down.add(second, second);
+
+		int meeting = first == second ? first : -1;
+		int upHead = 0;
+		int downHead = 0;
+		while (meeting < 0 && upHead < up.size && downHead < down.size)
+		{
+			if (up.size - upHead <= down.size - downHead)
+			{
+				int levelEnd = up.size;
+				while (meeting < 0 && upHead < levelEnd)
+				{
+					meeting = expand(up.ids[upHead++], view.parentOffsets, view.parents, up, down);
+				}
+			}
+			else
+			{
+				int levelEnd = down.size;
+				while (meeting < 0 && downHead < levelEnd)
+				{
+					meeting = expand(down.ids[downHead++], view.childOffsets, view.children, down, up);
+				}
+			}
+		}
+
+		return meeting < 0 ? null : joinPath(up, down, meeting);
+	}
+
+	// Adds the neighbors of a node to one side of the search, returning the
+	// first one the other side has already reached, or -1.
+	private static int expand(int next, int [] offsets, int [] targets, Closure side, Closure other) {
+		for (int edge = offsets[next]; edge < offsets[next + 1]; edge++)
+		{
+			int target = targets[edge];
+			if (side.add(target, next) && other.contains(target))
+			{
+				return target;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Rebuilds a path from the links of a search up from its start and a search
+	 * down from its end.
+	 * Each search starts with an id linked to itself.
+	 *
+	 * @param up		The closure searched up from the start
+	 * @param down		The closure searched down from the end
+	 * @param meeting	An id in both closures
+	 */
+	static int [] joinPath(Closure up, Closure down, int meeting) {
+		int length = 1;
+		for (int id = meeting; up.getLink(id) != id; id = up.getLink(id))
+		{
+			length++;
+		}
+		int meetingIndex = length - 1;
+		for (int id = meeting; down.getLink(id) != id; id = down.getLink(id))
+		{
+			length++;
+		}
+
+		int [] path = new int [length];
+		int index = meetingIndex;
+		path[index] = meeting;
+		for (int id = meeting; up.getLink(id) != id; id = up.getLink(id))
+		{
+			path[--index] = up.getLink(id);
+		}
+		index = meetingIndex;
+		for (int id = meeting; down.getLink(id) != id; id = down.getLink(id))
+		{
+			path[++index] = down.getLink(id);
+		}
+		return path;
+	}
+
+	private Closure fill(int id, int [] offsets, int [] targets, Closure closure) {
+		closure.clear(view.size());
+		closure.add(id);
+
+		// Expand the closure in the order nodes were added.
+		for (int head = 0; head < closure.size; head++)
+		{
+			int next = closure.ids[head];
+			for (int edge = offsets[next]; edge < offsets[next + 1]; edge++)
+			{
+				closure.add(targets[edge]);
+			}
+		}
+
+		return closure;
+	}
+
+	/**
+	 * A reusable set of dense ids.
+	 * Membership is checked against an epoch stamp, and the members are kept
+	 * in insertion order in a primitive buffer.
+	 * Each member may also be linked to another id, such as the node it was
+	 * reached from.
+	 */
+	public static class Closure {
+
+		private int [] stamps;
+		private int epoch = 0;
+		private int [] ids;
+		private int size = 0;
+
+		// Only allocated once something is linked.
+		private int [] links;
+
+		public Closure(int capacity) {
+			stamps = new int [capacity];
+			ids = new int [capacity];
+		}
+
+		/**
+		 * Empties the closure, making room for ids below the given capacity.
+		 *
+		 * @param capacity	One more than the largest id we expect to add
+		 */
+		public void clear(int capacity) {
+			if (capacity > stamps.length)
+			{
+				stamps = Arrays.copyOf(stamps, Math.max(capacity, 2 * stamps.length));
+			}
+
+			// When the epoch wraps around, old stamps could look current.
+			if (epoch == Integer.MAX_VALUE)
+			{
+				Arrays.fill(stamps, 0);
+				epoch = 0;
+			}
+			epoch++;
+			size = 0;
+		}
+
+		/**
+		 * Adds an id to the closure.
+		 *
+		 * @param id	The id to add
+		 * @return		Whether the id was new
+		 */
+		public boolean add(int id) {
+			if (id >= stamps.length)
+			{
+				stamps = Arrays.copyOf(stamps, Math.max(id + 1, 2 * stamps.length));
+			}
+			if (stamps[id] == epoch)
+			{
+				return false;
+			}
+
+			stamps[id] = epoch;
+			if (size == ids.length)
+			{
+				ids = Arrays.copyOf(ids, Math.max(16, 2 * size));
+			}
+			ids[size++] = id;
+			return true;
+		}
+
+		/**
+		 * Adds an id to the closure, linking it to another id if it was new.
+		 *
+		 * @param id	The id to add
+		 * @param link	The id to link it to
+		 * @return		Whether the id was new
+		 */
+		public boolean add(int id, int link) {
+			if (!add(id))
+			{
+				return false;
+			}
+			if (links == null || links.length < stamps.length)
+			{
+				links = links == null ? new int [stamps.length] : Arrays.copyOf(links, stamps.length);
+			}
+			links[id] = link;
+			return true;
+		}
+
+		/**
+		 * Finds the id a member was linked to when it was added.
+		 *
+		 * @param id	A member added with a link
+		 */
+		public int getLink(int id) {
+			return links[id];
+		}
+
+		public boolean contains(int id) {
+			return id < stamps.length && stamps[id] == epoch;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * One more than the largest id the closure has room for without growing.
+		 */
+		public int getCapacity() {
+			return stamps.length;
+		}
+
+		/**
+		 * Finds the id added in a given position.
+		 *
+		 * @param index	The position, starting from 0
+		 */
+		public int get(int index) {
+			return ids[index];
+		}
+
+		/**
+		 * Exposes the buffer holding the ids.
+		 * Only the first size() entries are meaningful.
+		 */
+		public int [] ids() {
+			return ids;
+		}
+
+	}
+
+}
@@ -0,0 +1,284 @@
+package org.monarch.sim;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class stores the ancestors of each node of a graph snapshot as a sorted
+ * array of dense ids, so repeated closure queries become array lookups and
+ * common ancestors become intersections.
+ *
+ * The index is built over the condensation of the graph, one level at a time
+ * from the top, where a component's level is the length of the longest path up
+ * to a root. Each component's ancestors are its members plus the union of its
+ * parents' ancestors, and every member of a component shares one array.
+ * Components on the same level never depend on each other, so a level may be
+ * split across a fork-join pool.
+ *
+ * The arrays are bounded by a byte budget. Building stops at the first array
+ * which doesn't fit, so the nodes left out are the deepest ones, and callers
+ * must find their closures some other way. When a level is split across a
+ * pool, which of its components made it in may vary from run to run.
+ */
+public class ClosureIndex {
+
+	// Levels smaller than this are handled by a single task.
+	private static final int TASK_SIZE = 256;
+
+	// The rough cost of an array beyond its elements.
+	private static final int ARRAY_OVERHEAD = 16;
+
+	private final GraphSnapshot view;
+	private final Condensation dag;
+
+	// The ancestors of component c, or null if they didn't fit.
+	private final int [][] ancestors;
+	private final long sizeInBytes;
+
+	private ClosureIndex(GraphSnapshot view, Condensation dag, int [][] ancestors, long sizeInBytes) {
+		this.view = view;
+		this.dag = dag;
+		this.ancestors = ancestors;
+		this.sizeInBytes = sizeInBytes;
+	}
+
+	/**
+	 * Finds the ancestors of as many nodes as fit in a budget.
+	 *
+	 * @param view		The snapshot to index, restricted to the relevant edges
+	 * @param budget	The number of bytes the arrays may take up
+	 * @param pool		The pool to build each level on, or null to build serially
+	 */
+	public static ClosureIndex build(GraphSnapshot view, long budget, ForkJoinPool pool) {
+		Condensation dag = Condensation.of(view);
+		int size = dag.size();
+		int [][] ancestors = new int [size][];
+
+		// Find each component's level. Components come after everything above them.
+		int [] levels = new int [size];
+		int levelCount = 0;
+		for (int next = 0; next < size; next++)
+		{
+			for (int edge = dag.parentOffsets[next]; edge < dag.parentOffsets[next + 1]; edge++)
+			{
+				levels[next] = Math.max(levels[next], levels[dag.parents[edge]] + 1);
+			}
+			levelCount = Math.max(levelCount, levels[next] + 1);
+		}
+
+		int [] levelOffsets = new int [levelCount + 1];
+		for (int next = 0; next < size; next++)
+		{
+			levelOffsets[levels[next] + 1]++;
+		}
+		for (int level = 1; level <= levelCount; level++)
+		{
+			levelOffsets[level] += levelOffsets[level - 1];
+		}
+		int [] byLevel = new int [size];
+		int [] slots = Arrays.copyOf(levelOffsets, levelCount);
+		for (int next = 0; next < size; next++)
+		{
+			byLevel[slots[levels[next]]++] = next;
+		}
+
+		Budget used = new Budget(budget);
+		for (int level = 0; level < levelCount && !used.isFull(); level++)
+		{
+			if (pool != null)
+			{
+				pool.invoke(new LevelTask(dag, byLevel, levelOffsets[level], levelOffsets[level + 1], ancestors, used));
+			}
+			else
+			{
+				fill(dag, byLevel, levelOffsets[level], levelOffsets[level + 1], ancestors, used);
+			}
+		}
+
+		return new ClosureIndex(view, dag, ancestors, used.get());
+	}
+
+	// Counts the bytes taken so far, and notes when something didn't fit.
+	private static class Budget {
+
+		private final long limit;
+		private final AtomicLong used = new AtomicLong();
+		private volatile boolean full = false;
+
+		public Budget(long limit) {
+			this.limit = limit;
+		}
+
+		// Takes room for an array, unless that would go over the limit.
+		public boolean take(int [] array) {
+			long bytes = ARRAY_OVERHEAD + 4L * array.length;
+			if (used.addAndGet(bytes) > limit)
+			{
+				used.addAndGet(-bytes);
+				full = true;
+				return false;
+			}
+			return true;
+		}
+
+		public boolean isFull() {
+			return full;
+		}
+
+		public long get() {
+			return used.get();
+		}
+
+	}
+
+	// Stores the ancestors of some components on one level, stopping at the
+	// first which doesn't fit.
+	private static void fill(Condensation dag, int [] components, int from, int to, int [][] ancestors,
+			Budget used) {
+		for (int i = from; i < to && !used.isFull(); i++)
+		{
+			int next = components[i];
+			int [] above = union(dag, next, ancestors);
+			if (used.take(above))
+			{
+				ancestors[next] = above;
+			}
+		}
+	}
+
+	private static class LevelTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private Condensation dag;
+		private int [] components;
+		private int from;
+		private int to;
+		private int [][] ancestors;
+		private Budget used;
+
+		public LevelTask(Condensation dag, int [] components, int from, int to, int [][] ancestors, Budget used) {
+			this.dag = dag;
+			this.components = components;
+			this.from = from;
+			this.to = to;
+			this.ancestors = ancestors;
+			this.used = used;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > TASK_SIZE)
+			{
+				int middle = (from + to) >>> 1;
+				invokeAll(new LevelTask(dag, components, from, middle, ancestors, used),
+						new LevelTask(dag, components, middle, to, ancestors, used));
+				return;
+			}
+
+			fill(dag, components, from, to, ancestors, used);
+		}
+
+	}
+
+	// Takes the members plus the union of all the parents' ancestors.
+	private static int [] union(Condensation dag, int next, int [][] ancestors) {
+		int length = dag.memberOffsets[next + 1] - dag.memberOffsets[next];
+		for (int edge = dag.parentOffsets[next]; edge < dag.parentOffsets[next + 1]; edge++)
+		{
+			length += ancestors[dag.parents[edge]].length;
+		}
+
+		int [] above = new int [length];
+		int filled = dag.memberOffsets[next + 1] - dag.memberOffsets[next];
+		System.arraycopy(dag.members, dag.memberOffsets[next], above, 0, filled);
+		for (int edge = dag.parentOffsets[next]; edge < dag.parentOffsets[next + 1]; edge++)
+		{
+			int [] parentAncestors = ancestors[dag.parents[edge]];
+			System.arraycopy(parentAncestors, 0, above, filled, parentAncestors.length);
+			filled += parentAncestors.length;
+		}
+
+		// Parents often share ancestors, so sort and drop the repeats.
+		Arrays.sort(above);
+		int distinct = 0;
+		for (int i = 0; i < length; i++)
+		{
+			if (distinct == 0 || above[i] != above[distinct - 1])
+			{
+				above[distinct++] = above[i];
+			}
+		}
+		return distinct == length ? above : Arrays.copyOf(above, distinct);
+	}
+
+	public GraphSnapshot getView() {
+		return view;
+	}
+
+	/**
+	 * Finds the ancestors of a node (inclusive) as sorted dense ids, or null
+	 * if they didn't fit in the budget. The array must not be changed.
+	 *
+	 * @param id	The dense id of the node
+	 */
+	public int [] getAncestors(int id) {
+		return ancestors[dag.components[id]];
+	}
+
+	/**
+	 * Counts the nodes whose ancestors are stored.
+	 */
+	public int getIndexedCount() {
+		int count = 0;
+		for (int c = 0; c < ancestors.length; c++)
+		{
+			if (ancestors[c] != null)
+			{
+				count += dag.getMemberCount(c);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * The rough number of bytes taken by the stored arrays.
+	 */
+	public long sizeInBytes() {
+		return sizeInBytes;
+	}
+
+	/**
+	 * Intersects two sorted arrays of ids.
+	 *
+	 * @param first		The first sorted array
+	 * @param second	The second sorted array
+	 */
+	public static int [] intersect(int [] first, int [] second) {
+		int [] common = new int [Math.min(first.length, second.length)];
+		int size = 0;
+		int i = 0;
+		int j = 0;
+		while (i < first.length && j < second.length)
+		{
+			if (first[i] < second[j])
+			{
+				i++;
+			}
+			else if (first[i] > second[j])
+			{
+				j++;
+			}
+			else
+			{
+				common[size++] = first[i];
+				i++;
+				j++;
+			}
+		}
+		return size == common.length ? common : Arrays.copyOf(common, size);
+	}
+
+}
@@ -0,0 +1,257 @@
+package org.monarch.sim;
+
+import java.util.Arrays;
+
+/**
+ * This class stores a set of non-negative ints compactly.
+ *
+ * Following the Roaring bitmap layout, ids are split into chunks of 65536 by
+ * their high 16 bits. Sparse chunks are stored as sorted arrays of their low
+ * bits, and dense chunks as plain bitmaps, so a set of ids takes at most about
+ * two bytes per member and never more than a bit per possible id.
+ */
+public class CompressedBitmap {
+
+	// Chunks with more members than this are stored as bitmaps.
+	private static final int ARRAY_LIMIT = 4096;
+	private static final int BITMAP_WORDS = 1024;
+
+	private char [] keys = new char [4];
+	private Container [] containers = new Container [4];
+	private int chunkCount = 0;
+
+	/**
+	 * Adds an id to the set.
+	 *
+	 * @param id	The id to add
+	 */
+	public void add(int id) {
+		char key = (char) (id >>> 16);
+		int index = find(key);
+		if (index < 0)
+		{
+			index = -index - 1;
+			insert(index, key, new Container());
+		}
+		containers[index].add((char) id);
+	}
+
+	/**
+	 * Checks whether the set holds an id.
+	 *
+	 * @param id	The id to look for
+	 */
+	public boolean contains(int id) {
+		int index = find((char) (id >>> 16));
+		return index >= 0 && containers[index].contains((char) id);
+	}
+
+	/**
+	 * Adds all the ids in another set to this one.
+	 *
+	 * @param other	The set to merge in
+	 */
+	public void or(CompressedBitmap other) {
+		for (int i = 0; i < other.chunkCount; i++)
+		{
+			int index = find(other.keys[i]);
+			if (index < 0)
+			{
+				index = -index - 1;
+				insert(index, other.keys[i], other.containers[i].copy());
+			}
+			else
+			{
+				containers[index].or(other.containers[i]);
+			}
+		}
+	}
+
+	/**
+	 * Counts the ids in the set.
+	 */
+	public int cardinality() {
+		int total = 0;
+		for (int i = 0; i < chunkCount; i++)
+		{
+			total += containers[i].cardinality;
+		}
+		return total;
+	}
+
+	/**
+	 * Estimates the memory used by the set, in bytes.
+	 */
+	public long sizeInBytes() {
+		long total = 16 + 6L * keys.length;
+		for (int i = 0; i < chunkCount; i++)
+		{
+			Container container = containers[i];
+			total += 24 + (container.bits != null ? 8L * BITMAP_WORDS : 2L * container.values.length);
+		}
+		return total;
+	}
+
+	private int find(char key) {
+		return Arrays.binarySearch(keys, 0, chunkCount, key);
+	}
+
+	private void insert(int index, char key, Container container) {
+		if (chunkCount == keys.length)
+		{
+			keys = Arrays.copyOf(keys, 2 * chunkCount);
+			containers = Arrays.copyOf(containers, 2 * chunkCount);
+		}
+		System.arraycopy(keys, index, keys, index + 1, chunkCount - index);
+		System.arraycopy(containers, index, containers, index + 1, chunkCount - index);
+		keys[index] = key;
+		containers[index] = container;
+		chunkCount++;
+	}
+
+	/**
+	 * The low 16 bits of the ids in one chunk.
+	 * Exactly one of values and bits is in use at a time.
+	 */
+	private static class Container {
+
+		char [] values = new char [4];
+		long [] bits = null;
+		int cardinality = 0;
+
+		Container copy() {
+			Container copy = new Container();
+			copy.cardinality = cardinality;
+			if (bits != null)
+			{
+				copy.bits = bits.clone();
+				copy.values = null;
+			}
+			else
+			{
+				copy.values = Arrays.copyOf(values, cardinality);
+			}
+			return copy;
+		}
+
+		boolean contains(char low) {
+			if (bits != null)
+			{
+				return (bits[low >>> 6] & (1L << low)) != 0;
+			}
+			return Arrays.binarySearch(values, 0, cardinality, low) >= 0;
+		}
+
+		void add(char low) {
+			if (bits != null)
+			{
+				long mask = 1L << low;
+				if ((bits[low >>> 6] & mask) == 0)
+				{
+					bits[low >>> 6] |= mask;
+					cardinality++;
+				}
+				return;
+			}
+
+			int index = Arrays.binarySearch(values, 0, cardinality, low);
+			if (index >= 0)
+			{
+				return;
+			}
+			if (cardinality == ARRAY_LIMIT)
+			{
+				toBitmap();
+				add(low);
+				return;
+			}
+
+			index = -index - 1;
+			if (cardinality == values.length)
+			{
+				values = Arrays.copyOf(values, Math.min(ARRAY_LIMIT, 2 * cardinality));
+			}
+			System.arraycopy(values, index, values, index + 1, cardinality - index);
+			values[index] = low;
+			cardinality++;
+		}
+
+		void or(Container other) {
+			if (other.bits != null)
+			{
+				if (bits == null)
+				{
+					toBitmap();
+				}
+				int total = 0;
+				for (int i = 0; i < BITMAP_WORDS; i++)
+				{
+					bits[i] |= other.bits[i];
+					total += Long.bitCount(bits[i]);
+				}
+				cardinality = total;
+			}
+			else if (bits != null)
+			{
+				for (int i = 0; i < other.cardinality; i++)
+				{
+					add(other.values[i]);
+				}
+			}
+			else
+			{
+				merge(other.values, other.cardinality);
+			}
+		}
+
+		// Merges two sorted arrays, switching to a bitmap if the result is too big.
+		private void merge(char [] otherValues, int otherCount) {
+			char [] merged = new char [cardinality + otherCount];
+			int i = 0;
+			int j = 0;
+			int count = 0;
+			while (i < cardinality && j < otherCount)
+			{
+				if (values[i] < otherValues[j])
+				{
+					merged[count++] = values[i++];
+				}
+				else if (values[i] > otherValues[j])
+				{
+					merged[count++] = otherValues[j++];
+				}
+				else
+				{
+					merged[count++] = values[i++];
+					j++;
+				}
+			}
+			while (i < cardinality)
+			{
+				merged[count++] = values[i++];
+			}
+			while (j < otherCount)
+			{
+				merged[count++] = otherValues[j++];
+			}
+
+			values = merged;
+			cardinality = count;
+			if (count > ARRAY_LIMIT)
+			{
+				toBitmap();
+			}
+		}
+
+		private void toBitmap() {
+			bits = new long [BITMAP_WORDS];
+			for (int i = 0; i < cardinality; i++)
+			{
+				bits[values[i] >>> 6] |= 1L << values[i];
+			}
+			values = null;
+		}
+
+	}
+
+}
@@ -0,0 +1,210 @@
+package org.monarch.sim;
+
+import java.util.Arrays;
+
+/**
+ * This class collapses each strongly connected component of a graph snapshot
+ * into a single unit, which leaves a DAG even when the graph has cycles.
+ *
+ * Components are numbered so that every component comes after all the
+ * components above it. Sweeping from the highest number down therefore visits
+ * every component after all of its children.
+ */
+public class Condensation {
+
+	// The component holding each node.
+	final int [] components;
+
+	// The members, parents and children of component c are at positions
+	// offsets[c] up to offsets[c + 1], as in GraphSnapshot.
+	final int [] memberOffsets;
+	final int [] members;
+	final int [] parentOffsets;
+	final int [] parents;
+	final int [] childOffsets;
+	final int [] children;
+
+	private Condensation(int [] components, int [] memberOffsets, int [] members,
+			int [] parentOffsets, int [] parents, int [] childOffsets, int [] children) {
+		this.components = components;
+		this.memberOffsets = memberOffsets;
+		this.members = members;
+		this.parentOffsets = parentOffsets;
+		this.parents = parents;
+		this.childOffsets = childOffsets;
+		this.children = children;
+	}
+
+	/**
+	 * Finds the strongly connected components of a snapshot.
+	 *
+	 * @param view	The snapshot to condense, restricted to the relevant edges
+	 */
+	public static Condensation of(GraphSnapshot view) {
+		int size = view.size();
+		int [] components = new int [size];
+		int componentCount = 0;
+
+		// Run Tarjan's algorithm with an explicit call stack, since ontologies
+		// can be deeper than the Java stack allows.
+		int [] index = new int [size];
+		int [] low = new int [size];
+		Arrays.fill(index, -1);
+		boolean [] onStack = new boolean [size];
+		int [] stack = new int [size];
+		int [] callStack = new int [size];
+		int [] edgePositions = new int [size];
+		int counter = 0;
+		int stackSize = 0;
+		for (int start = 0; start < size; start++)
+		{
+			if (index[start] >= 0)
+			{
+				continue;
+			}
+
+			int depth = 0;
+			index[start] = low[start] = counter++;
+			stack[stackSize++] = start;
+			onStack[start] = true;
+			callStack[depth] = start;
+			edgePositions[depth++] = view.parentOffsets[start];
+
+			while (depth > 0)
+			{
+				int next = callStack[depth - 1];
+				if (edgePositions[depth - 1] < view.parentOffsets[next + 1])
+				{
+					// Move on to the next parent.
+					int parent = view.parents[edgePositions[depth - 1]++];
+					if (index[parent] < 0)
+					{
+						index[parent] = low[parent] = counter++;
+						stack[stackSize++] = parent;
+						onStack[parent] = true;
+						callStack[depth] = parent;
+						edgePositions[depth++] = view.parentOffsets[parent];
+					}
+					else if (onStack[parent])
+					{
+						low[next] = Math.min(low[next], index[parent]);
+					}
+					continue;
+				}
+
+				// If this node roots a component, pop the whole component.
+				if (low[next] == index[next])
+				{
+					int member;
+					do
+					{
+						member = stack[--stackSize];
+						onStack[member] = false;
+						components[member] = componentCount;
+					}
+					while (member != next);
+					componentCount++;
+				}
+
+				depth--;
+				if (depth > 0)
+				{
+					int caller = callStack[depth - 1];
+					low[caller] = Math.min(low[caller], low[next]);
+				}
+			}
+		}
+
+		// Group the members of each component.
+		int [] memberOffsets = new int [componentCount + 1];
+		for (int id = 0; id < size; id++)
+		{
+			memberOffsets[components[id] + 1]++;
+		}
+		for (int c = 1; c <= componentCount; c++)
+		{
+			memberOffsets[c] += memberOffsets[c - 1];
+		}
+		int [] members = new int [size];
+		int [] slots = Arrays.copyOf(memberOffsets, componentCount);
+		for (int id = 0; id < size; id++)
+		{
+			members[slots[components[id]]++] = id;
+		}
+
+		// Collect the distinct edges between components.
+		int [] parentOffsets = new int [componentCount + 1];
+		int [] parents = new int [view.edgeCount()];
+		int [] seen = new int [componentCount];
+		Arrays.fill(seen, -1);
+		int edgeCount = 0;
+		for (int c = 0; c < componentCount; c++)
+		{
+			parentOffsets[c] = edgeCount;
+			seen[c] = c;
+			for (int i = memberOffsets[c]; i < memberOffsets[c + 1]; i++)
+			{
+				int member = members[i];
+				for (int edge = view.parentOffsets[member]; edge < view.parentOffsets[member + 1]; edge++)
+				{
+					int parent = components[view.parents[edge]];
+					if (seen[parent] != c)
+					{
+						seen[parent] = c;
+						parents[edgeCount++] = parent;
+					}
+				}
+			}
+		}
+		parentOffsets[componentCount] = edgeCount;
+		parents = Arrays.copyOf(parents, edgeCount);
+
+		// Turn the parent lists around to get the child lists.
+		int [] childOffsets = new int [componentCount + 1];
+		for (int edge = 0; edge < edgeCount; edge++)
+		{
+			childOffsets[parents[edge] + 1]++;
+		}
+		for (int c = 1; c <= componentCount; c++)
+		{
+			childOffsets[c] += childOffsets[c - 1];
+		}
+		int [] children = new int [edgeCount];
+		slots = Arrays.copyOf(childOffsets, componentCount);
+		for (int c = 0; c < componentCount; c++)
+		{
+			for (int edge = parentOffsets[c]; edge < parentOffsets[c + 1]; edge++)
+			{
+				children[slots[parents[edge]]++] = c;
+			}
+		}
+
+		return new Condensation(components, memberOffsets, members, parentOffsets, parents, childOffsets, children);
+	}
+
+	/**
+	 * The number of components.
+	 */
+	public int size() {
+		return memberOffsets.length - 1;
+	}
+
+	/**
+	 * Finds the component holding a node.
+	 *
+	 * @param id	The dense id of the node
+	 */
+	public int getComponent(int id) {
+		return components[id];
+	}
+
+	/**
+	 * Counts the nodes in a component.
+	 *
+	 * @param component	The component to measure
+	 */
+	public int getMemberCount(int component) {
+		return memberOffsets[component + 1] - memberOffsets[component];
+	}
+
+}
@@ -0,0 +1,294 @@
+package org.monarch.sim;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.logging.Logger;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * This class compares a query profile against every profile of a corpus and
+ * keeps the best matches.
+ *
+ * The query's ancestors are found once, as bitsets, and each corpus profile is
+ * scored by walking its preloaded ancestor arrays against them. The corpus is
+ * split into ranges across a fork-join pool, whose idle threads steal ranges
+ * from busy ones. Each range keeps its own top k, and the ranges' results are
+ * merged as they finish.
+ *
+ * The pairwise scores behind BEST_MATCH_AVERAGE, MAX_IC and AVERAGE_IC are
+ * Resnik scores, as in Neo4jTraversals.getMaxIC() and getAverageIC().
+ */
+public class CorpusScorer {
+
+	private static final Logger logger = Logger.getLogger(CorpusScorer.class.getName());
+
+	// Ranges smaller than this are scored by a single task.
+	private static final int TASK_SIZE = 64;
+
+	/**
+	 * The ways to score a query against a corpus profile.
+	 */
+	public enum Score {
+		SIM_GIC, SIM_UI, BEST_MATCH_AVERAGE, MAX_IC, AVERAGE_IC
+	}
+
+	/**
+	 * The best matches for a query, and how quickly they were found.
+	 */
+	public static class Result {
+
+		private final List<String> names;
+		private final double [] scores;
+		private final long elapsedNanos;
+		private final int profileCount;
+
+		Result(List<String> names, double [] scores, long elapsedNanos, int profileCount) {
+			this.names = names;
+			this.scores = scores;
+			this.elapsedNanos = elapsedNanos;
+			this.profileCount = profileCount;
+		}
+
+		/**
+		 * The names of the best profiles, best first.
+		 */
+		public List<String> getNames() {
+			return names;
+		}
+
+		/**
+		 * The score of the profile at a rank.
+		 *
+		 * @param rank	The position in getNames()
+		 */
+		public double getScore(int rank) {
+			return scores[rank];
+		}
+
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		/**
+		 * How many corpus profiles were scored per second.
+		 */
+		public double getProfilesPerSecond() {
+			return elapsedNanos == 0 ? 0 : profileCount * 1e9 / elapsedNanos;
+		}
+
+	}
+
+	private final ProfileCorpus corpus;
+	private final ForkJoinPool pool;
+
+	/**
+	 * Sets up scoring against a corpus.
+	 *
+	 * @param corpus	The corpus, which must not change while scoring
+	 * @param pool		The pool to score on, or null to score on the calling thread
+	 */
+	public CorpusScorer(ProfileCorpus corpus, ForkJoinPool pool) {
+		this.corpus = corpus;
+		this.pool = pool;
+	}
+
+	/**
+	 * Finds the corpus profiles which best match a query.
+	 *
+	 * @param query	The terms of the query profile
+	 * @param score	How to score each match
+	 * @param k		The number of profiles to keep
+	 */
+	public Result score(Collection<Node> query, Score score, int k) {
+		return score(query, score, k, null);
+	}
+
+	/**
+	 * Finds the best matches for a query among some of the corpus profiles,
+	 * such as the candidates from a MinHashIndex.
+	 *
+	 * @param query		The terms of the query profile
+	 * @param score		How to score each match
+	 * @param k			The number of profiles to keep
+	 * @param profiles	The positions of the profiles to score, or null for all
+	 */
+	public Result score(Collection<Node> query, Score score, int k, int [] profiles) {
+		long start = System.nanoTime();
+		SimilarityEngine.TermProfile profile = corpus.getSimilarityEngine().getProfile(query);
+		int count = profiles == null ? corpus.size() : profiles.length;
+
+		TopK best;
+		if (pool != null)
+		{
+			best = pool.invoke(new RangeTask(profile, score, k, profiles, 0, count));
+		}
+		else
+		{
+			best = scoreRange(profile, score, k, profiles, 0, count);
+		}
+		best.sort();
+
+		List<String> names = new ArrayList<>();
+		double [] scores = new double [best.size()];
+		for (int rank = 0; rank < best.size(); rank++)
+		{
+			names.add(corpus.getName(best.getId(rank)));
+			scores[rank] = best.getScore(rank);
+		}
+
+		Result result = new Result(Collections.unmodifiableList(names), scores, System.nanoTime() - start, count);
+		logger.fine("Scored " + count + " profiles at " + (long) result.getProfilesPerSecond() + " profiles/s");
+		return result;
+	}
+
+	private class RangeTask extends RecursiveTask<TopK> {
+
+		private static final long serialVersionUID = 1L;
+
+		private SimilarityEngine.TermProfile query;
+		private Score score;
+		private int k;
+		private int [] profiles;
+		private int from;
+		private int to;
+
+		public RangeTask(SimilarityEngine.TermProfile query, Score score, int k, int [] profiles, int from, int to) {
+			this.query = query;
+			this.score = score;
+			this.k = k;
+			this.profiles = profiles;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected TopK compute() {
+			if (to - from > TASK_SIZE)
+			{
+				int middle = (from + to) >>> 1;
+				RangeTask right = new RangeTask(query, score, k, profiles, middle, to);
+				right.fork();
+				TopK best = new RangeTask(query, score, k, profiles, from, middle).compute();
+
+				// Merge the other half's matches into ours.
+				TopK other = right.join();
+				for (int i = 0; i < other.size(); i++)
+				{
+					best.push(other.getId(i), other.getScore(i));
+				}
+				return best;
+			}
+
+			return scoreRange(query, score, k, profiles, from, to);
+		}
+
+	}
+
+	// Keeps the best matches among a range of the profiles to score.
+	private TopK scoreRange(SimilarityEngine.TermProfile query, Score score, int k, int [] profiles,
+			int from, int to) {
+		TopK best = new TopK(k);
+		for (int i = from; i < to; i++)
+		{
+			int profile = profiles == null ? i : profiles[i];
+			best.push(profile, score(query, profile, score));
+		}
+		return best;
+	}
+
+	private static boolean contains(long [] words, int id) {
+		return (words[id >>> 6] & (1L << id)) != 0;
+	}
+
+	private double score(SimilarityEngine.TermProfile query, int profile, Score score) {
+		SimilarityEngine similarity = corpus.getSimilarityEngine();
+		switch (score)
+		{
+		case SIM_GIC:
+		{
+			double common = 0;
+			for (int id : corpus.unionAncestors.get(profile))
+			{
+				if (contains(query.union.words, id))
+				{
+					common += similarity.getIC(id);
+				}
+			}
+			double all = query.union.icSum + corpus.unionIC[profile] - common;
+			return all == 0 ? 0 : common / all;
+		}
+		case SIM_UI:
+		{
+			int [] ancestors = corpus.unionAncestors.get(profile);
+			int common = 0;
+			for (int id : ancestors)
+			{
+				if (contains(query.union.words, id))
+				{
+					common++;
+				}
+			}
+			int all = query.union.count + ancestors.length - common;
+			return all == 0 ? 0 : (double) common / all;
+		}
+		default:
+			return scorePairs(query, corpus.termAncestors.get(profile), score);
+		}
+	}
+
+	// Reduces the Resnik scores of every pair of terms.
+	private double scorePairs(SimilarityEngine.TermProfile query, int [][] terms, Score score) {
+		SimilarityEngine similarity = corpus.getSimilarityEngine();
+		if (query.size() == 0 || terms.length == 0)
+		{
+			return 0;
+		}
+
+		double max = 0;
+		double total = 0;
+		double queryBests = 0;
+		double [] termBests = new double [terms.length];
+		for (int i = 0; i < query.size(); i++)
+		{
+			long [] words = query.terms[i].words;
+			double queryBest = 0;
+			for (int j = 0; j < terms.length; j++)
+			{
+				double resnik = 0;
+				for (int id : terms[j])
+				{
+					if (contains(words, id))
+					{
+						resnik = Math.max(resnik, similarity.getIC(id));
+					}
+				}
+				queryBest = Math.max(queryBest, resnik);
+				termBests[j] = Math.max(termBests[j], resnik);
+				total += resnik;
+			}
+			queryBests += queryBest;
+			max = Math.max(max, queryBest);
+		}
+
+		switch (score)
+		{
+		case MAX_IC:
+			return max;
+		case AVERAGE_IC:
+			return total / ((double) query.size() * terms.length);
+		default:
+			double termTotal = 0;
+			for (double best : termBests)
+			{
+				termTotal += best;
+			}
+			return (queryBests / query.size() + termTotal / terms.length) / 2;
+		}
+	}
+
+}
@@ -0,0 +1,256 @@
+package org.monarch.sim;
+
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This class counts the nodes anywhere below each node of a graph snapshot.
+ *
+ * The sweep runs over the condensation of the graph, so cycles are handled:
+ * every node in a strongly connected component has the same descendants.
+ * Components are visited in topological order from the leaves up. Each
+ * component's descendants are its members plus the union of its children's
+ * descendants, and are kept as a compressed bitmap only until all of the
+ * component's parents have used them.
+ *
+ * The sweep can also run level by level, where a component's level is the
+ * length of the longest path down to a leaf. Components on the same level never
+ * depend on each other, so each level is split across a fork-join pool.
+ *
+ * Some nodes may be excluded from the counts. They're still walked through,
+ * so nodes below them are counted for their ancestors.
+ */
+public class DescendantSweep {
+
+	// Levels smaller than this are handled by a single task.
+	private static final int TASK_SIZE = 256;
+
+	/**
+	 * Counts the descendants of every node (inclusive).
+	 *
+	 * @param view	The snapshot to sweep, restricted to the relevant edges
+	 */
+	public static int [] count(GraphSnapshot view) {
+		return count(view, (BitSet) null);
+	}
+
+	/**
+	 * Counts the descendants of every node (inclusive), leaving some nodes out.
+	 *
+	 * @param view		The snapshot to sweep, restricted to the relevant edges
+	 * @param excluded	The dense ids of nodes not to count, or null
+	 */
+	public static int [] count(GraphSnapshot view, BitSet excluded) {
+		Condensation dag = Condensation.of(view);
+		return spread(view, dag, count(dag, null, excluded));
+	}
+
+	/**
+	 * Counts the descendants of some components of a condensation (inclusive).
+	 *
+	 * @param dag		The condensation to sweep
+	 * @param marked	The components to count, which must include every
+	 * 					component below them, or null for all of them
+	 * @param excluded	The dense ids of nodes not to count, or null
+	 * @return			The counts by component, with 0 for unmarked ones
+	 */
+	static int [] count(Condensation dag, BitSet marked, BitSet excluded) {
+		int size = dag.size();
+		int [] counts = new int [size];
+		int [] unpushedParents = getParentCounts(dag, marked);
+		CompressedBitmap [] nodesBelow = new CompressedBitmap [size];
+
+		// Components come after everything above them, so go backwards.
+		for (int next = size - 1; next >= 0; next--)
+		{
+			if (marked != null && !marked.get(next))
+			{
+				continue;
+			}
+			nodesBelow[next] = union(dag, next, nodesBelow, excluded);
+			counts[next] = nodesBelow[next].cardinality();
+			release(dag, next, unpushedParents, nodesBelow);
+		}
+
+		return counts;
+	}
+
+	/**
+	 * Counts the descendants of every node (inclusive), one level at a time.
+	 *
+	 * @param view	The snapshot to sweep, restricted to the relevant edges
+	 * @param pool	The pool to run each level on
+	 */
+	public static int [] count(GraphSnapshot view, ForkJoinPool pool) {
+		return count(view, null, pool);
+	}
+
+	/**
+	 * Counts the descendants of every node (inclusive), one level at a time,
+	 * leaving some nodes out.
+	 *
+	 * @param view		The snapshot to sweep, restricted to the relevant edges
+	 * @param excluded	The dense ids of nodes not to count, or null
+	 * @param pool		The pool to run each level on
+	 */
+	public static int [] count(GraphSnapshot view, BitSet excluded, ForkJoinPool pool) {
+		Condensation dag = Condensation.of(view);
+		int size = dag.size();
+		int [] counts = new int [size];
+		int [] unpushedParents = getParentCounts(dag, null);
+		CompressedBitmap [] nodesBelow = new CompressedBitmap [size];
+
+		// Find each component's level, and group the components by level.
+		int [] levels = new int [size];
+		int levelCount = 0;
+		for (int next = size - 1; next >= 0; next--)
+		{
+			for (int edge = dag.childOffsets[next]; edge < dag.childOffsets[next + 1]; edge++)
+			{
+				levels[next] = Math.max(levels[next], levels[dag.children[edge]] + 1);
+			}
+			levelCount = Math.max(levelCount, levels[next] + 1);
+		}
+
+		int [] levelOffsets = new int [levelCount + 1];
+		for (int next = 0; next < size; next++)
+		{
+			levelOffsets[levels[next] + 1]++;
+		}
+		for (int level = 1; level <= levelCount; level++)
+		{
+			levelOffsets[level] += levelOffsets[level - 1];
+		}
+		int [] byLevel = new int [size];
+		int [] slots = new int [levelCount];
+		System.arraycopy(levelOffsets, 0, slots, 0, levelCount);
+		for (int next = 0; next < size; next++)
+		{
+			byLevel[slots[levels[next]]++] = next;
+		}
+
+		// Sweep the levels in order.
+		for (int level = 0; level < levelCount; level++)
+		{
+			pool.invoke(new LevelTask(dag, byLevel, levelOffsets[level], levelOffsets[level + 1], excluded, nodesBelow, counts));
+
+			// Only clean up once the whole level is done reading.
+			for (int i = levelOffsets[level]; i < levelOffsets[level + 1]; i++)
+			{
+				release(dag, byLevel[i], unpushedParents, nodesBelow);
+			}
+		}
+
+		return spread(view, dag, counts);
+	}
+
+	private static class LevelTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private Condensation dag;
+		private int [] components;
+		private int from;
+		private int to;
+		private BitSet excluded;
+		private CompressedBitmap [] nodesBelow;
+		private int [] counts;
+
+		public LevelTask(Condensation dag, int [] components, int from, int to,
+				BitSet excluded, CompressedBitmap [] nodesBelow, int [] counts) {
+			this.dag = dag;
+			this.components = components;
+			this.from = from;
+			this.to = to;
+			this.excluded = excluded;
+			this.nodesBelow = nodesBelow;
+			this.counts = counts;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > TASK_SIZE)
+			{
+				int middle = (from + to) >>> 1;
+				invokeAll(new LevelTask(dag, components, from, middle, excluded, nodesBelow, counts),
+						new LevelTask(dag, components, middle, to, excluded, nodesBelow, counts));
+				return;
+			}
+
+			for (int i = from; i < to; i++)
+			{
+				int next = components[i];
+				nodesBelow[next] = union(dag, next, nodesBelow, excluded);
+				counts[next] = nodesBelow[next].cardinality();
+			}
+		}
+
+	}
+
+	// Takes the members plus the union of all the children's descendants.
+	private static CompressedBitmap union(Condensation dag, int next, CompressedBitmap [] nodesBelow, BitSet excluded) {
+		CompressedBitmap below = new CompressedBitmap();
+		for (int i = dag.memberOffsets[next]; i < dag.memberOffsets[next + 1]; i++)
+		{
+			if (excluded == null || !excluded.get(dag.members[i]))
+			{
+				below.add(dag.members[i]);
+			}
+		}
+		for (int edge = dag.childOffsets[next]; edge < dag.childOffsets[next + 1]; edge++)
+		{
+			below.or(nodesBelow[dag.children[edge]]);
+		}
+		return below;
+	}
+
+	// Lets go of descendants which no parent still needs.
+	private static void release(Condensation dag, int next, int [] unpushedParents, CompressedBitmap [] nodesBelow) {
+		for (int edge = dag.childOffsets[next]; edge < dag.childOffsets[next + 1]; edge++)
+		{
+			int child = dag.children[edge];
+			unpushedParents[child]--;
+			if (unpushedParents[child] == 0)
+			{
+				nodesBelow[child] = null;
+			}
+		}
+		if (unpushedParents[next] == 0)
+		{
+			nodesBelow[next] = null;
+		}
+	}
+
+	// Counts the parents of each component, only counting marked ones if given.
+	private static int [] getParentCounts(Condensation dag, BitSet marked) {
+		int [] parentCounts = new int [dag.size()];
+		for (int c = 0; c < parentCounts.length; c++)
+		{
+			if (marked == null)
+			{
+				parentCounts[c] = dag.parentOffsets[c + 1] - dag.parentOffsets[c];
+				continue;
+			}
+			for (int edge = dag.parentOffsets[c]; edge < dag.parentOffsets[c + 1]; edge++)
+			{
+				if (marked.get(dag.parents[edge]))
+				{
+					parentCounts[c]++;
+				}
+			}
+		}
+		return parentCounts;
+	}
+
+	// Gives every node the count of its component.
+	private static int [] spread(GraphSnapshot view, Condensation dag, int [] componentCounts) {
+		int [] counts = new int [view.size()];
+		for (int id = 0; id < counts.length; id++)
+		{
+			counts[id] = componentCounts[dag.components[id]];
+		}
+		return counts;
+	}
+
+}
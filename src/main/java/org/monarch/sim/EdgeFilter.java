@@ -0,0 +1,251 @@
+package org.monarch.sim;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+
+/**
+ * This class decides which edges a traversal follows, and which way is up
+ * along each of them.
+ *
+ * Each type of edge is either ignored or goes up in some direction: OUTGOING
+ * when the end node is above the start node (as with SUBCLASS_OF), INCOMING
+ * when the start node is above the end node (as with has_part), or BOTH.
+ * Types which aren't listed share a default.
+ *
+ * The filter is compiled to two bitmasks over type ordinals, one for each
+ * direction an edge can be read in, so once an edge's ordinal is known,
+ * checking it is a single AND. Neo4j hands out one RelationshipType instance
+ * per type, so ordinals are cached by instance, and finding one is a short
+ * scan without hashing the name. Filters never change once built; the with*
+ * methods return new filters.
+ */
+public class EdgeFilter {
+
+	// The most type instances to cache, in case a caller makes new ones.
+	private static final int MAX_CACHED_TYPES = 64;
+
+	// The listed types, with null for the ones we ignore.
+	private final Map<String, Direction> directions;
+	private final Direction otherDirection;
+
+	// Listed types are numbered from 1, and every other type shares 0.
+	private final Map<String, Integer> ordinals = new HashMap<>();
+	private final long [] outgoingUp;
+	private final long [] incomingUp;
+
+	// The ordinals of the type instances seen so far. The cache is replaced
+	// rather than changed, so readers never see half an update.
+	private volatile TypeCache typeCache = new TypeCache(new RelationshipType [0], new int [0]);
+
+	private EdgeFilter(Map<String, Direction> directions, Direction otherDirection) {
+		this.directions = directions;
+		this.otherDirection = otherDirection;
+
+		outgoingUp = new long [(directions.size() + 64) >>> 6];
+		incomingUp = new long [outgoingUp.length];
+		setDirection(0, otherDirection);
+		for (Map.Entry<String, Direction> entry : directions.entrySet())
+		{
+			int ordinal = ordinals.size() + 1;
+			ordinals.put(entry.getKey(), ordinal);
+			setDirection(ordinal, entry.getValue());
+		}
+	}
+
+	private void setDirection(int ordinal, Direction up) {
+		if (up == Direction.OUTGOING || up == Direction.BOTH)
+		{
+			outgoingUp[ordinal >>> 6] |= 1L << ordinal;
+		}
+		if (up == Direction.INCOMING || up == Direction.BOTH)
+		{
+			incomingUp[ordinal >>> 6] |= 1L << ordinal;
+		}
+	}
+
+	private static class TypeCache {
+
+		final RelationshipType [] types;
+		final int [] ordinals;
+
+		TypeCache(RelationshipType [] types, int [] ordinals) {
+			this.types = types;
+			this.ordinals = ordinals;
+		}
+
+		TypeCache with(RelationshipType edgeType, int ordinal) {
+			RelationshipType [] newTypes = Arrays.copyOf(types, types.length + 1);
+			int [] newOrdinals = Arrays.copyOf(ordinals, ordinals.length + 1);
+			newTypes[types.length] = edgeType;
+			newOrdinals[ordinals.length] = ordinal;
+			return new TypeCache(newTypes, newOrdinals);
+		}
+
+	}
+
+	/**
+	 * Follows every type of edge up along its direction.
+	 */
+	public static EdgeFilter all() {
+		return new EdgeFilter(new LinkedHashMap<String, Direction>(), Direction.OUTGOING);
+	}
+
+	/**
+	 * Follows only the given types of edges, up along their direction.
+	 *
+	 * @param edgeTypes	The names of the types of edges we want to include
+	 */
+	public static EdgeFilter including(Collection<String> edgeTypes) {
+		Map<String, Direction> directions = new LinkedHashMap<>();
+		for (String edgeType : edgeTypes)
+		{
+			directions.put(edgeType, Direction.OUTGOING);
+		}
+		return new EdgeFilter(directions, null);
+	}
+
+	/**
+	 * Follows every type of edge but the given ones, up along their direction.
+	 *
+	 * @param edgeTypes	The names of the types of edges we want to exclude
+	 */
+	public static EdgeFilter excluding(Collection<String> edgeTypes) {
+		return all().without(edgeTypes);
+	}
+
+	/**
+	 * Builds a filter which also follows a type of edge, going up in the
+	 * given direction.
+	 *
+	 * @param edgeType	The name of the type of edge
+	 * @param up		OUTGOING, INCOMING or BOTH
+	 */
+	public EdgeFilter withDirection(String edgeType, Direction up) {
+		Map<String, Direction> newDirections = new LinkedHashMap<>(directions);
+		newDirections.put(edgeType, up);
+		return new EdgeFilter(newDirections, otherDirection);
+	}
+
+	/**
+	 * Builds a filter which ignores some more types of edges.
+	 *
+	 * @param edgeTypes	The names of the types of edges we want to exclude
+	 */
+	public EdgeFilter without(Collection<String> edgeTypes) {
+		if (edgeTypes.isEmpty())
+		{
+			return this;
+		}
+		Map<String, Direction> newDirections = new LinkedHashMap<>(directions);
+		for (String edgeType : edgeTypes)
+		{
+			newDirections.put(edgeType, null);
+		}
+		return new EdgeFilter(newDirections, otherDirection);
+	}
+
+	/**
+	 * Finds which way is up along a type of edge, or null if it's ignored.
+	 *
+	 * @param edgeType	The name of the type of edge
+	 */
+	public Direction getUpDirection(String edgeType) {
+		return directions.containsKey(edgeType) ? directions.get(edgeType) : otherDirection;
+	}
+
+	/**
+	 * Finds the ordinal of a type of edge within this filter.
+	 *
+	 * @param edgeType	The type of edge
+	 */
+	public int getOrdinal(RelationshipType edgeType) {
+		TypeCache cache = typeCache;
+		for (int i = 0; i < cache.types.length; i++)
+		{
+			if (cache.types[i] == edgeType)
+			{
+				return cache.ordinals[i];
+			}
+		}
+
+		Integer found = ordinals.get(edgeType.name());
+		int ordinal = found == null ? 0 : found;
+		// Racing threads may drop each other's entries, which only costs a lookup.
+		if (cache.types.length < MAX_CACHED_TYPES)
+		{
+			typeCache = cache.with(edgeType, ordinal);
+		}
+		return ordinal;
+	}
+
+	/**
+	 * Whether an edge leads up from a node.
+	 *
+	 * @param ordinal	The ordinal of the edge's type
+	 * @param dir		OUTGOING if the node is the start of the edge, else INCOMING
+	 */
+	public boolean isUp(int ordinal, Direction dir) {
+		long [] mask = dir == Direction.OUTGOING ? outgoingUp : incomingUp;
+		return (mask[ordinal >>> 6] & (1L << ordinal)) != 0;
+	}
+
+	/**
+	 * Finds the nodes immediately above or below a node in the database.
+	 *
+	 * @param n			The node whose neighbors we want
+	 * @param up		Whether we want the nodes above, rather than below
+	 * @param neighbors	The collection to add the neighbors to
+	 */
+	public void addNeighbors(Node n, boolean up, Collection<Node> neighbors) {
+		for (Relationship edge : n.getRelationships())
+		{
+			int ordinal = getOrdinal(edge.getType());
+			boolean outgoing = edge.getStartNode().equals(n);
+
+			// Going down an edge means going up it from the other end.
+			Direction dir = outgoing == up ? Direction.OUTGOING : Direction.INCOMING;
+			if (isUp(ordinal, dir))
+			{
+				neighbors.add(edge.getOtherNode(n));
+			}
+		}
+	}
+
+	/**
+	 * Describes which way is up along each of some types of edges, leaving out
+	 * the ones which are ignored.
+	 *
+	 * @param edgeTypes	The names of the types of edges to describe
+	 */
+	public String describe(List<String> edgeTypes) {
+		StringBuilder description = new StringBuilder("[");
+		for (String edgeType : edgeTypes)
+		{
+			Direction up = getUpDirection(edgeType);
+			if (up == null)
+			{
+				continue;
+			}
+			if (description.length() > 1)
+			{
+				description.append(", ");
+			}
+			description.append(edgeType);
+			if (up != Direction.OUTGOING)
+			{
+				description.append(" (").append(up.name().toLowerCase()).append(")");
+			}
+		}
+		return description.append("]").toString();
+	}
+
+}
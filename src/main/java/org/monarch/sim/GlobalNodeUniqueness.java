@@ -0,0 +1,53 @@
+package org.monarch.sim;
+
+import org.neo4j.graphdb.traversal.TraversalBranch;
+import org.neo4j.graphdb.traversal.UniquenessFactory;
+import org.neo4j.graphdb.traversal.UniquenessFilter;
+
+/**
+ * Lets a traversal visit each node at most once, like Uniqueness.NODE_GLOBAL,
+ * remembering the visited node ids in a primitive LongSet rather than a set of
+ * boxed ids.
+ *
+ * Unlike Uniqueness.NODE_RECENT, nothing is ever forgotten, so wide graphs
+ * with many paths to the same node don't make a traversal revisit it.
+ */
+public class GlobalNodeUniqueness implements UniquenessFactory {
+
+	/**
+	 * Creates the visited set for one traversal.
+	 *
+	 * @param optionalParameter	The number of nodes to expect, as an Integer, or null
+	 */
+	@Override
+	public UniquenessFilter create(Object optionalParameter) {
+		int expected = optionalParameter instanceof Integer ? (Integer) optionalParameter : 16;
+		return new Filter(new LongSet(expected));
+	}
+
+	@Override
+	public String toString() {
+		return "NODE_GLOBAL (primitive)";
+	}
+
+	private static class Filter implements UniquenessFilter {
+
+		private final LongSet visited;
+
+		public Filter(LongSet visited) {
+			this.visited = visited;
+		}
+
+		@Override
+		public boolean checkFirst(TraversalBranch branch) {
+			return check(branch);
+		}
+
+		@Override
+		public boolean check(TraversalBranch branch) {
+			return visited.add(branch.endNode().getId());
+		}
+
+	}
+
+}
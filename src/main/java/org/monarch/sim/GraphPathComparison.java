@@ -256,35 +256,23 @@ public class GraphPathComparison {
 		public RootPath(Node first, Node second, Collection<Node> nodesAbove) {
 			this.first = first;
 			this.second = second;
-			Collection<Node> ancestors = traverser.getAncestors(first);
-			ancestors.retainAll(traverser.getAncestors(second));
+			Collection<Node> ancestors = traverser.getCommonAncestors(first, second);
 			
 			root = null;
 			double ic = -1;
 			
 			// Find the least subsumer with the given nodes as ancestors.
-			outer:
-				for (Node ancestor : ancestors)
+			for (Node ancestor : ancestors)
+			{
+				double ancestorIC = traverser.getIC(ancestor);
+				if (ancestorIC < ic || ! isBelowAll(ancestor, nodesAbove))
 				{
-					double ancestorIC = traverser.getIC(ancestor);
-					if (ancestorIC < ic)
-					{
-						continue;
-					}
-					
-					Collection<Node> farAncestors = traverser.getAncestors(ancestor);
-					
-					for (Node above : nodesAbove)
-					{
-						if (! farAncestors.contains(above))
-						{
-							continue outer;
-						}
-					}
-					
-					root = ancestor;
-					ic = ancestorIC;
+					continue;
 				}
+				
+				root = ancestor;
+				ic = ancestorIC;
+			}
 			
 			firstPath = traverser.getShortestPath(first, root);
 			secondPath = traverser.getShortestPath(second, root);
@@ -294,6 +282,24 @@ public class GraphPathComparison {
 			}
 		}
 		
+		private boolean isBelowAll(Node n, Collection<Node> nodesAbove) {
+			// Without a snapshot, each isAncestor() call walks the database,
+			// so find the closure once instead.
+			if (traverser.getClosureEngine() == null)
+			{
+				return traverser.getAncestors(n).containsAll(nodesAbove);
+			}
+			
+			for (Node above : nodesAbove)
+			{
+				if (! traverser.isAncestor(above, n))
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+		
 		public boolean contains(Node n) {
 			return firstPath.contains(n) || secondPath.contains(n);
 		}
@@ -0,0 +1,513 @@
+package org.monarch.sim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+/**
+ * This class holds an immutable in-memory copy of the edges in a Neo4j database.
+ *
+ * Every node is given a dense int id, and the parents and children of each node
+ * are stored as offsets into flat int arrays, along with a code for the type
+ * of each edge. Walking these arrays avoids the Neo4j object API entirely.
+ *
+ * A snapshot can be restricted to the edges an EdgeFilter follows, turned to
+ * point the way the filter says is up. Restricted snapshots share node ids and
+ * type codes with the snapshot they came from.
+ */
+public class GraphSnapshot {
+
+	private GraphDatabaseService db;
+
+	// Dense ids index nodeIds, and Neo4j ids index denseIds.
+	private long [] nodeIds;
+	private int [] denseIds;
+
+	private RelationshipType [] edgeTypes;
+	private Map<String, Integer> typeCodes;
+
+	// The edges leaving node i are at positions parentOffsets[i] up to
+	// parentOffsets[i + 1] in parents and parentTypes, and likewise for children.
+	// These are left package-private so hot loops can walk them directly.
+	final int [] parentOffsets;
+	final int [] parents;
+	final int [] parentTypes;
+	final int [] childOffsets;
+	final int [] children;
+	final int [] childTypes;
+
+	// The fingerprint of the snapshot a copy without edges came from.
+	private Long savedFingerprint;
+
+	private GraphSnapshot(GraphDatabaseService db, long [] nodeIds, int [] denseIds,
+			RelationshipType [] edgeTypes, Map<String, Integer> typeCodes,
+			int [] parentOffsets, int [] parents, int [] parentTypes,
+			int [] childOffsets, int [] children, int [] childTypes) {
+		this.db = db;
+		this.nodeIds = nodeIds;
+		this.denseIds = denseIds;
+		this.edgeTypes = edgeTypes;
+		this.typeCodes = typeCodes;
+		this.parentOffsets = parentOffsets;
+		this.parents = parents;
+		this.parentTypes = parentTypes;
+		this.childOffsets = childOffsets;
+		this.children = children;
+		this.childTypes = childTypes;
+	}
+
+	/**
+	 * Copies every node and edge of a database into a new snapshot.
+	 *
+	 * @param db	The database to copy
+	 */
+	public static GraphSnapshot build(GraphDatabaseService db) {
+		GlobalGraphOperations ops = GlobalGraphOperations.at(db);
+
+		// Number the nodes.
+		long [] nodeIds = new long [1024];
+		int nodeCount = 0;
+		long maxId = -1;
+		for (Node n : ops.getAllNodes())
+		{
+			if (nodeCount == nodeIds.length)
+			{
+				nodeIds = Arrays.copyOf(nodeIds, 2 * nodeCount);
+			}
+			nodeIds[nodeCount++] = n.getId();
+			maxId = Math.max(maxId, n.getId());
+		}
+		nodeIds = Arrays.copyOf(nodeIds, nodeCount);
+
+		if (maxId >= Integer.MAX_VALUE)
+		{
+			throw new IllegalStateException("Node id " + maxId + " is too large for a snapshot");
+		}
+		int [] denseIds = new int [(int) maxId + 1];
+		Arrays.fill(denseIds, -1);
+		for (int i = 0; i < nodeCount; i++)
+		{
+			denseIds[(int) nodeIds[i]] = i;
+		}
+
+		// Number the edge types.
+		List<RelationshipType> typeList = new ArrayList<>();
+		Map<String, Integer> typeCodes = new HashMap<>();
+		for (RelationshipType edgeType : ops.getAllRelationshipTypes())
+		{
+			if (!typeCodes.containsKey(edgeType.name()))
+			{
+				typeCodes.put(edgeType.name(), typeList.size());
+				typeList.add(edgeType);
+			}
+		}
+
+		// Read every edge once, then sort them into place.
+		int [] starts = new int [1024];
+		int [] ends = new int [1024];
+		int [] types = new int [1024];
+		int edgeCount = 0;
+		for (Relationship edge : ops.getAllRelationships())
+		{
+			if (edgeCount == starts.length)
+			{
+				starts = Arrays.copyOf(starts, 2 * edgeCount);
+				ends = Arrays.copyOf(ends, 2 * edgeCount);
+				types = Arrays.copyOf(types, 2 * edgeCount);
+			}
+
+			// Types can be created after we listed them.
+			RelationshipType edgeType = edge.getType();
+			Integer code = typeCodes.get(edgeType.name());
+			if (code == null)
+			{
+				code = typeList.size();
+				typeCodes.put(edgeType.name(), code);
+				typeList.add(edgeType);
+			}
+
+			starts[edgeCount] = denseIds[(int) edge.getStartNode().getId()];
+			ends[edgeCount] = denseIds[(int) edge.getEndNode().getId()];
+			types[edgeCount] = code;
+			edgeCount++;
+		}
+
+		RelationshipType [] edgeTypes = typeList.toArray(new RelationshipType[typeList.size()]);
+
+		int [] parentOffsets = new int [nodeCount + 1];
+		int [] parents = new int [edgeCount];
+		int [] parentTypes = new int [edgeCount];
+		fill(starts, ends, types, edgeCount, parentOffsets, parents, parentTypes);
+
+		int [] childOffsets = new int [nodeCount + 1];
+		int [] children = new int [edgeCount];
+		int [] childTypes = new int [edgeCount];
+		fill(ends, starts, types, edgeCount, childOffsets, children, childTypes);
+
+		return new GraphSnapshot(db, nodeIds, denseIds, edgeTypes, typeCodes,
+				parentOffsets, parents, parentTypes, childOffsets, children, childTypes);
+	}
+
+	// Lays out edges from sources to targets in compressed sparse row form.
+	private static void fill(int [] sources, int [] targets, int [] types, int edgeCount,
+			int [] offsets, int [] outTargets, int [] outTypes) {
+		// Count the edges leaving each node.
+		for (int i = 0; i < edgeCount; i++)
+		{
+			offsets[sources[i] + 1]++;
+		}
+		for (int i = 1; i < offsets.length; i++)
+		{
+			offsets[i] += offsets[i - 1];
+		}
+
+		// Drop each edge into the next free slot for its source.
+		int [] next = Arrays.copyOf(offsets, offsets.length - 1);
+		for (int i = 0; i < edgeCount; i++)
+		{
+			int slot = next[sources[i]]++;
+			outTargets[slot] = targets[i];
+			outTypes[slot] = types[i];
+		}
+	}
+
+	/**
+	 * Builds a snapshot with the same nodes, but only the edges a filter
+	 * follows, each turned to go up the way the filter says.
+	 * This should be called on a snapshot which hasn't been restricted.
+	 *
+	 * @param filter	The filter to apply
+	 */
+	public GraphSnapshot restrict(EdgeFilter filter) {
+		// Compile the filter down to the type codes of this snapshot.
+		boolean [] outgoingUp = new boolean [edgeTypes.length];
+		boolean [] incomingUp = new boolean [edgeTypes.length];
+		for (int code = 0; code < edgeTypes.length; code++)
+		{
+			int ordinal = filter.getOrdinal(edgeTypes[code]);
+			outgoingUp[code] = filter.isUp(ordinal, Direction.OUTGOING);
+			incomingUp[code] = filter.isUp(ordinal, Direction.INCOMING);
+		}
+
+		// A node's new parents are the ends of its outgoing edges going up, and
+		// the starts of its incoming edges going up. Children are the reverse.
+		int size = nodeIds.length;
+		int [] newParentOffsets = new int [size + 1];
+		int [] newChildOffsets = new int [size + 1];
+		for (int id = 0; id < size; id++)
+		{
+			newParentOffsets[id + 1] = newParentOffsets[id]
+					+ countEdges(outgoingUp, parentOffsets, parentTypes, id)
+					+ countEdges(incomingUp, childOffsets, childTypes, id);
+			newChildOffsets[id + 1] = newChildOffsets[id]
+					+ countEdges(outgoingUp, childOffsets, childTypes, id)
+					+ countEdges(incomingUp, parentOffsets, parentTypes, id);
+		}
+
+		int [] newParents = new int [newParentOffsets[size]];
+		int [] newParentTypes = new int [newParents.length];
+		int [] newChildren = new int [newChildOffsets[size]];
+		int [] newChildTypes = new int [newChildren.length];
+		for (int id = 0; id < size; id++)
+		{
+			int slot = copyEdges(outgoingUp, parentOffsets, parents, parentTypes, id,
+					newParents, newParentTypes, newParentOffsets[id]);
+			copyEdges(incomingUp, childOffsets, children, childTypes, id, newParents, newParentTypes, slot);
+			slot = copyEdges(outgoingUp, childOffsets, children, childTypes, id,
+					newChildren, newChildTypes, newChildOffsets[id]);
+			copyEdges(incomingUp, parentOffsets, parents, parentTypes, id, newChildren, newChildTypes, slot);
+		}
+
+		return new GraphSnapshot(db, nodeIds, denseIds, edgeTypes, typeCodes,
+				newParentOffsets, newParents, newParentTypes, newChildOffsets, newChildren, newChildTypes);
+	}
+
+	/**
+	 * Builds a snapshot with the same node numbering and no edges, for holding
+	 * on to dense ids once the edges aren't needed. The copy keeps the
+	 * fingerprint of this snapshot.
+	 */
+	public GraphSnapshot withoutEdges() {
+		int [] offsets = new int [nodeIds.length + 1];
+		int [] none = new int [0];
+		GraphSnapshot copy = new GraphSnapshot(db, nodeIds, denseIds, edgeTypes, typeCodes,
+				offsets, none, none, offsets, none, none);
+		copy.savedFingerprint = fingerprint();
+		return copy;
+	}
+
+	private static int countEdges(boolean [] relevantTypes, int [] offsets, int [] types, int id) {
+		int count = 0;
+		for (int edge = offsets[id]; edge < offsets[id + 1]; edge++)
+		{
+			if (relevantTypes[types[edge]])
+			{
+				count++;
+			}
+		}
+		return count;
+	}
+
+	// Copies the relevant edges of a node into place, returning the next free slot.
+	private static int copyEdges(boolean [] relevantTypes, int [] offsets, int [] targets, int [] types, int id,
+			int [] newTargets, int [] newTypes, int slot) {
+		for (int edge = offsets[id]; edge < offsets[id + 1]; edge++)
+		{
+			if (relevantTypes[types[edge]])
+			{
+				newTargets[slot] = targets[edge];
+				newTypes[slot] = types[edge];
+				slot++;
+			}
+		}
+		return slot;
+	}
+
+	/**
+	 * Builds a snapshot with some edges added and others removed.
+	 * The nodes of the snapshot can't change, so every edge must join nodes
+	 * which are already in it.
+	 * 
+	 * Removed edges are read for their endpoints and types, so this must be
+	 * called before they are deleted, or in the transaction deleting them.
+	 *
+	 * @param added		The edges to add
+	 * @param removed	The edges to remove
+	 */
+	public GraphSnapshot patch(Collection<Relationship> added, Collection<Relationship> removed) {
+		RelationshipType [] newEdgeTypes = edgeTypes;
+		Map<String, Integer> newTypeCodes = typeCodes;
+
+		// Note which edges to drop, keyed by their endpoints.
+		Map<Long, List<Integer>> toRemove = new HashMap<>();
+		for (Relationship edge : removed)
+		{
+			int code = getTypeCode(edge.getType().name());
+			if (code < 0)
+			{
+				continue;
+			}
+			long key = edgeKey(requireId(edge.getStartNode()), requireId(edge.getEndNode()));
+			if (!toRemove.containsKey(key))
+			{
+				toRemove.put(key, new ArrayList<Integer>());
+			}
+			toRemove.get(key).add(code);
+		}
+
+		// Copy the edges we're keeping, then the new ones.
+		int [] starts = new int [parents.length + added.size()];
+		int [] ends = new int [starts.length];
+		int [] types = new int [starts.length];
+		int edgeCount = 0;
+		for (int id = 0; id < size(); id++)
+		{
+			for (int edge = parentOffsets[id]; edge < parentOffsets[id + 1]; edge++)
+			{
+				List<Integer> removedTypes = toRemove.get(edgeKey(id, parents[edge]));
+				if (removedTypes != null && removedTypes.remove((Integer) parentTypes[edge]))
+				{
+					continue;
+				}
+				starts[edgeCount] = id;
+				ends[edgeCount] = parents[edge];
+				types[edgeCount] = parentTypes[edge];
+				edgeCount++;
+			}
+		}
+		for (Relationship edge : added)
+		{
+			String typeName = edge.getType().name();
+			if (!newTypeCodes.containsKey(typeName))
+			{
+				// Don't disturb the types shared with other snapshots.
+				if (newTypeCodes == typeCodes)
+				{
+					newTypeCodes = new HashMap<>(typeCodes);
+				}
+				newTypeCodes.put(typeName, newEdgeTypes.length);
+				newEdgeTypes = Arrays.copyOf(newEdgeTypes, newEdgeTypes.length + 1);
+				newEdgeTypes[newEdgeTypes.length - 1] = edge.getType();
+			}
+			starts[edgeCount] = requireId(edge.getStartNode());
+			ends[edgeCount] = requireId(edge.getEndNode());
+			types[edgeCount] = newTypeCodes.get(typeName);
+			edgeCount++;
+		}
+
+		int [] newParentOffsets = new int [parentOffsets.length];
+		int [] newParents = new int [edgeCount];
+		int [] newParentTypes = new int [edgeCount];
+		fill(starts, ends, types, edgeCount, newParentOffsets, newParents, newParentTypes);
+
+		int [] newChildOffsets = new int [childOffsets.length];
+		int [] newChildren = new int [edgeCount];
+		int [] newChildTypes = new int [edgeCount];
+		fill(ends, starts, types, edgeCount, newChildOffsets, newChildren, newChildTypes);
+
+		return new GraphSnapshot(db, nodeIds, denseIds, newEdgeTypes, newTypeCodes,
+				newParentOffsets, newParents, newParentTypes, newChildOffsets, newChildren, newChildTypes);
+	}
+
+	private static long edgeKey(int start, int end) {
+		return ((long) start << 32) | (end & 0xffffffffL);
+	}
+
+	private int requireId(Node n) {
+		int id = getId(n);
+		if (id < 0)
+		{
+			throw new IllegalArgumentException(n + " is not in the snapshot");
+		}
+		return id;
+	}
+
+	/**
+	 * The number of nodes in the snapshot.
+	 */
+	public int size() {
+		return nodeIds.length;
+	}
+
+	/**
+	 * The number of edges in the snapshot.
+	 */
+	public int edgeCount() {
+		return parents.length;
+	}
+
+	/**
+	 * Finds the dense id of a node, or -1 if the node isn't in the snapshot.
+	 *
+	 * @param n	The node whose id we want
+	 */
+	public int getId(Node n) {
+		long id = n.getId();
+		if (id < 0 || id >= denseIds.length)
+		{
+			return -1;
+		}
+		return denseIds[(int) id];
+	}
+
+	/**
+	 * Finds the node with a given dense id.
+	 *
+	 * @param id	The dense id of the node
+	 */
+	public Node getNode(int id) {
+		return db.getNodeById(nodeIds[id]);
+	}
+
+	/**
+	 * Finds the Neo4j id of the node with a given dense id.
+	 *
+	 * @param id	The dense id of the node
+	 */
+	public long getNodeId(int id) {
+		return nodeIds[id];
+	}
+
+	/**
+	 * The number of distinct edge types in the snapshot.
+	 */
+	public int typeCount() {
+		return edgeTypes.length;
+	}
+
+	/**
+	 * Finds the code for an edge type, or -1 if the type doesn't occur.
+	 *
+	 * @param typeName	The name of the edge type
+	 */
+	public int getTypeCode(String typeName) {
+		Integer code = typeCodes.get(typeName);
+		return code == null ? -1 : code;
+	}
+
+	/**
+	 * Finds the edge type with a given code.
+	 *
+	 * @param code	The code of the edge type
+	 */
+	public RelationshipType getType(int code) {
+		return edgeTypes[code];
+	}
+
+	/**
+	 * Whether another snapshot numbers the same nodes with the same dense ids.
+	 * Restricted and patched snapshots keep the numbering they came from.
+	 *
+	 * @param other	The snapshot to compare with
+	 */
+	public boolean hasSameNodes(GraphSnapshot other) {
+		return nodeIds == other.nodeIds || Arrays.equals(nodeIds, other.nodeIds);
+	}
+
+	/**
+	 * Hashes the nodes and edges of the snapshot, to tell whether data saved
+	 * from one graph still matches another. The hash doesn't depend on the
+	 * order nodes or edges were read in.
+	 */
+	public long fingerprint() {
+		if (savedFingerprint != null)
+		{
+			return savedFingerprint;
+		}
+
+		long hash = mix(nodeIds.length) + 31 * mix(parents.length);
+		for (int id = 0; id < nodeIds.length; id++)
+		{
+			hash += mix(nodeIds[id]);
+			for (int edge = parentOffsets[id]; edge < parentOffsets[id + 1]; edge++)
+			{
+				long end = nodeIds[parents[edge]];
+				int type = edgeTypes[parentTypes[edge]].name().hashCode();
+				hash += mix(mix(nodeIds[id]) ^ (end * 0x9e3779b97f4a7c15L) ^ type);
+			}
+		}
+		return hash;
+	}
+
+	// Spreads the bits of a value over the whole word (the MurmurHash3 finalizer).
+	static long mix(long value) {
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb9fe1a85ec53L;
+		value ^= value >>> 33;
+		return value;
+	}
+
+	/**
+	 * Estimates the memory held by the edges of this snapshot.
+	 * The node numbering is shared between related snapshots, so isn't counted.
+	 */
+	public long sizeInBytes() {
+		return 4L * (parentOffsets.length + parents.length + parentTypes.length
+				+ childOffsets.length + children.length + childTypes.length);
+	}
+
+	/**
+	 * Estimates the memory held by the node numbering, which related
+	 * snapshots share.
+	 */
+	public long numberingSizeInBytes() {
+		return 8L * nodeIds.length + 4L * denseIds.length;
+	}
+
+	public GraphDatabaseService getDatabase() {
+		return db;
+	}
+
+}
@@ -0,0 +1,113 @@
+package org.monarch.sim;
+
+import java.util.List;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * This class holds the most informative common ancestor (MICA) of every pair
+ * of nodes from two collections, along with its IC, and reduces them to the
+ * usual scores for comparing the collections.
+ *
+ * Row i is the i-th node of the first collection, and column j the j-th node
+ * of the second. Pairs without a common ancestor have a null MICA and an IC of 0.
+ */
+public class ICMatrix {
+
+	private final List<Node> rows;
+	private final List<Node> columns;
+	final Node [][] micas;
+	final double [][] ic;
+
+	ICMatrix(List<Node> rows, List<Node> columns) {
+		this.rows = rows;
+		this.columns = columns;
+		micas = new Node [rows.size()][columns.size()];
+		ic = new double [rows.size()][columns.size()];
+	}
+
+	public List<Node> getRows() {
+		return rows;
+	}
+
+	public List<Node> getColumns() {
+		return columns;
+	}
+
+	/**
+	 * Finds the MICA of a pair, or null if the pair has no common ancestor.
+	 *
+	 * @param row		The position of the node in the first collection
+	 * @param column	The position of the node in the second collection
+	 */
+	public Node getMICA(int row, int column) {
+		return micas[row][column];
+	}
+
+	/**
+	 * Finds the IC of the MICA of a pair.
+	 *
+	 * @param row		The position of the node in the first collection
+	 * @param column	The position of the node in the second collection
+	 */
+	public double getIC(int row, int column) {
+		return ic[row][column];
+	}
+
+	/**
+	 * The highest IC of any pair, or 0 for an empty matrix.
+	 */
+	public double getMax() {
+		double max = 0;
+		for (double [] row : ic)
+		{
+			for (double score : row)
+			{
+				max = Math.max(max, score);
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * The average IC over all pairs.
+	 */
+	public double getAverage() {
+		double total = 0;
+		for (double [] row : ic)
+		{
+			for (double score : row)
+			{
+				total += score;
+			}
+		}
+		return total / ((double) rows.size() * columns.size());
+	}
+
+	/**
+	 * The best match average: each node is matched with the node on the other
+	 * side giving the highest IC, and the averages from both sides are averaged.
+	 */
+	public double getBestMatchAverage() {
+		double rowTotal = 0;
+		double [] columnBest = new double [columns.size()];
+		for (double [] row : ic)
+		{
+			double rowBest = 0;
+			for (int column = 0; column < row.length; column++)
+			{
+				rowBest = Math.max(rowBest, row[column]);
+				columnBest[column] = Math.max(columnBest[column], row[column]);
+			}
+			rowTotal += rowBest;
+		}
+
+		double columnTotal = 0;
+		for (double best : columnBest)
+		{
+			columnTotal += best;
+		}
+		return (rowTotal / rows.size() + columnTotal / columns.size()) / 2;
+	}
+
+}
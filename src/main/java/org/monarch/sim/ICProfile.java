@@ -0,0 +1,130 @@
+package org.monarch.sim;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * This class holds the IC scores computed under one configuration of edge types.
+ *
+ * Scores are kept in an array indexed by the dense ids of a snapshot, along with
+ * the descendant counts they came from. A profile never changes once built, so
+ * it can be read by any number of threads.
+ *
+ * Profiles saved to disk are read back as MappedICProfiles instead.
+ */
+public class ICProfile implements ICScores {
+
+	private final String name;
+
+	// The snapshot whose dense ids index the arrays, and whether this profile
+	// is the only thing holding on to it.
+	final GraphSnapshot nodes;
+	private final boolean ownsNodes;
+
+	final double [] ic;
+	final int [] counts;
+
+	// The restricted snapshot the counts were taken over, if kept for updates.
+	final GraphSnapshot view;
+	final Collection<String> ignoredEdgeTypes;
+
+	/**
+	 * Builds a profile from scores already computed.
+	 *
+	 * @param name				The name of the profile
+	 * @param nodes				The snapshot whose dense ids index the arrays
+	 * @param ownsNodes			Whether nothing else holds on to that snapshot
+	 * @param ic				The IC of each node
+	 * @param counts			The number of nodes below each node (inclusive)
+	 * @param view				The restricted snapshot the counts were taken over, or null
+	 * @param ignoredEdgeTypes	The edge types ignored on top of the traverser's own
+	 */
+	public ICProfile(String name, GraphSnapshot nodes, boolean ownsNodes, double [] ic, int [] counts,
+			GraphSnapshot view, Collection<String> ignoredEdgeTypes) {
+		this.name = name;
+		this.nodes = nodes;
+		this.ownsNodes = ownsNodes;
+		this.ic = ic;
+		this.counts = counts;
+		this.view = view;
+		this.ignoredEdgeTypes = new ArrayList<>(ignoredEdgeTypes);
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Whether this profile is indexed by the same dense ids as a snapshot.
+	 *
+	 * @param s	The snapshot to compare with
+	 */
+	@Override
+	public boolean isIndexedLike(GraphSnapshot s) {
+		return nodes.hasSameNodes(s);
+	}
+
+	/**
+	 * Finds the IC score for a node, or 0 if the node wasn't scored.
+	 *
+	 * @param n	The node whose IC score we want
+	 */
+	@Override
+	public double getIC(Node n) {
+		int id = nodes.getId(n);
+		return id < 0 ? 0.0 : ic[id];
+	}
+
+	/**
+	 * Finds the number of nodes below a node (inclusive), or 0 if the node
+	 * wasn't counted.
+	 *
+	 * @param n	The node whose descendants we want to count
+	 */
+	@Override
+	public int getDescendantCount(Node n) {
+		int id = nodes.getId(n);
+		return id < 0 ? 0 : counts[id];
+	}
+
+	/**
+	 * The edge types ignored on top of the traverser's own when this profile
+	 * was pushed.
+	 */
+	@Override
+	public Collection<String> getIgnoredEdgeTypes() {
+		return ignoredEdgeTypes;
+	}
+
+	/**
+	 * Finds the IC score for a dense id.
+	 *
+	 * @param id	The dense id of the node
+	 */
+	@Override
+	public double getIC(int id) {
+		return ic[id];
+	}
+
+	/**
+	 * Estimates the memory this profile holds on to. The snapshot numbering its
+	 * nodes is only counted if nothing else holds on to it.
+	 */
+	@Override
+	public long sizeInBytes() {
+		long bytes = 8L * ic.length + 4L * counts.length;
+		if (ownsNodes)
+		{
+			bytes += nodes.sizeInBytes() + nodes.numberingSizeInBytes();
+		}
+		if (view != null)
+		{
+			bytes += view.sizeInBytes();
+		}
+		return bytes;
+	}
+
+}
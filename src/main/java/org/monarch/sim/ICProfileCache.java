@@ -0,0 +1,93 @@
+package org.monarch.sim;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * This class keeps IC profiles by name, up to a memory budget.
+ * When a new profile would go over the budget, the least recently used
+ * profiles are dropped first. The newest profile is always kept, even if it
+ * doesn't fit on its own.
+ */
+public class ICProfileCache {
+
+	private long budget;
+	private long used;
+
+	// Access order puts the least recently used profile first.
+	private LinkedHashMap<String, ICScores> profiles = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * @param budget	The number of bytes the profiles may use
+	 */
+	public ICProfileCache(long budget) {
+		setBudget(budget);
+	}
+
+	public synchronized void setBudget(long budget) {
+		if (budget < 0)
+		{
+			throw new IllegalArgumentException("Budget must not be negative, not " + budget);
+		}
+		this.budget = budget;
+		evict(null);
+	}
+
+	/**
+	 * Finds a profile, or null if it isn't cached.
+	 *
+	 * @param name	The name of the profile
+	 */
+	public synchronized ICScores get(String name) {
+		return profiles.get(name);
+	}
+
+	/**
+	 * Caches a profile, replacing any profile with the same name.
+	 *
+	 * @param profile	The profile to keep
+	 */
+	public synchronized void put(ICScores profile) {
+		ICScores old = profiles.put(profile.getName(), profile);
+		if (old != null)
+		{
+			used -= old.sizeInBytes();
+		}
+		used += profile.sizeInBytes();
+		evict(profile.getName());
+	}
+
+	public synchronized void clear() {
+		profiles.clear();
+		used = 0;
+	}
+
+	/**
+	 * The names of the cached profiles, least recently used first.
+	 */
+	public synchronized List<String> getNames() {
+		return new ArrayList<>(profiles.keySet());
+	}
+
+	public synchronized long getUsedBytes() {
+		return used;
+	}
+
+	// Drops the least recently used profiles until we're within budget.
+	private void evict(String keep) {
+		Iterator<ICScores> it = profiles.values().iterator();
+		while (used > budget && it.hasNext())
+		{
+			ICScores eldest = it.next();
+			if (eldest.getName().equals(keep))
+			{
+				continue;
+			}
+			used -= eldest.sizeInBytes();
+			it.remove();
+		}
+	}
+
+}
@@ -0,0 +1,57 @@
+package org.monarch.sim;
+
+import java.util.Collection;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * IC scores computed under one configuration of edge types, however they're
+ * stored. ICProfile keeps them in arrays on the heap, and MappedICProfile
+ * reads them from a saved file.
+ */
+public interface ICScores {
+
+	public String getName();
+
+	/**
+	 * Whether getIC(int) takes the dense ids of a snapshot.
+	 *
+	 * @param s	The snapshot to compare with
+	 */
+	public boolean isIndexedLike(GraphSnapshot s);
+
+	/**
+	 * Finds the IC score for a node, or 0 if the node wasn't scored.
+	 *
+	 * @param n	The node whose IC score we want
+	 */
+	public double getIC(Node n);
+
+	/**
+	 * Finds the IC score for a dense id. Only valid when the scores are
+	 * indexed like the snapshot the id came from.
+	 *
+	 * @param id	The dense id of the node
+	 */
+	public double getIC(int id);
+
+	/**
+	 * Finds the number of nodes below a node (inclusive), or 0 if the node
+	 * wasn't counted.
+	 *
+	 * @param n	The node whose descendants we want to count
+	 */
+	public int getDescendantCount(Node n);
+
+	/**
+	 * The edge types ignored on top of the traverser's own when the scores
+	 * were pushed.
+	 */
+	public Collection<String> getIgnoredEdgeTypes();
+
+	/**
+	 * Estimates the heap memory these scores hold on to.
+	 */
+	public long sizeInBytes();
+
+}
@@ -0,0 +1,109 @@
+package org.monarch.sim;
+
+import java.util.Arrays;
+
+/**
+ * A reusable max-heap of int ids keyed by double scores, kept in primitive
+ * arrays. Ids with equal scores come out smallest first, so the order is
+ * always the same for the same input.
+ */
+public class IdHeap {
+
+	private int [] ids;
+	private double [] keys;
+	private int size = 0;
+
+	public IdHeap(int capacity) {
+		ids = new int [Math.max(capacity, 1)];
+		keys = new double [ids.length];
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Adds an id to the heap. The same id may be added more than once.
+	 *
+	 * @param id	The id to add
+	 * @param key	Its score
+	 */
+	public void push(int id, double key) {
+		if (size == ids.length)
+		{
+			ids = Arrays.copyOf(ids, 2 * size);
+			keys = Arrays.copyOf(keys, 2 * size);
+		}
+
+		// Move the new entry up until its parent comes before it.
+		int slot = size++;
+		while (slot > 0)
+		{
+			int parent = (slot - 1) >>> 1;
+			if (!before(id, key, ids[parent], keys[parent]))
+			{
+				break;
+			}
+			ids[slot] = ids[parent];
+			keys[slot] = keys[parent];
+			slot = parent;
+		}
+		ids[slot] = id;
+		keys[slot] = key;
+	}
+
+	/**
+	 * The score of the id pop() would return.
+	 */
+	public double peekKey() {
+		return keys[0];
+	}
+
+	/**
+	 * Removes the id with the highest score, or the smallest such id on a tie.
+	 */
+	public int pop() {
+		int top = ids[0];
+		size--;
+		int id = ids[size];
+		double key = keys[size];
+
+		// Move the last entry down from the root until both children come after it.
+		int slot = 0;
+		while (true)
+		{
+			int child = 2 * slot + 1;
+			if (child >= size)
+			{
+				break;
+			}
+			if (child + 1 < size && before(ids[child + 1], keys[child + 1], ids[child], keys[child]))
+			{
+				child++;
+			}
+			if (!before(ids[child], keys[child], id, key))
+			{
+				break;
+			}
+			ids[slot] = ids[child];
+			keys[slot] = keys[child];
+			slot = child;
+		}
+		ids[slot] = id;
+		keys[slot] = key;
+		return top;
+	}
+
+	private static boolean before(int id, double key, int otherId, double otherKey) {
+		return key > otherKey || (key == otherKey && id < otherId);
+	}
+
+}
@@ -0,0 +1,162 @@
+package org.monarch.sim;
+
+import java.util.BitSet;
+
+/**
+ * This class updates descendant counts after the edges of a graph change,
+ * without sweeping the whole graph again.
+ *
+ * Adding or removing an edge only changes the descendants of the edge's upper
+ * end and of everything above it, in either the old or the new graph. Only
+ * the nodes in that cone are recounted, by sweeping up from the bottom of the
+ * graph through the cone, skipping every part of the graph not below it.
+ * When the cone is most of the graph, the whole graph is swept instead.
+ */
+public class IncrementalSweep {
+
+	// Cones bigger than this share of the graph get a full sweep.
+	private static final double FULL_SWEEP_SHARE = 0.5;
+
+	/**
+	 * Finds every node whose descendants may differ between two versions of a graph.
+	 *
+	 * @param oldView	The graph the counts were computed over
+	 * @param newView	The graph we want counts for, with the same nodes
+	 */
+	public static ClosureEngine.Closure getAffected(GraphSnapshot oldView, GraphSnapshot newView) {
+		int size = newView.size();
+		ClosureEngine.Closure oldCone = new ClosureEngine.Closure(size);
+		ClosureEngine.Closure newCone = new ClosureEngine.Closure(size);
+		oldCone.clear(size);
+		newCone.clear(size);
+
+		// Any node whose parents changed may have gained or lost descendants
+		// through each of its old and new parents.
+		for (int id = 0; id < size; id++)
+		{
+			if (!sameParents(oldView, newView, id))
+			{
+				for (int edge = oldView.parentOffsets[id]; edge < oldView.parentOffsets[id + 1]; edge++)
+				{
+					oldCone.add(oldView.parents[edge]);
+					newCone.add(oldView.parents[edge]);
+				}
+				for (int edge = newView.parentOffsets[id]; edge < newView.parentOffsets[id + 1]; edge++)
+				{
+					oldCone.add(newView.parents[edge]);
+					newCone.add(newView.parents[edge]);
+				}
+			}
+		}
+
+		// Everything above those parents is affected as well.
+		addAncestors(oldView, oldCone);
+		addAncestors(newView, newCone);
+		for (int i = 0; i < oldCone.size(); i++)
+		{
+			newCone.add(oldCone.get(i));
+		}
+
+		return newCone;
+	}
+
+	/**
+	 * Recounts the descendants of some nodes (inclusive).
+	 *
+	 * @param view		The graph to count in
+	 * @param affected	The nodes to recount
+	 * @param counts	The counts to update, indexed by dense id
+	 */
+	public static void recount(GraphSnapshot view, ClosureEngine.Closure affected, int [] counts) {
+		recount(view, affected, counts, null);
+	}
+
+	/**
+	 * Recounts the descendants of some nodes (inclusive), leaving some nodes out.
+	 *
+	 * @param view		The graph to count in
+	 * @param affected	The nodes to recount
+	 * @param counts	The counts to update, indexed by dense id
+	 * @param excluded	The dense ids of nodes not to count, or null
+	 */
+	public static void recount(GraphSnapshot view, ClosureEngine.Closure affected, int [] counts, BitSet excluded) {
+		if (affected.size() == 0)
+		{
+			return;
+		}
+		if (affected.size() > FULL_SWEEP_SHARE * view.size())
+		{
+			int [] all = DescendantSweep.count(view, excluded);
+			for (int i = 0; i < affected.size(); i++)
+			{
+				counts[affected.get(i)] = all[affected.get(i)];
+			}
+			return;
+		}
+
+		// Only the cone and what's below it need sweeping.
+		Condensation dag = Condensation.of(view);
+		BitSet marked = new BitSet(dag.size());
+		int [] queue = new int [dag.size()];
+		int tail = 0;
+		for (int i = 0; i < affected.size(); i++)
+		{
+			int component = dag.components[affected.get(i)];
+			if (!marked.get(component))
+			{
+				marked.set(component);
+				queue[tail++] = component;
+			}
+		}
+		for (int head = 0; head < tail; head++)
+		{
+			int next = queue[head];
+			for (int edge = dag.childOffsets[next]; edge < dag.childOffsets[next + 1]; edge++)
+			{
+				int child = dag.children[edge];
+				if (!marked.get(child))
+				{
+					marked.set(child);
+					queue[tail++] = child;
+				}
+			}
+		}
+
+		int [] componentCounts = DescendantSweep.count(dag, marked, excluded);
+		for (int i = 0; i < affected.size(); i++)
+		{
+			counts[affected.get(i)] = componentCounts[dag.components[affected.get(i)]];
+		}
+	}
+
+	private static boolean sameParents(GraphSnapshot oldView, GraphSnapshot newView, int id) {
+		int oldStart = oldView.parentOffsets[id];
+		int newStart = newView.parentOffsets[id];
+		int count = oldView.parentOffsets[id + 1] - oldStart;
+		if (newView.parentOffsets[id + 1] - newStart != count)
+		{
+			return false;
+		}
+		for (int i = 0; i < count; i++)
+		{
+			if (oldView.parents[oldStart + i] != newView.parents[newStart + i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Grows a set of nodes to include everything above them.
+	private static void addAncestors(GraphSnapshot view, ClosureEngine.Closure nodes) {
+		for (int head = 0; head < nodes.size(); head++)
+		{
+			int next = nodes.get(head);
+			for (int edge = view.parentOffsets[next]; edge < view.parentOffsets[next + 1]; edge++)
+			{
+				nodes.add(view.parents[edge]);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,160 @@
+package org.monarch.sim;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from non-negative long keys, such as Neo4j node ids, to int
+ * values, kept in primitive arrays with open addressing.
+ *
+ * Missing keys have the value 0. Entries are visited by slot: every slot
+ * below getCapacity() whose key is not -1 holds an entry.
+ */
+public class LongIntMap {
+
+	private static final long EMPTY = -1;
+
+	private long [] keys;
+	private int [] values;
+	private int size = 0;
+
+	public LongIntMap() {
+		this(16);
+	}
+
+	/**
+	 * Sets up an empty map.
+	 *
+	 * @param expected	The number of entries to make room for
+	 */
+	public LongIntMap(int expected) {
+		int capacity = 16;
+		while (capacity < 2 * expected)
+		{
+			capacity <<= 1;
+		}
+		keys = new long [capacity];
+		Arrays.fill(keys, EMPTY);
+		values = new int [capacity];
+	}
+
+	// Finds the slot holding a key, or the empty slot where it belongs.
+	private int getSlot(long key) {
+		int mask = keys.length - 1;
+		int slot = (int) GraphSnapshot.mix(key) & mask;
+		while (keys[slot] != EMPTY && keys[slot] != key)
+		{
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Finds the value of a key, or 0 if it's missing. Negative keys are always
+	 * missing.
+	 *
+	 * @param key	The key
+	 */
+	public int get(long key) {
+		// The empty marker is negative, so it mustn't be looked up.
+		if (key < 0)
+		{
+			return 0;
+		}
+		int slot = getSlot(key);
+		return keys[slot] == key ? values[slot] : 0;
+	}
+
+	public boolean containsKey(long key) {
+		return key >= 0 && keys[getSlot(key)] == key;
+	}
+
+	public void put(long key, int value) {
+		checkKey(key);
+		int slot = getSlot(key);
+		if (keys[slot] != key)
+		{
+			keys[slot] = key;
+			size++;
+			if (2 * size > keys.length)
+			{
+				grow();
+				slot = getSlot(key);
+			}
+		}
+		values[slot] = value;
+	}
+
+	/**
+	 * Adds to the value of a key.
+	 *
+	 * @param key	The key
+	 * @param delta	The amount to add
+	 * @return		The new value
+	 */
+	public int add(long key, int delta) {
+		checkKey(key);
+		int value = get(key) + delta;
+		put(key, value);
+		return value;
+	}
+
+	private static void checkKey(long key) {
+		if (key < 0)
+		{
+			throw new IllegalArgumentException("Keys must not be negative, not " + key);
+		}
+	}
+
+	private void grow() {
+		long [] oldKeys = keys;
+		int [] oldValues = values;
+		keys = new long [2 * oldKeys.length];
+		Arrays.fill(keys, EMPTY);
+		values = new int [keys.length];
+		for (int i = 0; i < oldKeys.length; i++)
+		{
+			if (oldKeys[i] != EMPTY)
+			{
+				int slot = getSlot(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		Arrays.fill(keys, EMPTY);
+		size = 0;
+	}
+
+	/**
+	 * The number of slots, some of which may be empty.
+	 */
+	public int getCapacity() {
+		return keys.length;
+	}
+
+	/**
+	 * Finds the key in a slot.
+	 *
+	 * @param slot	The slot
+	 * @return		The key, or -1 if the slot is empty
+	 */
+	public long getKey(int slot) {
+		return keys[slot];
+	}
+
+	/**
+	 * Finds the value in a slot.
+	 *
+	 * @param slot	The slot
+	 */
+	public int getValue(int slot) {
+		return values[slot];
+	}
+
+}
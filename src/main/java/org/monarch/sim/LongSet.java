@@ -0,0 +1,103 @@
+package org.monarch.sim;
+
+import java.util.Arrays;
+
+/**
+ * A hash set of non-negative longs, such as Neo4j node ids, kept in a
+ * primitive array with open addressing.
+ */
+public class LongSet {
+
+	private static final long EMPTY = -1;
+
+	private long [] keys;
+	private int size = 0;
+
+	public LongSet() {
+		this(16);
+	}
+
+	/**
+	 * Sets up an empty set.
+	 *
+	 * @param expected	The number of values to make room for
+	 */
+	public LongSet(int expected) {
+		int capacity = 16;
+		while (capacity < 2 * expected)
+		{
+			capacity <<= 1;
+		}
+		keys = new long [capacity];
+		Arrays.fill(keys, EMPTY);
+	}
+
+	// Finds the slot holding a value, or the empty slot where it belongs.
+	private int getSlot(long value) {
+		int mask = keys.length - 1;
+		int slot = (int) GraphSnapshot.mix(value) & mask;
+		while (keys[slot] != EMPTY && keys[slot] != value)
+		{
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Whether a value is in the set. Negative values never are.
+	 *
+	 * @param value	The value
+	 */
+	public boolean contains(long value) {
+		// The empty marker is negative, so it mustn't be looked up.
+		return value >= 0 && keys[getSlot(value)] == value;
+	}
+
+	/**
+	 * Adds a value to the set.
+	 *
+	 * @param value	The value
+	 * @return		Whether the value was new
+	 */
+	public boolean add(long value) {
+		if (value < 0)
+		{
+			throw new IllegalArgumentException("Values must not be negative, not " + value);
+		}
+		int slot = getSlot(value);
+		if (keys[slot] == value)
+		{
+			return false;
+		}
+		keys[slot] = value;
+		size++;
+		if (2 * size > keys.length)
+		{
+			grow();
+		}
+		return true;
+	}
+
+	private void grow() {
+		long [] oldKeys = keys;
+		keys = new long [2 * oldKeys.length];
+		Arrays.fill(keys, EMPTY);
+		for (long value : oldKeys)
+		{
+			if (value != EMPTY)
+			{
+				keys[getSlot(value)] = value;
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		Arrays.fill(keys, EMPTY);
+		size = 0;
+	}
+
+}
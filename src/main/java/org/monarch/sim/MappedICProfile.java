@@ -0,0 +1,256 @@
+package org.monarch.sim;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * This class reads an IC profile straight from a memory-mapped file, so scores
+ * computed once can be reused without pushing the graph again.
+ *
+ * The file starts with a header:
+ *   magic number, format version, fingerprint of the graph (see
+ *   GraphSnapshot.fingerprint()), the total node count used for the scores,
+ *   the number of records, the profile name and the ignored edge types.
+ * After padding to a multiple of 8 bytes come one double IC score per record,
+ * then one int descendant count per record. Records are indexed by Neo4j id;
+ * ids without a node have a NaN score and a count of 0.
+ *
+ * A profile opened with a snapshot also looks scores up by that snapshot's
+ * dense ids, going through its mapping to Neo4j ids.
+ */
+public class MappedICProfile implements ICScores {
+
+	private static final int MAGIC = 0x4d534943;
+	private static final int VERSION = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final String name;
+	private final Collection<String> ignoredEdgeTypes;
+
+	// The snapshot whose dense ids getIC(int) takes, if any.
+	private final GraphSnapshot nodes;
+
+	private final long fingerprint;
+	private final int totalNodes;
+	private final int recordCount;
+	private final ByteBuffer buffer;
+	private final int icOffset;
+	private final int countOffset;
+
+	private MappedICProfile(String name, Collection<String> ignoredEdgeTypes, GraphSnapshot nodes,
+			long fingerprint, int totalNodes, int recordCount, ByteBuffer buffer, int icOffset) {
+		this.name = name;
+		this.ignoredEdgeTypes = ignoredEdgeTypes;
+		this.nodes = nodes;
+		this.fingerprint = fingerprint;
+		this.totalNodes = totalNodes;
+		this.recordCount = recordCount;
+		this.buffer = buffer;
+		this.icOffset = icOffset;
+		this.countOffset = icOffset + 8 * recordCount;
+	}
+
+	/**
+	 * Saves a profile to a file.
+	 *
+	 * @param file			The file to write
+	 * @param profile		The profile to save
+	 * @param totalNodes	The total node count the scores were computed with
+	 */
+	public static void write(File file, ICProfile profile, int totalNodes) throws IOException {
+		GraphSnapshot nodes = profile.nodes;
+
+		long maxId = -1;
+		for (int id = 0; id < nodes.size(); id++)
+		{
+			maxId = Math.max(maxId, nodes.getNodeId(id));
+		}
+		int recordCount = (int) (maxId + 1);
+
+		// Lay the scores out by Neo4j id.
+		double [] ic = new double [recordCount];
+		int [] counts = new int [recordCount];
+		Arrays.fill(ic, Double.NaN);
+		for (int id = 0; id < nodes.size(); id++)
+		{
+			ic[(int) nodes.getNodeId(id)] = profile.ic[id];
+			counts[(int) nodes.getNodeId(id)] = profile.counts[id];
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(nodes.fingerprint());
+			out.writeInt(totalNodes);
+			out.writeInt(recordCount);
+			writeString(out, profile.getName());
+			out.writeInt(profile.ignoredEdgeTypes.size());
+			for (String edgeType : profile.ignoredEdgeTypes)
+			{
+				writeString(out, edgeType);
+			}
+			while (out.size() % 8 != 0)
+			{
+				out.writeByte(0);
+			}
+
+			for (double score : ic)
+			{
+				out.writeDouble(score);
+			}
+			for (int count : counts)
+			{
+				out.writeInt(count);
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		byte [] bytes = str.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Maps a saved profile into memory.
+	 *
+	 * @param file	The file written by write()
+	 * @param nodes	The snapshot whose dense ids to accept, or null for none
+	 */
+	public static MappedICProfile open(File file, GraphSnapshot nodes) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		MappedByteBuffer buffer;
+		try
+		{
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		}
+		finally
+		{
+			// The mapping stays valid once the file is closed.
+			raf.close();
+		}
+
+		if (buffer.remaining() < 24 || buffer.getInt() != MAGIC)
+		{
+			throw new IOException(file + " is not an IC file");
+		}
+		int version = buffer.getInt();
+		if (version != VERSION)
+		{
+			throw new IOException(file + " has version " + version + ", not " + VERSION);
+		}
+		long fingerprint = buffer.getLong();
+		int totalNodes = buffer.getInt();
+		int recordCount = buffer.getInt();
+		String name = readString(buffer);
+		int ignoredCount = buffer.getInt();
+		List<String> ignoredEdgeTypes = new ArrayList<>();
+		for (int i = 0; i < ignoredCount; i++)
+		{
+			ignoredEdgeTypes.add(readString(buffer));
+		}
+		int icOffset = (buffer.position() + 7) & ~7;
+
+		if (buffer.capacity() != icOffset + 12L * recordCount)
+		{
+			throw new IOException(file + " is truncated");
+		}
+		return new MappedICProfile(name, ignoredEdgeTypes, nodes, fingerprint, totalNodes, recordCount,
+				buffer, icOffset);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte [] bytes = new byte [buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * The fingerprint of the graph the scores were computed over.
+	 */
+	public long getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * The total node count the scores were computed with.
+	 */
+	public int getTotalNodes() {
+		return totalNodes;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public boolean isIndexedLike(GraphSnapshot s) {
+		return nodes != null && nodes.hasSameNodes(s);
+	}
+
+	@Override
+	public double getIC(Node n) {
+		return getIC(n.getId());
+	}
+
+	@Override
+	public double getIC(int id) {
+		if (nodes == null)
+		{
+			throw new IllegalStateException(name + " was opened without a snapshot");
+		}
+		return getIC(nodes.getNodeId(id));
+	}
+
+	private double getIC(long nodeId) {
+		if (nodeId < 0 || nodeId >= recordCount)
+		{
+			return 0.0;
+		}
+		double ic = buffer.getDouble(icOffset + 8 * (int) nodeId);
+		return Double.isNaN(ic) ? 0.0 : ic;
+	}
+
+	@Override
+	public int getDescendantCount(Node n) {
+		long id = n.getId();
+		if (id < 0 || id >= recordCount)
+		{
+			return 0;
+		}
+		return buffer.getInt(countOffset + 4 * (int) id);
+	}
+
+	@Override
+	public Collection<String> getIgnoredEdgeTypes() {
+		return ignoredEdgeTypes;
+	}
+
+	@Override
+	public long sizeInBytes() {
+		// The scores live outside the heap.
+		return 0;
+	}
+
+}
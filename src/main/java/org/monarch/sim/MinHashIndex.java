@@ -0,0 +1,175 @@
+package org.monarch.sim;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * This class finds the profiles of a corpus which probably share many
+ * ancestors with a query, so exact scoring can skip the rest.
+ *
+ * Each profile's ancestors are summarized by a MinHash signature: for each of
+ * bands * rows hash functions, the smallest hash of any ancestor. Two profiles
+ * agree on any one position with probability equal to the Jaccard similarity
+ * of their ancestors. The signatures are cut into bands of rows, and profiles
+ * whose signatures match the query's on a whole band become candidates.
+ * Candidates are then ranked by how many positions agree.
+ *
+ * More rows per band let fewer unrelated profiles through, and more bands
+ * miss fewer related ones. Each band is kept as a sorted array of keys, which
+ * pack the band's hash above the profile's position in the corpus.
+ */
+public class MinHashIndex {
+
+	private final ProfileCorpus corpus;
+	private final SimilarityEngine similarity;
+	private final int bands;
+	private final int rows;
+	private final long [] seeds;
+
+	// The signature of profile p is at p * bands * rows.
+	private final int [] signatures;
+	private final long [][] bandKeys;
+
+	/**
+	 * Signs every profile of a corpus.
+	 *
+	 * @param corpus	The corpus, which must not change afterwards
+	 * @param bands		The number of bands
+	 * @param rows		The number of hashes in each band
+	 * @param seed		The seed for picking hash functions
+	 */
+	public MinHashIndex(ProfileCorpus corpus, int bands, int rows, long seed) {
+		if (bands < 1 || rows < 1)
+		{
+			throw new IllegalArgumentException("Bands and rows must be positive");
+		}
+
+		this.corpus = corpus;
+		this.similarity = corpus.getSimilarityEngine();
+		this.bands = bands;
+		this.rows = rows;
+		Random random = new Random(seed);
+		seeds = new long [bands * rows];
+		for (int i = 0; i < seeds.length; i++)
+		{
+			seeds[i] = random.nextLong();
+		}
+
+		int size = corpus.size();
+		signatures = new int [size * seeds.length];
+		int [] signature = new int [seeds.length];
+		for (int profile = 0; profile < size; profile++)
+		{
+			Arrays.fill(signature, Integer.MAX_VALUE);
+			for (int id : corpus.unionAncestors.get(profile))
+			{
+				sign(id, signature);
+			}
+			System.arraycopy(signature, 0, signatures, profile * seeds.length, seeds.length);
+		}
+
+		bandKeys = new long [bands][size];
+		for (int band = 0; band < bands; band++)
+		{
+			for (int profile = 0; profile < size; profile++)
+			{
+				bandKeys[band][profile] = getKey(signatures, profile * seeds.length, band) | profile;
+			}
+			Arrays.sort(bandKeys[band]);
+		}
+	}
+
+	// Lowers each position of a signature to the hash of an ancestor if smaller.
+	private void sign(int id, int [] signature) {
+		for (int i = 0; i < seeds.length; i++)
+		{
+			int hash = (int) (GraphSnapshot.mix(id ^ seeds[i]) >>> 32);
+			if (hash < signature[i])
+			{
+				signature[i] = hash;
+			}
+		}
+	}
+
+	// Hashes one band of a signature into the top half of a key.
+	private long getKey(int [] signature, int offset, int band) {
+		long hash = band;
+		for (int row = band * rows; row < (band + 1) * rows; row++)
+		{
+			hash = GraphSnapshot.mix(hash * 0x9e3779b97f4a7c15L + (signature[offset + row] & 0xffffffffL));
+		}
+		return hash & 0xffffffff00000000L;
+	}
+
+	/**
+	 * Finds the corpus profiles which match a query on at least one band, as
+	 * positions in the corpus.
+	 *
+	 * @param query	The terms of the query profile
+	 * @param limit	The most candidates to return
+	 * @return		The candidates, with the most signature positions agreeing first
+	 */
+	public int [] getCandidates(Collection<Node> query, int limit) {
+		int [] signature = new int [seeds.length];
+		Arrays.fill(signature, Integer.MAX_VALUE);
+		SimilarityEngine.AncestorSet ancestors = similarity.getProfile(query).union;
+		for (int w = ancestors.from; w < ancestors.to; w++)
+		{
+			long word = ancestors.words[w];
+			while (word != 0)
+			{
+				sign((w << 6) + Long.numberOfTrailingZeros(word), signature);
+				word &= word - 1;
+			}
+		}
+
+		// Collect everything sharing a band, and rank it by agreement.
+		boolean [] seen = new boolean [corpus.size()];
+		TopK best = new TopK(Math.max(limit, 1));
+		for (int band = 0; band < bands; band++)
+		{
+			long key = getKey(signature, 0, band);
+			long [] keys = bandKeys[band];
+			int i = Arrays.binarySearch(keys, key);
+			if (i < 0)
+			{
+				i = -i - 1;
+			}
+			for (; i < keys.length && (keys[i] & 0xffffffff00000000L) == key; i++)
+			{
+				int profile = (int) keys[i];
+				if (!seen[profile])
+				{
+					seen[profile] = true;
+					best.push(profile, estimateJaccard(signature, profile));
+				}
+			}
+		}
+
+		best.sort();
+		int [] candidates = new int [Math.min(best.size(), limit)];
+		for (int rank = 0; rank < candidates.length; rank++)
+		{
+			candidates[rank] = best.getId(rank);
+		}
+		return candidates;
+	}
+
+	// The share of signature positions on which a profile agrees with a query.
+	private double estimateJaccard(int [] signature, int profile) {
+		int offset = profile * seeds.length;
+		int agreed = 0;
+		for (int i = 0; i < seeds.length; i++)
+		{
+			if (signatures[offset + i] == signature[i])
+			{
+				agreed++;
+			}
+		}
+		return (double) agreed / seeds.length;
+	}
+
+}
@@ -1,14 +1,18 @@
 package org.monarch.sim;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Pattern;
 
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
@@ -22,25 +26,86 @@ import org.neo4j.tooling.GlobalGraphOperations;
  * In particular, it supports finding children, parents, descendants, ancestors,
  * IC scores, LCS, and shortest paths.
  * 
- * NaiveTraversers may restrict the types of edges used.
+ * NaiveTraversers may restrict the types of edges used, and which way is up
+ * along each type (see EdgeFilter).
  * Changing the edge types invalidates the previously computed IC scores, and
- * pushAllNodes() must be called to recompute them.
+ * pushAllNodes() must be called to recompute them. A traverser with a snapshot
+ * can instead call updateIC(), which only recomputes the scores that changed.
+ * 
+ * Each push saves its scores as a profile named after the edge types it used.
+ * Several profiles are cached side by side, up to a memory budget, and any of
+ * them may be picked per query by name. The most recent push is used by default.
+ * The default profile can be saved with saveIC() and mapped back by a later
+ * process with loadIC().
+ * 
+ * Anonymous nodes (those with a numeric fragment) are found once, when the
+ * traverser is built, and are never picked as an LCS. They may optionally be
+ * left out of the node counts behind IC scores as well.
+ * 
+ * A NaiveTraverser may instead walk an in-memory snapshot of the graph, which
+ * is taken once at construction. Changes to the database made after that
+ * aren't seen by the traverser. With a snapshot, the ancestors of as many nodes
+ * as fit in setClosureBudget() are stored up front (see ClosureIndex).
  * 
  * @author spikeharris
  */
 public class NaiveTraverser {
 	
+	// FIXME: Hack to ignore garbage nodes. Blank nodes get numeric fragments.
+	private static final Pattern ANONYMOUS_FRAGMENT = Pattern.compile("-?\\d+");
+	
 	private GraphDatabaseService db;
 	private int totalNodes;
+	
+	// The Neo4j ids of the anonymous nodes, and whether IC ignores them.
+	private BitSet anonymousNodes = new BitSet();
+	private boolean excludeAnonymous;
 
-	// This traverser should be able to handle arbitrary inclusion or exclusion
-	// of edge types.
-	// FIXME: Handle direction.
-	private Map<String, RelationshipType> edgeTypeMap;
-	private Set<RelationshipType> relevantEdgeTypes;
-	private boolean includeEdges;
+	// Which edges this traverser follows, and which way is up along them.
+	private EdgeFilter filter;
+	
+	// The full snapshot, and the snapshot restricted to the relevant edge types.
+	private GraphSnapshot snapshot;
+	private GraphSnapshot view;
+	private ClosureEngine engine;
 	
-	private Map<Node, Double> icMap;
+	// What a profile counted along the view's edges would be named.
+	private String viewProfileName;
+	private ReachabilityIndex reachability;
+	private TreeLCA trees;
+	
+	// The stored ancestor sets, if we were given a budget for them.
+	private long closureBudget = 0;
+	private ClosureIndex closures;
+	
+	// Finds paths through the database when the snapshot can't.
+	private PathSearch storePaths = new PathSearch() {
+		@Override
+		protected Iterable<Node> getParents(Node n) {
+			return getDirectedNeighbors(n, Direction.OUTGOING);
+		}
+		
+		@Override
+		protected Iterable<Node> getChildren(Node n) {
+			return getDirectedNeighbors(n, Direction.INCOMING);
+		}
+	};
+	
+	// Each thread's heap for finding the LCS in the snapshot.
+	private static final ThreadLocal<IdHeap> lcsHeaps = new ThreadLocal<IdHeap>() {
+		@Override
+		protected IdHeap initialValue() {
+			return new IdHeap(64);
+		}
+	};
+	
+	// How many threads pushAllNodes() may use.
+	private int parallelism = 1;
+	
+	// IC scores under each edge type configuration we've pushed, and the
+	// profile used when a query doesn't name one.
+	private ICProfileCache profiles = new ICProfileCache(Runtime.getRuntime().maxMemory() / 4);
+	private volatile ICScores currentProfile;
 	
 	/**
 	 * Constructs a traverser to walk through a Neo4j database.
@@ -49,23 +114,52 @@ public class NaiveTraverser {
 	 * @param db	The database to traverse
 	 */
 	public NaiveTraverser(GraphDatabaseService db) {
+		this(db, false);
+	}
+	
+	/**
+	 * Constructs a traverser to walk through a Neo4j database.
+	 * By default, this traverses all types of edges.
+	 * 
+	 * @param db			The database to traverse
+	 * @param useSnapshot	Whether to walk an in-memory snapshot instead of the database
+	 */
+	public NaiveTraverser(GraphDatabaseService db, boolean useSnapshot) {
+		this(db, useSnapshot, false);
+	}
+	
+	/**
+	 * Constructs a traverser to walk through a Neo4j database.
+	 * By default, this traverses all types of edges.
+	 * 
+	 * @param db				The database to traverse
+	 * @param useSnapshot		Whether to walk an in-memory snapshot instead of the database
+	 * @param excludeAnonymous	Whether to leave anonymous nodes out of IC scores
+	 */
+	public NaiveTraverser(GraphDatabaseService db, boolean useSnapshot, boolean excludeAnonymous) {
 		this.db = db;
+		this.excludeAnonymous = excludeAnonymous;
+		if (useSnapshot)
+		{
+			snapshot = GraphSnapshot.build(db);
+		}
 		
 		Iterable<Node> nodes = GlobalGraphOperations.at(this.db).getAllNodes();
 		// Neo4j uses a dummy node. Ignore it.
 		totalNodes = -1;
-		icMap = new HashMap<>();
 		for (Node n : nodes)
 		{
 			totalNodes++;
-			icMap.put(n, 0.0);
+			if (hasAnonymousFragment(n))
+			{
+				anonymousNodes.set(ClosureEngine.getIndex(n));
+			}
 		}
-		
-		edgeTypeMap = new HashMap<>();
-		for (RelationshipType edgeType : GlobalGraphOperations.at(this.db).getAllRelationshipTypes())
+		if (excludeAnonymous)
 		{
-			edgeTypeMap.put(edgeType.name(), edgeType);
+			totalNodes -= anonymousNodes.cardinality();
 		}
+		
 		includeAllEdgeTypes();
 	}
 	
@@ -75,15 +169,7 @@ public class NaiveTraverser {
 	 * @param edgeTypes	The names of the types of edges we want to include
 	 */
 	public void includeEdgeTypes(Collection<String> edgeTypes) {
-		includeEdges = true;
-		relevantEdgeTypes = new HashSet<>();
-		for (String edgeType : edgeTypes)
-		{
-			if (edgeTypeMap.containsKey(edgeType))
-			{
-				relevantEdgeTypes.add(edgeTypeMap.get(edgeType));
-			}
-		}
+		setEdgeFilter(EdgeFilter.including(edgeTypes));
 	}
 	
 	/**
@@ -99,27 +185,125 @@ public class NaiveTraverser {
 	 * @param edgeTypes	The names of the types of edges we want to exclude
 	 */
 	public void excludeEdgeTypes(Collection<String> edgeTypes) {
-		includeEdges = false;
-		relevantEdgeTypes = new HashSet<>();
-		for (String edgeType : edgeTypes)
+		setEdgeFilter(EdgeFilter.excluding(edgeTypes));
+	}
+	
+	/**
+	 * Follows a type of edge, going up in the given direction. For example,
+	 * part_of goes up along OUTGOING edges, while has_part goes up along
+	 * INCOMING ones.
+	 * 
+	 * @param edgeType	The name of the type of edge
+	 * @param up		OUTGOING, INCOMING or BOTH
+	 */
+	public void setUpDirection(String edgeType, Direction up) {
+		setEdgeFilter(filter.withDirection(edgeType, up));
+	}
+	
+	/**
+	 * Replaces the filter deciding which edges this traverser follows.
+	 * 
+	 * @param filter	The new filter
+	 */
+	public void setEdgeFilter(EdgeFilter filter) {
+		this.filter = filter;
+		updateView();
+	}
+	
+	public EdgeFilter getEdgeFilter() {
+		return filter;
+	}
+	
+	private void updateView() {
+		if (snapshot == null)
+		{
+			return;
+		}
+		
+		view = snapshot.restrict(filter);
+		viewProfileName = getProfileName(getTypeNames(snapshot), filter);
+		engine = new ClosureEngine(view);
+		buildClosureIndex();
+	}
+	
+	/**
+	 * Stores the ancestors of as many nodes as fit in a budget, so that
+	 * getAncestors(), getCommonAncestors() and getLCS() can look them up
+	 * instead of searching. Nodes which don't fit are searched as usual.
+	 * This only has an effect with a snapshot, and is rebuilt whenever the
+	 * edges change.
+	 * 
+	 * @param bytes	The number of bytes the stored ancestors may take, or 0 for none
+	 */
+	public void setClosureBudget(long bytes) {
+		if (bytes < 0)
+		{
+			throw new IllegalArgumentException("Budget must not be negative, not " + bytes);
+		}
+		closureBudget = bytes;
+		buildClosureIndex();
+	}
+	
+	private void buildClosureIndex() {
+		if (view == null || closureBudget == 0)
+		{
+			closures = null;
+			return;
+		}
+		
+		if (parallelism > 1)
 		{
-			if (edgeTypeMap.containsKey(edgeType))
+			ForkJoinPool pool = new ForkJoinPool(parallelism);
+			try
+			{
+				closures = ClosureIndex.build(view, closureBudget, pool);
+			}
+			finally
 			{
-				relevantEdgeTypes.add(edgeTypeMap.get(edgeType));
+				pool.shutdown();
 			}
 		}
+		else
+		{
+			closures = ClosureIndex.build(view, closureBudget, null);
+		}
+	}
+	
+	// The stored ancestors of a node, or null if we have to search.
+	private int [] getStoredAncestors(int id) {
+		return closures == null || id < 0 ? null : closures.getAncestors(id);
+	}
+	
+	/**
+	 * Gets the engine which finds closures in the snapshot, restricted to the
+	 * current edge types. This is null if the traverser doesn't use a snapshot.
+	 */
+	public ClosureEngine getClosureEngine() {
+		return engine;
+	}
+	
+	private Set<Node> toNodes(int [] ids, int from, int to) {
+		Set<Node> nodes = new HashSet<>();
+		for (int i = from; i < to; i++)
+		{
+			nodes.add(view.getNode(ids[i]));
+		}
+		return nodes;
 	}
 	
 	private Set<Node> getDirectedNeighbors(Node n, Direction dir) {
-		Set<Node> neighbors = new HashSet<>();
-		for (Relationship edge : n.getRelationships(dir))
+		int id = view == null ? -1 : view.getId(n);
+		if (id >= 0)
 		{
-			if (relevantEdgeTypes.contains(edge.getType()) == includeEdges)
+			if (dir == Direction.OUTGOING)
 			{
-				neighbors.add(edge.getOtherNode(n));
+				return toNodes(view.parents, view.parentOffsets[id], view.parentOffsets[id + 1]);
 			}
+			return toNodes(view.children, view.childOffsets[id], view.childOffsets[id + 1]);
 		}
 		
+		Set<Node> neighbors = new HashSet<>();
+		filter.addNeighbors(n, dir == Direction.OUTGOING, neighbors);
 		return neighbors;
 	}
 	
@@ -142,6 +326,20 @@ public class NaiveTraverser {
 	}
 	
 	private Set<Node> getDirectedDescendants(Node n, Direction dir) {
+		int id = view == null ? -1 : view.getId(n);
+		int [] stored = dir == Direction.OUTGOING ? getStoredAncestors(id) : null;
+		if (stored != null)
+		{
+			return toNodes(stored, 0, stored.length);
+		}
+		if (id >= 0)
+		{
+			ClosureEngine.Closure closure = dir == Direction.OUTGOING
+					? engine.getAncestors(id, 0)
+					: engine.getDescendants(id, 0);
+			return toNodes(closure.ids(), 0, closure.size());
+		}
+		
 		Set<Node> descendants = new HashSet<>();
 		descendants.add(n);
 		
@@ -182,118 +380,361 @@ public class NaiveTraverser {
 	}
 	
 	/**
-	 * Counts the nodes anywhere below each node.
+	 * Finds all nodes anywhere above both of two nodes (inclusive).
 	 * 
-	 * @param ignoredEdgeTypes	Any additional edge types we don't want to use
+	 * @param first		One of the nodes
+	 * @param second	The other node
 	 */
-	public void pushAllNodes(Collection<String> ignoredEdgeTypes) {
-		// To temporarily change the valid edge types, we need to save the old values.
-		Set<RelationshipType> oldRelevantEdgeTypes = relevantEdgeTypes;
+	public Set<Node> getCommonAncestors(Node first, Node second) {
+		int [] firstAncestors = getStoredAncestors(view == null ? -1 : view.getId(first));
+		int [] secondAncestors = getStoredAncestors(view == null ? -1 : view.getId(second));
+		if (firstAncestors != null && secondAncestors != null)
+		{
+			int [] common = ClosureIndex.intersect(firstAncestors, secondAncestors);
+			return toNodes(common, 0, common.length);
+		}
+		
+		Set<Node> common = getAncestors(first);
+		common.retainAll(getAncestors(second));
+		return common;
+	}
+	
+	/**
+	 * Whether one node is anywhere above another (inclusive).
+	 * With a snapshot, the first call labels it so that later calls take
+	 * near-constant time instead of finding a closure.
+	 * 
+	 * @param ancestor		The node which may be above
+	 * @param descendant	The node which may be below
+	 */
+	public boolean isAncestor(Node ancestor, Node descendant) {
+		int ancestorId = view == null ? -1 : view.getId(ancestor);
+		int descendantId = view == null ? -1 : view.getId(descendant);
+		if (ancestorId >= 0 && descendantId >= 0)
+		{
+			return getReachabilityIndex().isAncestor(ancestorId, descendantId);
+		}
 		
-		// Set the edge types temporarily.
-		Set<RelationshipType> newRelevantEdgeTypes = new HashSet<>();
-		for (String typeName : ignoredEdgeTypes)
+		// Walk up until we find the ancestor.
+		Set<Node> visited = new HashSet<>();
+		visited.add(descendant);
+		Queue<Node> toExpand = new ArrayDeque<>();
+		toExpand.add(descendant);
+		while (! toExpand.isEmpty())
 		{
-			if (edgeTypeMap.containsKey(typeName))
+			Node next = toExpand.remove();
+			if (next.equals(ancestor))
 			{
-				newRelevantEdgeTypes.add(edgeTypeMap.get(typeName));
+				return true;
+			}
+			for (Node parent : getParents(next))
+			{
+				if (visited.add(parent))
+				{
+					toExpand.add(parent);
+				}
 			}
 		}
-		
-		relevantEdgeTypes = new HashSet<>(oldRelevantEdgeTypes);
-		if (includeEdges)
+		return false;
+	}
+	
+	private synchronized ReachabilityIndex getReachabilityIndex() {
+		// Label the view the first time it's needed.
+		if (reachability == null || reachability.getView() != view)
 		{
-			relevantEdgeTypes.removeAll(newRelevantEdgeTypes);
+			reachability = new ReachabilityIndex(view);
 		}
-		else
+		return reachability;
+	}
+	
+	private synchronized TreeLCA getTreeLCA() {
+		// Tour the view the first time it's needed.
+		if (trees == null || trees.getView() != view)
 		{
-			relevantEdgeTypes.addAll(newRelevantEdgeTypes);
+			trees = new TreeLCA(view);
 		}
+		return trees;
+	}
+	
+	/**
+	 * Sets how many threads pushAllNodes() and setClosureBudget() may use.
+	 * With more than one, nodes on the same topological level are handled in parallel.
+	 * 
+	 * @param parallelism	The number of threads to use
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1)
+		{
+			throw new IllegalArgumentException("Parallelism must be positive, not " + parallelism);
+		}
+		this.parallelism = parallelism;
+	}
+	
+	/**
+	 * Counts the nodes anywhere below each node, and saves the IC scores as a
+	 * profile. The profile becomes the default for later queries.
+	 * 
+	 * @param ignoredEdgeTypes	Any additional edge types we don't want to use
+	 * @return					The name of the profile, for picking it per query
+	 */
+	public String pushAllNodes(Collection<String> ignoredEdgeTypes) {
+		// Without a snapshot of our own, take one just for the sweep.
+		GraphSnapshot sweepSnapshot = snapshot != null ? snapshot : GraphSnapshot.build(db);
+		EdgeFilter sweepFilter = filter.without(ignoredEdgeTypes);
+		GraphSnapshot sweepView = sweepSnapshot.restrict(sweepFilter);
 		
-		// Sort the nodes topologically.
-		Map<Node, PushNodesInfo> topSortMap = new HashMap<>();
-		Queue<Node> toExpand = new ArrayDeque<>();
-
-		// Preprocess the nodes.
-		for (Node n : GlobalGraphOperations.at(db).getAllNodes())
-		{
-			Set<Node> children = getChildren(n);
-			Set<Node> parents = getParents(n);
-			PushNodesInfo info = new PushNodesInfo();
-			int unpushedChildren = children.size();
-			info.unpushedChildrern = unpushedChildren;
-			info.unpushedParents = parents.size();
-			info.nodesBelow.add(n);
-			topSortMap.put(n, info);
-			
-			// The nodes without children are our base nodes.
-			if (unpushedChildren == 0)
+		int [] nodesBelow;
+		if (parallelism > 1)
+		{
+			ForkJoinPool pool = new ForkJoinPool(parallelism);
+			try
+			{
+				nodesBelow = DescendantSweep.count(sweepView, getExcluded(sweepView), pool);
+			}
+			finally
 			{
-				toExpand.add(n);
+				pool.shutdown();
 			}
 		}
+		else
+		{
+			nodesBelow = DescendantSweep.count(sweepView, getExcluded(sweepView));
+		}
 		
-		// FIXME: Remove this.
-		int count = 0;
+		// Save the IC. Nodes in a cycle share their descendants, and so their IC.
+		double [] ic = new double [nodesBelow.length];
+		for (int id = 0; id < nodesBelow.length; id++)
+		{
+			ic[id] = toIC(nodesBelow[id]);
+		}
 		
-		// Expand until we run out of nodes.
-		while (! toExpand.isEmpty())
+		// Only keep what we need for updates if we're keeping a snapshot anyway.
+		// Otherwise the profile keeps just the numbering of the snapshot we took.
+		String name = getProfileName(getTypeNames(sweepSnapshot), sweepFilter);
+		if (snapshot != null)
 		{
-			// FIXME: Remove this.
-			count++;
-			
-			Node next = toExpand.poll();
-
-			// If there's still something with no descendants, expand.
-			if (next != null)
+			return install(new ICProfile(name, snapshot, false, ic, nodesBelow, sweepView, ignoredEdgeTypes));
+		}
+		return install(new ICProfile(name, sweepSnapshot.withoutEdges(), true, ic, nodesBelow, null, ignoredEdgeTypes));
+	}
+	
+	private double toIC(int nodesBelow) {
+		// Without anonymous nodes, an anonymous node may have nothing below it.
+		return (Math.log(totalNodes) - Math.log(Math.max(nodesBelow, 1))) / Math.log(2);
+	}
+	
+	// Marks the dense ids of the nodes IC leaves out, if any.
+	private BitSet getExcluded(GraphSnapshot s) {
+		if (!excludeAnonymous)
+		{
+			return null;
+		}
+		BitSet excluded = new BitSet(s.size());
+		for (int id = 0; id < s.size(); id++)
+		{
+			if (anonymousNodes.get((int) s.getNodeId(id)))
 			{
-
-				for (Node parent : getParents(next))
-				{
-					PushNodesInfo parentInfo = topSortMap.get(parent);
-					parentInfo.unpushedChildrern--;
-
-					// Check if any of the parents are now leaves.
-					if (parentInfo.unpushedChildrern == 0)
-					{
-						toExpand.add(parent);
-					}
-				}
-
-				// Take the union of all the children's descendants.
-				for (Node child : getChildren(next))
-				{
-					PushNodesInfo childInfo = topSortMap.get(child);
-					topSortMap.get(next).nodesBelow.addAll(childInfo.nodesBelow);
-
-					// If we no longer need the node, clean up.
-					childInfo.unpushedParents--;
-					if (childInfo.unpushedParents == 0)
-					{
-						topSortMap.remove(child);
-					}
-				}
-
-				// Save the IC.
-				int nodesBelow = topSortMap.get(next).nodesBelow.size();
-				double ic = (Math.log(totalNodes) - Math.log(nodesBelow)) / Math.log(2); 
-				icMap.put(next, ic);
+				excluded.set(id);
+			}
+		}
+		return excluded;
+	}
+	
+	private String install(ICScores profile) {
+		profiles.put(profile);
+		currentProfile = profile;
+		return profile.getName();
+	}
+	
+	// Names a profile by the edge types it follows, so equivalent
+	// configurations share a profile.
+	private String getProfileName(List<String> typeNames, EdgeFilter sweepFilter) {
+		String description = sweepFilter.describe(typeNames);
+		return excludeAnonymous ? description + " without anonymous nodes" : description;
+	}
+	
+	// Lists the edge types a snapshot numbers, or the database's types
+	// without one, in order.
+	private List<String> getTypeNames(GraphSnapshot s) {
+		List<String> names = new ArrayList<>();
+		if (s != null)
+		{
+			for (int code = 0; code < s.typeCount(); code++)
+			{
+				names.add(s.getType(code).name());
 			}
 		}
+		else
+		{
+			for (RelationshipType edgeType : GlobalGraphOperations.at(db).getAllRelationshipTypes())
+			{
+				names.add(edgeType.name());
+			}
+		}
+		Collections.sort(names);
+		return names;
+	}
+	
+	/**
+	 * Brings the IC scores up to date with the current edge types.
+	 * Only the nodes whose descendants changed since the last push are recounted.
+	 * The updated scores are saved as a new profile, leaving the old one as it was.
+	 * Without a snapshot, or before the first push, this pushes all nodes.
+	 * 
+	 * @return	The name of the updated profile
+	 */
+	public String updateIC() {
+		ICScores scores = currentProfile;
+		if (scores == null)
+		{
+			return pushAllNodes(new ArrayList<String>());
+		}
+		// Loaded scores have no counts to update from.
+		if (!(scores instanceof ICProfile) || ((ICProfile) scores).view == null)
+		{
+			return pushAllNodes(scores.getIgnoredEdgeTypes());
+		}
+		
+		ICProfile profile = (ICProfile) scores;
 		
-//		// FIXME: Remove this.
-//		System.out.println(totalNodes - count + 1 + " never enqueued");
+		EdgeFilter sweepFilter = filter.without(profile.ignoredEdgeTypes);
+		GraphSnapshot sweepView = snapshot.restrict(sweepFilter);
+		ClosureEngine.Closure affected = IncrementalSweep.getAffected(profile.view, sweepView);
+		int [] counts = profile.counts.clone();
+		double [] ic = profile.ic.clone();
+		IncrementalSweep.recount(sweepView, affected, counts, getExcluded(sweepView));
+		for (int i = 0; i < affected.size(); i++)
+		{
+			ic[affected.get(i)] = toIC(counts[affected.get(i)]);
+		}
 		
-		// Restore the old edge types.
-		relevantEdgeTypes = oldRelevantEdgeTypes;
+		String name = getProfileName(getTypeNames(snapshot), sweepFilter);
+		return install(new ICProfile(name, snapshot, false, ic, counts, sweepView, profile.ignoredEdgeTypes));
 	}
 	
-	private class PushNodesInfo {
-		public Set<Node> nodesBelow = new HashSet<>();
-		public int unpushedChildrern = 0;
-		public int unpushedParents = 0;
+	/**
+	 * Updates the snapshot after edges are added to or removed from the
+	 * database, then brings the default IC profile up to date.
+	 * Other cached profiles no longer match the graph, so they're dropped.
+	 * Removed edges must still be readable, so call this before deleting them,
+	 * or in the transaction deleting them.
+	 * Without a snapshot this does nothing, and pushAllNodes() must be called
+	 * once the changes are committed.
+	 * 
+	 * @param added		The edges which were added
+	 * @param removed	The edges which are being removed
+	 */
+	public void updateEdges(Collection<Relationship> added, Collection<Relationship> removed) {
+		if (snapshot == null)
+		{
+			return;
+		}
+		
+		snapshot = snapshot.patch(added, removed);
+		updateView();
+		profiles.clear();
+		if (currentProfile != null)
+		{
+			updateIC();
+		}
 	}
-
+	
+	/**
+	 * Makes a cached profile the default for queries which don't name one.
+	 * 
+	 * @param profileName	The name returned by pushAllNodes()
+	 */
+	public void useProfile(String profileName) {
+		currentProfile = requireProfile(profileName);
+	}
+	
+	/**
+	 * The names of the cached profiles, least recently used first.
+	 */
+	public List<String> getProfileNames() {
+		return profiles.getNames();
+	}
+	
+	/**
+	 * Saves the default IC profile to a file, for loadIC() to map later.
+	 * 
+	 * @param file	The file to write
+	 */
+	public void saveIC(File file) throws IOException {
+		ICScores profile = currentProfile;
+		if (profile == null)
+		{
+			throw new IllegalStateException("pushAllNodes() must be called before saving IC scores");
+		}
+		if (!(profile instanceof ICProfile))
+		{
+			throw new IllegalStateException(profile.getName() + " was loaded from a file, not pushed");
+		}
+		MappedICProfile.write(file, (ICProfile) profile, totalNodes);
+	}
+	
+	/**
+	 * Maps IC scores saved by saveIC(), and makes them the default profile.
+	 * The scores are read straight from the file, so nothing is pushed.
+	 * With a snapshot, the file must have been saved from the same graph.
+	 * Without one, only the node count is checked. Either way, the scores must
+	 * have been pushed with the edge types this traverser follows.
+	 * 
+	 * @param file	The file to map
+	 * @return		The name of the loaded profile
+	 */
+	public String loadIC(File file) throws IOException {
+		MappedICProfile profile = MappedICProfile.open(file, snapshot);
+		if (profile.getTotalNodes() != totalNodes)
+		{
+			throw new IOException(file + " was saved from a graph with " + profile.getTotalNodes()
+					+ " nodes, not " + totalNodes);
+		}
+		if (snapshot != null && profile.getFingerprint() != snapshot.fingerprint())
+		{
+			throw new IOException(file + " was saved from a different graph");
+		}
+		
+		// The name records the edge types the scores were pushed with.
+		EdgeFilter sweepFilter = filter.without(profile.getIgnoredEdgeTypes());
+		String expected = getProfileName(getTypeNames(snapshot), sweepFilter);
+		if (!profile.getName().equals(expected))
+		{
+			throw new IOException(file + " was saved with edge types " + profile.getName()
+					+ ", not " + expected);
+		}
+		return install(profile);
+	}
+	
+	/**
+	 * Limits the memory used by cached IC profiles. Once over the limit,
+	 * the least recently used profiles are dropped.
+	 * 
+	 * @param bytes	The number of bytes profiles may use
+	 */
+	public void setProfileBudget(long bytes) {
+		profiles.setBudget(bytes);
+	}
+	
+	private ICScores requireProfile(String profileName) {
+		ICScores profile = profiles.get(profileName);
+		// The default profile is kept even if the cache let it go.
+		ICScores current = currentProfile;
+		if (profile == null && current != null && current.getName().equals(profileName))
+		{
+			profile = current;
+		}
+		if (profile == null)
+		{
+			throw new IllegalArgumentException("No IC profile named " + profileName);
+		}
+		return profile;
+	}
+	
+	private double getIC(Node n, ICScores profile) {
+		return profile == null ? 0.0 : profile.getIC(n);
+	}
+	
 	/**
 	 * Find the IC score for a given node.
 	 * Note that pushAllNodes() must be called first.
@@ -301,90 +742,282 @@ public class NaiveTraverser {
 	 * @param n	The node whose IC score we want.
 	 */
 	public double getIC(Node n) {
-		return icMap.get(n);
+		return getIC(n, currentProfile);
+	}
+	
+	/**
+	 * Find the IC score for a given node under a named profile.
+	 * 
+	 * @param n				The node whose IC score we want
+	 * @param profileName	The name returned by pushAllNodes()
+	 */
+	public double getIC(Node n, String profileName) {
+		return requireProfile(profileName).getIC(n);
+	}
+	
+	private static boolean hasAnonymousFragment(Node n) {
+		if (n.hasProperty("fragment"))
+		{
+			String fragment = (String) n.getProperty("fragment");
+			return ANONYMOUS_FRAGMENT.matcher(fragment).matches();
+		}
+		return false;
+	}
+	
+	/**
+	 * Whether a node was anonymous when the traverser was built.
+	 * 
+	 * @param n	The node to check
+	 */
+	public boolean isAnonymous(Node n) {
+		return anonymousNodes.get(ClosureEngine.getIndex(n));
 	}
 	
-	// FIXME: The version below should be faster, but can't handle linked nodes.
 	public Node getLCS(Node first, Node second) {
-		Set<Node> ancestors = getAncestors(first);
-		ancestors.retainAll(getAncestors(second));
+		return getLCS(first, second, currentProfile);
+	}
+	
+	/**
+	 * Finds the LCS of two nodes, using the IC scores of a named profile.
+	 * 
+	 * @param first			The first node
+	 * @param second		The second node
+	 * @param profileName	The name returned by pushAllNodes()
+	 */
+	public Node getLCS(Node first, Node second, String profileName) {
+		return getLCS(first, second, requireProfile(profileName));
+	}
+	
+	/**
+	 * Finds the MICA of every pair of nodes from two collections, and its IC,
+	 * using the default profile. Each node's ancestors are found only once, from
+	 * the snapshot when every node is in it, and rows are filled in parallel
+	 * when the parallelism allows.
+	 * 
+	 * @param firstNodes	The nodes for the rows of the matrix
+	 * @param secondNodes	The nodes for the columns of the matrix
+	 */
+	public ICMatrix getICMatrix(Collection<Node> firstNodes, Collection<Node> secondNodes) {
+		boolean walkView = isInView(firstNodes) && isInView(secondNodes);
+		AncestorSearch search = getAncestorSearch(currentProfile, walkView);
+		if (parallelism == 1)
+		{
+			return search.getMatrix(firstNodes, secondNodes, null);
+		}
 		
-		Node lcs = null;
-		double ic = -1;
-		for (Node ancestor : ancestors)
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try
+		{
+			return search.getMatrix(firstNodes, secondNodes, pool);
+		}
+		finally
 		{
-			// FIXME: Hack to ignore garbage nodes.
-			if (ancestor.hasProperty("fragment"))
+			pool.shutdown();
+		}
+	}
+	
+	/**
+	 * Builds an engine for scoring semantic similarity with the default
+	 * profile's IC. Anonymous nodes are left out of the ancestor sets.
+	 * The engine keeps the current scores and edges, so build a new one after
+	 * pushing or updating.
+	 */
+	public SimilarityEngine getSimilarityEngine() {
+		ICScores profile = currentProfile;
+		if (view == null)
+		{
+			throw new IllegalStateException("Similarity needs a snapshot");
+		}
+		if (profile == null)
+		{
+			throw new IllegalStateException("No IC has been computed yet");
+		}
+		
+		boolean sameIds = profile.isIndexedLike(view);
+		double [] ic = new double [view.size()];
+		BitSet hidden = new BitSet(view.size());
+		for (int id = 0; id < view.size(); id++)
+		{
+			ic[id] = getIC(id, profile, sameIds);
+			if (anonymousNodes.get((int) view.getNodeId(id)))
+			{
+				hidden.set(id);
+			}
+		}
+		return new SimilarityEngine(engine, ic, hidden);
+	}
+	
+	private boolean isInView(Collection<Node> nodes) {
+		if (view == null)
+		{
+			return false;
+		}
+		for (Node n : nodes)
+		{
+			if (view.getId(n) < 0)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	// Searches the database, but takes getMatrix()'s ancestor sets from the
+	// snapshot if asked to, numbered by its dense ids.
+	private AncestorSearch getAncestorSearch(final ICScores profile, final boolean walkView) {
+		final boolean monotone = isMonotone(profile);
+		final GraphSnapshot searchView = view;
+		final ClosureEngine searchEngine = engine;
+		return new AncestorSearch() {
+			@Override
+			protected Iterable<Node> getParents(Node n) {
+				return NaiveTraverser.this.getParents(n);
+			}
+			
+			@Override
+			protected double getIC(Node n) {
+				return NaiveTraverser.this.getIC(n, profile);
+			}
+			
+			@Override
+			protected boolean isCandidate(Node n) {
+				return !isAnonymous(n);
+			}
+			
+			@Override
+			protected boolean isMonotone() {
+				return monotone;
+			}
+			
+			@Override
+			protected ClosureEngine.Closure getAncestors(Node n) {
+				return walkView ? searchEngine.getAncestors(searchView.getId(n), 0) : super.getAncestors(n);
+			}
+			
+			@Override
+			protected Node getNode(GraphDatabaseService db, int id) {
+				return walkView ? searchView.getNode(id) : super.getNode(db, id);
+			}
+		};
+	}
+	
+	// IC only never increases going up if it was counted along the edges we
+	// walk. Profile names record the edges they were counted along.
+	private boolean isMonotone(ICScores profile) {
+		if (profile == null)
+		{
+			return true;
+		}
+		String walkName = snapshot != null ? viewProfileName : getProfileName(getTypeNames(null), filter);
+		return profile.getName().equals(walkName);
+	}
+	
+	// Expands the second node's ancestors best first, as in AncestorSearch.
+	private Node getLCS(Node first, Node second, ICScores profile) {
+		int firstId = view == null ? -1 : view.getId(first);
+		int secondId = view == null ? -1 : view.getId(second);
+		if (firstId < 0 || secondId < 0)
+		{
+			return getAncestorSearch(profile, false).findLCS(first, second);
+		}
+		
+		boolean sameIds = profile != null && profile.isIndexedLike(view);
+		boolean monotone = isMonotone(profile);
+		TreeLCA forest = getTreeLCA();
+		if (forest.isTreeNode(firstId) && forest.isTreeNode(secondId))
+		{
+			// Within a tree, the common ancestors are the chain above the LCA.
+			int lca = forest.getLCA(firstId, secondId);
+			if (lca < 0)
+			{
+				return null;
+			}
+			
+			// When IC never increases going up, nothing above can beat the
+			// LCA unless it ties with its parent or is anonymous.
+			int parent = forest.getParent(lca);
+			if (monotone && !anonymousNodes.get((int) view.getNodeId(lca))
+					&& (parent < 0 || getIC(lca, profile, sameIds) > getIC(parent, profile, sameIds)))
+			{
+				return view.getNode(lca);
+			}
+		}
+		
+		int [] firstStored = getStoredAncestors(firstId);
+		int [] secondStored = getStoredAncestors(secondId);
+		if (firstStored != null && secondStored != null)
+		{
+			return getBestAncestor(ClosureIndex.intersect(firstStored, secondStored), profile, sameIds);
+		}
+		
+		ClosureEngine.Closure firstAncestors = engine.getAncestors(firstId, 0);
+		ClosureEngine.Closure visited = engine.getEmptyClosure(1);
+		IdHeap heap = lcsHeaps.get();
+		heap.clear();
+		heap.push(secondId, getIC(secondId, profile, sameIds));
+		
+		int lcs = -1;
+		double lcsIC = 0;
+		while (!heap.isEmpty())
+		{
+			// Once we have an LCS, only ties are left to check.
+			if (monotone && lcs >= 0 && heap.peekKey() < lcsIC)
+			{
+				break;
+			}
+			
+			double ic = heap.peekKey();
+			int next = heap.pop();
+			if (!visited.add(next))
+			{
+				continue;
+			}
+			
+			if (firstAncestors.contains(next) && !anonymousNodes.get((int) view.getNodeId(next))
+					&& (lcs < 0 || ic > lcsIC || (ic == lcsIC && next < lcs)))
+			{
+				lcs = next;
+				lcsIC = ic;
+			}
+			
+			for (int edge = view.parentOffsets[next]; edge < view.parentOffsets[next + 1]; edge++)
 			{
-				String fragment = (String) ancestor.getProperty("fragment");
-				if (fragment.matches("-?\\d+"))
+				int parent = view.parents[edge];
+				if (!visited.contains(parent))
 				{
-					continue;
+					heap.push(parent, getIC(parent, profile, sameIds));
 				}
 			}
+		}
+		
+		return lcs < 0 ? null : view.getNode(lcs);
+	}
+	
+	// Picks the common ancestor with the highest IC, as the search above does.
+	private Node getBestAncestor(int [] common, ICScores profile, boolean sameIds) {
+		int lcs = -1;
+		double lcsIC = 0;
+		for (int id : common)
+		{
+			if (anonymousNodes.get((int) view.getNodeId(id)))
+			{
+				continue;
+			}
 			
-			double ancestorIC = getIC(ancestor);
-			if (ancestorIC > ic)
+			// The ids are sorted, so the first of any tie is kept.
+			double ic = getIC(id, profile, sameIds);
+			if (lcs < 0 || ic > lcsIC)
 			{
-				lcs = ancestor;
-				ic = ancestorIC;
+				lcs = id;
+				lcsIC = ic;
 			}
 		}
-		
-		return lcs;
-	}
-	
-//	public Node getLCS(Node first, Node second) {
-//		// Start with the ancestors of the first node.
-//		Set<Node> firstAncestors = getAncestors(first);
-//		
-//		// We want to expand ancestors of the second node in order of
-//		// decreasing IC score. 
-//		Comparator<Node> icComparator = new Comparator<Node>() {
-//			public int compare(Node first, Node second) {
-//				double firstIC = getIC(first);
-//				double secondIC = getIC(second);
-//				if (firstIC < secondIC)
-//					return -1;
-//				else if (firstIC > secondIC)
-//					return 1;
-//				else
-//					return (int) (first.getId() - second.getId());
-//			}
-//		};
-//		
-//		// NOTE: The magic number 11 is the default heap capacity, but there
-//		// isn't a sensible constructor.
-//		PriorityQueue<Node> heap = new PriorityQueue<Node>(11, icComparator);
-//		heap.add(second);
-//		HashSet<Node> visited = new HashSet<>();
-//		
-//		// Expand outward from the second node.
-//		while (! heap.isEmpty())
-//		{
-//			Node toExpand = heap.remove();
-//			if (! visited.add(toExpand))
-//			{
-//				continue;
-//			}
-//			
-//			// If we hit an ancestor of the first node, it must be our LCS.
-//			if (firstAncestors.contains(toExpand))
-//			{
-//				return toExpand;
-//			}
-//			
-//			// Expand outward.
-//			for (Node parent : getParents(toExpand))
-//			{
-//				heap.add(parent);
-//			}
-//		}
-//		
-//		// FIXME: This should throw some sort of error.
-//		// Our graph is rooted, so this should never happen.
-//		return null;
-//	}
+		return lcs < 0 ? null : view.getNode(lcs);
+	}
+	
+	private double getIC(int id, ICScores profile, boolean sameIds) {
+		return sameIds ? profile.getIC(id) : getIC(view.getNode(id), profile);
+	}
 	
 	/**
 	 * Find a shortest directed path from one node to another.
@@ -393,44 +1026,25 @@ public class NaiveTraverser {
 	 * @param second	The end of the path
 	 */
 	public List<Node> getShortestPath(Node first, Node second) {
-		HashSet<Node> visited = new HashSet<>();
-		Queue<ArrayList<Node>> paths = new ArrayDeque<>();
-		
-		// Expand paths starting with our base node. 
-		ArrayList<Node> basePath = new ArrayList<>();
-		basePath.add(first);
-		paths.add(basePath);
-		
-		// Expand paths.
-		while (!paths.isEmpty())
+		int firstId = view == null ? -1 : view.getId(first);
+		int secondId = view == null || second == null ? -1 : view.getId(second);
+		if (firstId >= 0 && secondId >= 0)
 		{
-			ArrayList<Node> nextPath = paths.remove();
-			Node lastNode = nextPath.get(nextPath.size() - 1);
-			
-			// If we've reached the end node, stop.
-			if (lastNode.equals(second))
+			// FIXME: This should probably return an Optional.
+			int [] ids = engine.getPath(firstId, secondId);
+			if (ids == null)
 			{
-				return nextPath;
+				return null;
 			}
 			
-			// If we've been here before, don't expand.
-			if (!visited.add(lastNode))
+			List<Node> path = new ArrayList<>();
+			for (int id : ids)
 			{
-				continue;
+				path.add(view.getNode(id));
 			}
-			
-			// Extend the path to all parents.
-			for (Node parent : getParents(lastNode))
-			{
-				ArrayList<Node> toAdd = new ArrayList<>(nextPath);
-				toAdd.add(parent);
-				paths.add(toAdd);
-			}
-			
+			return path;
 		}
 		
-		// FIXME: This should probably return an Optional.
-		// If we haven't found anything, give up.
-		return null;
+		return storePaths.find(first, second);
 	}
 }
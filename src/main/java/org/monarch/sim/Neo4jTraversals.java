@@ -1,14 +1,14 @@
 package org.monarch.sim;
 
-import java.util.ArrayDeque;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Comparator;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.PriorityQueue;
-import java.util.Queue;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
@@ -42,28 +42,83 @@ public class Neo4jTraversals {
 		return getDirectedNeighbors(node, Direction.OUTGOING);
 	}
 
-	private static Collection<Node> getDirectedDescendants(Node node, Direction dir) {
-		Collection<Node> descendants = new HashSet<>();
-		Queue<Node> toTry = new ArrayDeque<>();
-		toTry.add(node);
-		// Check nodes until we run out of possibilities.
-		while (!toTry.isEmpty())
+	private static final PathSearch paths = new PathSearch() {
+		@Override
+		protected Iterable<Node> getParents(Node n) {
+			return Neo4jTraversals.getParents(n);
+		}
+		
+		@Override
+		protected Iterable<Node> getChildren(Node n) {
+			return Neo4jTraversals.getChildren(n);
+		}
+	};
+	
+	private static final AncestorSearch lcsSearch = new AncestorSearch() {
+		@Override
+		protected Iterable<Node> getParents(Node n) {
+			return Neo4jTraversals.getParents(n);
+		}
+		
+		@Override
+		protected double getIC(Node n) {
+			return Neo4jTraversals.getIC(n);
+		}
+	};
+	
+	// Per-thread closures keyed by Neo4j node id, so closures don't need a
+	// HashSet and a separate queue on every call.
+	private static final ThreadLocal<ClosureEngine.Closure []> workspaces = new ThreadLocal<ClosureEngine.Closure []>() {
+		@Override
+		protected ClosureEngine.Closure [] initialValue() {
+			ClosureEngine.Closure [] closures = new ClosureEngine.Closure [ClosureEngine.SLOTS];
+			for (int i = 0; i < closures.length; i++)
+			{
+				closures[i] = new ClosureEngine.Closure(1024);
+			}
+			return closures;
+		}
+	};
+	
+	// Closures which grew past this many ids aren't kept for the next call.
+	private static final int MAX_KEPT_CAPACITY = 1 << 20;
+	
+	private static ClosureEngine.Closure getDirectedDescendants(Node node, Direction dir, int slot) {
+		GraphDatabaseService db = node.getGraphDatabase();
+		ClosureEngine.Closure closure = workspaces.get()[slot];
+		closure.clear(0);
+		
+		// The closure's id buffer doubles as the queue of nodes to expand.
+		closure.add(ClosureEngine.getIndex(node));
+		for (int head = 0; head < closure.size(); head++)
 		{
-			Node curNode = toTry.remove();
-			// We can skip nodes we've already seen.
-			if (descendants.contains(curNode))
+			Node curNode = db.getNodeById(closure.get(head));
+			for (Relationship rel : curNode.getRelationships(dir))
 			{
-				continue;
+				closure.add(ClosureEngine.getIndex(rel.getOtherNode(curNode)));
 			}
-			descendants.add(curNode);
-			// We need to expand from each of the neighbors.
-			for (Node neighbor : getDirectedNeighbors(curNode, dir))
+		}
+		
+		return closure;
+	}
+	
+	// Lets go of closures that grew for a node with a large id.
+	private static void releaseWorkspaces() {
+		ClosureEngine.Closure [] closures = workspaces.get();
+		for (int i = 0; i < closures.length; i++)
+		{
+			if (closures[i].getCapacity() > MAX_KEPT_CAPACITY)
 			{
-				toTry.add(neighbor);
+				closures[i] = new ClosureEngine.Closure(1024);
 			}
 		}
-
-		return descendants;
+	}
+	
+	private static Set<Node> getDirectedDescendants(Node node, Direction dir) {
+		ClosureEngine.Closure closure = getDirectedDescendants(node, dir, 0);
+		Set<Node> nodes = new NodeIdSet(node.getGraphDatabase(), Arrays.copyOf(closure.ids(), closure.size()));
+		releaseWorkspaces();
+		return nodes;
 	}
 
 	public static Collection<Node> getAncestors(Node node) {
@@ -75,10 +130,78 @@ public class Neo4jTraversals {
 	}
 
 	public static Collection<Node> getCommonAncestors(Node first, Node second) {
-		Set<Node> firstAncestors = new HashSet<>(getAncestors(first));
-		Set<Node> secondAncestors = new HashSet<>(getAncestors(second));
-		firstAncestors.retainAll(secondAncestors);
-		return firstAncestors;
+		ClosureEngine.Closure firstAncestors = getDirectedDescendants(first, Direction.OUTGOING, 0);
+		ClosureEngine.Closure secondAncestors = getDirectedDescendants(second, Direction.OUTGOING, 1);
+		int [] common = new int [Math.min(firstAncestors.size(), secondAncestors.size())];
+		int count = 0;
+		for (int i = 0; i < firstAncestors.size(); i++)
+		{
+			int id = firstAncestors.get(i);
+			if (secondAncestors.contains(id))
+			{
+				common[count++] = id;
+			}
+		}
+		releaseWorkspaces();
+		return new NodeIdSet(first.getGraphDatabase(), Arrays.copyOf(common, count));
+	}
+	
+	/**
+	 * A read-only set of nodes kept as their Neo4j ids, sorted so contains()
+	 * is a binary search. Nodes are looked up as the set is iterated.
+	 */
+	private static class NodeIdSet extends AbstractSet<Node> {
+		
+		private final GraphDatabaseService db;
+		private final int [] ids;
+		
+		NodeIdSet(GraphDatabaseService db, int [] ids) {
+			this.db = db;
+			this.ids = ids;
+			Arrays.sort(ids);
+		}
+		
+		@Override
+		public boolean contains(Object o) {
+			if (!(o instanceof Node))
+			{
+				return false;
+			}
+			long id = ((Node) o).getId();
+			return id <= Integer.MAX_VALUE && Arrays.binarySearch(ids, (int) id) >= 0;
+		}
+		
+		@Override
+		public Iterator<Node> iterator() {
+			return new Iterator<Node>() {
+				private int next = 0;
+				
+				@Override
+				public boolean hasNext() {
+					return next < ids.length;
+				}
+				
+				@Override
+				public Node next() {
+					if (next == ids.length)
+					{
+						throw new NoSuchElementException();
+					}
+					return db.getNodeById(ids[next++]);
+				}
+				
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+		
+		@Override
+		public int size() {
+			return ids.length;
+		}
+		
 	}
 	
 	public static void setAllIC(GraphDatabaseService db) {
@@ -118,137 +241,28 @@ public class Neo4jTraversals {
 	}
 	
 	public static Node getLCS(Node first, Node second) {
-		// Start with the ancestors of the first node.
-		HashSet<Node> firstAncestors = (HashSet<Node>) getAncestors(first);
-		
-		// We want to expand ancestors of the second node in order of
-		// decreasing IC score. 
-		Comparator<Node> icComparator = new Comparator<Node>() {
-			public int compare(Node first, Node second) {
-				double firstIC = getIC(first);
-				double secondIC = getIC(second);
-				if (firstIC < secondIC)
-					return -1;
-				else if (firstIC > secondIC)
-					return 1;
-				else
-					return (int) (first.getId() - second.getId());
-			}
-		};
-		// NOTE: The magic number 11 is the default heap capacity, but there
-		// isn't a sensible constructor.
-		PriorityQueue<Node> heap = new PriorityQueue<Node>(11, icComparator);
-		heap.add(second);
-		HashSet<Node> visited = new HashSet<>();
-		
-		// Expand outward from the second node.
-		while (!heap.isEmpty())
-		{
-			Node toExpand = heap.remove();			
-			if (!visited.add(toExpand))
-			{
-				continue;
-			}
-			// If we hit an ancestor of the first node, it must be our LCS.
-			if (firstAncestors.contains(toExpand))
-			{
-				return toExpand;
-			}
-			for (Node parent : getParents(toExpand))
-			{
-				heap.add(parent);
-			}
-		}
-		
-		// FIXME: This should throw some sort of error.
-		// Our graph is rooted, so this should never happen.
-		return null;
+		return lcsSearch.findLCS(first, second);
 	}
 	
 	public static List<Node> getShortestPath(Node first, Node second) {
-		HashSet<Node> visited = new HashSet<>();
-		Queue<ArrayList<Node>> paths = new ArrayDeque<>();
-		
-		// Expand paths starting with our base node. 
-		ArrayList<Node> basePath = new ArrayList<>();
-		basePath.add(first);
-		paths.add(basePath);
-		
-		// Expand paths.
-		while (!paths.isEmpty())
-		{
-			ArrayList<Node> nextPath = paths.remove();
-			Node lastNode = nextPath.get(nextPath.size() - 1);
-			
-			// If we've reached the end node, stop.
-			if (lastNode.equals(second))
-			{
-				return nextPath;
-			}
-			
-			// If we've been here before, don't expand.
-			if (!visited.add(lastNode))
-			{
-				continue;
-			}
-			
-			// FIXME: Remove this.
-//			// If we've gone too far up, don't expand.
-//			if ((Double) lastNode.getProperty("IC") < (Double) second.getProperty("IC"))
-//			{
-//				continue;
-//			}
-			
-			// Extend the path to all parents.
-			for (Node parent : getParents(lastNode))
-			{
-				ArrayList<Node> toAdd = new ArrayList<>(nextPath);
-				toAdd.add(parent);
-				paths.add(toAdd);
-			}
-			
-		}
-		
-		// FIXME: This should probably return an Optional.
-		// If we haven't found anything, give up.
-		return null;
+		return paths.find(first, second);
+	}
+	
+	public static ICMatrix getICMatrix(Collection<Node> firstNodes, Collection<Node> secondNodes) {
+		return getICMatrix(firstNodes, secondNodes, null);
+	}
+	
+	public static ICMatrix getICMatrix(Collection<Node> firstNodes, Collection<Node> secondNodes, ForkJoinPool pool) {
+		// Each node's ancestors are found once, rather than once per pair.
+		return lcsSearch.getMatrix(firstNodes, secondNodes, pool);
 	}
 	
 	public static double getMaxIC(Collection<Node> firstNodes, Collection<Node> secondNodes) {
-		double maxIC = 0;
-		
-		// Check each pair of nodes.
-		for (Node first : firstNodes)
-		{
-			for (Node second : secondNodes)
-			{
-				double lcsIC = getIC(getLCS(first, second));
-				if (lcsIC > maxIC)
-				{
-					maxIC = lcsIC;
-				}
-			}
-		}
-		
-		return maxIC;
+		return getICMatrix(firstNodes, secondNodes).getMax();
 	}
 	
 	public static double getAverageIC(Collection<Node> firstNodes, Collection<Node> secondNodes) {
-		double totalIC = 0;
-		int count = 0;
-		
-		// Check each pair of nodes.
-		for (Node first : firstNodes)
-		{
-			for (Node second : secondNodes)
-			{
-				double lcsIC = getIC(getLCS(first, second));
-				totalIC += lcsIC;
-				count++;
-			}
-		}
-		
-		return totalIC / count;
+		return getICMatrix(firstNodes, secondNodes).getAverage();
 	}
 	
 }
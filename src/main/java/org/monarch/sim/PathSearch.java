@@ -0,0 +1,123 @@
+package org.monarch.sim;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+
+/**
+ * This class finds shortest paths up through the database, for traversals
+ * which don't have a snapshot to walk.
+ *
+ * The search runs up from the start and down from the end at the same time,
+ * a level at a time from whichever side has the smaller frontier. Each side
+ * links the nodes it reaches to where it reached them from, keyed by Neo4j id,
+ * and the path is only built once the two sides meet.
+ *
+ * Subclasses decide which edges lead up and down.
+ */
+public abstract class PathSearch {
+
+	private final ThreadLocal<ClosureEngine.Closure []> workspaces = new ThreadLocal<ClosureEngine.Closure []>() {
+		@Override
+		protected ClosureEngine.Closure [] initialValue() {
+			return new ClosureEngine.Closure [] {
+				new ClosureEngine.Closure(1024), new ClosureEngine.Closure(1024)
+			};
+		}
+	};
+
+	protected abstract Iterable<Node> getParents(Node n);
+
+	protected abstract Iterable<Node> getChildren(Node n);
+
+	/**
+	 * Finds a shortest path up from one node to another.
+	 *
+	 * @param first		The lower node
+	 * @param second	The upper node
+	 * @return			The nodes along the path, or null if there isn't one
+	 */
+	public List<Node> find(Node first, Node second) {
+		// FIXME: This should probably return an Optional.
+		if (second == null)
+		{
+			return null;
+		}
+
+		ClosureEngine.Closure up = workspaces.get()[0];
+		ClosureEngine.Closure down = workspaces.get()[1];
+		up.clear(0);
+		down.clear(0);
+		int firstId = ClosureEngine.getIndex(first);
+		int secondId = ClosureEngine.getIndex(second);
+		up.add(firstId, firstId);
+		down.add(secondId, secondId);
+
+		// The nodes each side has reached, in the order they were reached.
+		List<Node> upNodes = new ArrayList<>();
+		List<Node> downNodes = new ArrayList<>();
+		upNodes.add(first);
+		downNodes.add(second);
+
+		int meeting = firstId == secondId ? firstId : -1;
+		int upHead = 0;
+		int downHead = 0;
+		while (meeting < 0 && upHead < upNodes.size() && downHead < downNodes.size())
+		{
+			if (upNodes.size() - upHead <= downNodes.size() - downHead)
+			{
+				int levelEnd = upNodes.size();
+				while (meeting < 0 && upHead < levelEnd)
+				{
+					Node next = upNodes.get(upHead++);
+					meeting = expand(next, getParents(next), up, upNodes, down);
+				}
+			}
+			else
+			{
+				int levelEnd = downNodes.size();
+				while (meeting < 0 && downHead < levelEnd)
+				{
+					Node next = downNodes.get(downHead++);
+					meeting = expand(next, getChildren(next), down, downNodes, up);
+				}
+			}
+		}
+
+		if (meeting < 0)
+		{
+			return null;
+		}
+
+		GraphDatabaseService db = first.getGraphDatabase();
+		List<Node> path = new ArrayList<>();
+		for (int id : ClosureEngine.joinPath(up, down, meeting))
+		{
+			path.add(db.getNodeById(id));
+		}
+		return path;
+	}
+
+	// Adds the neighbors of a node to one side of the search, returning the
+	// first one the other side has already reached, or -1.
+	private static int expand(Node next, Iterable<Node> neighbors, ClosureEngine.Closure side,
+			List<Node> sideNodes, ClosureEngine.Closure other) {
+		int nextId = ClosureEngine.getIndex(next);
+		for (Node neighbor : neighbors)
+		{
+			int id = ClosureEngine.getIndex(neighbor);
+			if (side.add(id, nextId))
+			{
+				sideNodes.add(neighbor);
+				if (other.contains(id))
+				{
+					return id;
+				}
+			}
+		}
+		return -1;
+	}
+
+}
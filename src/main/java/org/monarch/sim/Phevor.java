@@ -1,8 +1,10 @@
 package org.monarch.sim;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
@@ -122,6 +124,24 @@ public class Phevor {
 		return maxScore;
 	}
 	
+	/**
+	 * Finds whether one node is subsumed by another along the valid types of
+	 * edges (inclusive). The ontology is labelled on the first call, so later
+	 * calls don't need to find any ancestors.
+	 * 
+	 * @param fragment			The fragment associated with the lower node
+	 * @param ancestorFragment	The fragment associated with the upper node
+	 */
+	public boolean isSubsumedBy(String fragment, String ancestorFragment) {
+		Node n = getNodeByFragment(fragment);
+		Node ancestor = getNodeByFragment(ancestorFragment);
+		if (n == null || ancestor == null)
+		{
+			return false;
+		}
+		return ontology.getReachabilityIndex().isAncestor(ancestor, n);
+	}
+	
 	/**
 	 * Closes all the open resources.
 	 */
@@ -134,6 +154,8 @@ public class Phevor {
 		double totalScore = 0;
 		HashMap<Node, Double> scoreMap = new HashMap<>();
 		SciGraphTraverser traverser = new SciGraphTraverser(db, "phevor");
+		EdgeFilter filter = EdgeFilter.all();
+		ReachabilityIndex reachability;
 
 		public PhevorDB(String url, String graphLocation, boolean forceLoad) {
 			super(url, graphLocation, forceLoad);
@@ -145,12 +167,14 @@ public class Phevor {
 		
 		public PhevorDB(GraphDatabaseService db, Collection<String> edgeTypes) {
 			super(db);
+			List<String> foundTypes = new ArrayList<>();
 			for (String edgeType : edgeTypes)
 			{
 				try
 				{
 					// FIXME: There should be a way to specify direction.
 					traverser.relationships(edgeType, Direction.INCOMING);
+					foundTypes.add(edgeType);
 				}
 				catch (NotFoundException e)
 				{
@@ -158,6 +182,20 @@ public class Phevor {
 					// we shouldn't worry if an edge type isn't found.
 				}
 			}
+			
+			// Like the traverser, follow every edge if none of the types were found.
+			if (! foundTypes.isEmpty())
+			{
+				filter = EdgeFilter.including(foundTypes);
+			}
+		}
+		
+		public synchronized ReachabilityIndex getReachabilityIndex() {
+			if (reachability == null)
+			{
+				reachability = new ReachabilityIndex(GraphSnapshot.build(db).restrict(filter));
+			}
+			return reachability;
 		}
 
 		private void updateHashMap(HashMap<Node, Double> map, Node n, double change) {
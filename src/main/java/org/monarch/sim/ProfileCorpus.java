@@ -0,0 +1,113 @@
+package org.monarch.sim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * This class holds a corpus of named profiles, such as diseases or models,
+ * preloaded for scoring with a CorpusScorer.
+ *
+ * Each profile is kept as the sorted ancestors of each of its terms, and the
+ * sorted ancestors of the whole profile with their total IC, all as dense ids.
+ * The terms themselves aren't kept, since scoring only needs their ancestors.
+ * Terms used by several profiles share one ancestor array.
+ */
+public class ProfileCorpus {
+
+	private final SimilarityEngine similarity;
+
+	private final List<String> names = new ArrayList<>();
+	final List<int [][]> termAncestors = new ArrayList<>();
+	final List<int []> unionAncestors = new ArrayList<>();
+	double [] unionIC = new double [16];
+
+	private final Map<Integer, int []> ancestorCache = new HashMap<>();
+
+	/**
+	 * Sets up an empty corpus.
+	 *
+	 * @param similarity	The engine whose snapshot and IC the profiles use
+	 */
+	public ProfileCorpus(SimilarityEngine similarity) {
+		this.similarity = similarity;
+	}
+
+	public SimilarityEngine getSimilarityEngine() {
+		return similarity;
+	}
+
+	/**
+	 * Adds a profile to the corpus.
+	 *
+	 * @param name	The name to report the profile by
+	 * @param nodes	The terms in the profile
+	 */
+	public void add(String name, Collection<Node> nodes) {
+		int [][] ancestors = new int [nodes.size()][];
+		int i = 0;
+		int total = 0;
+		for (Node n : nodes)
+		{
+			int id = similarity.getId(n);
+			ancestors[i] = ancestorCache.get(id);
+			if (ancestors[i] == null)
+			{
+				ancestors[i] = similarity.getAncestorIds(id);
+				ancestorCache.put(id, ancestors[i]);
+			}
+			total += ancestors[i++].length;
+		}
+
+		// Merge the terms' ancestors into the profile's ancestors.
+		int [] union = new int [total];
+		int size = 0;
+		for (int [] above : ancestors)
+		{
+			System.arraycopy(above, 0, union, size, above.length);
+			size += above.length;
+		}
+		Arrays.sort(union);
+		int distinct = 0;
+		double ic = 0;
+		for (int j = 0; j < size; j++)
+		{
+			if (distinct == 0 || union[j] != union[distinct - 1])
+			{
+				union[distinct++] = union[j];
+				ic += similarity.getIC(union[j]);
+			}
+		}
+
+		names.add(name);
+		termAncestors.add(ancestors);
+		unionAncestors.add(Arrays.copyOf(union, distinct));
+		if (names.size() > unionIC.length)
+		{
+			unionIC = Arrays.copyOf(unionIC, 2 * unionIC.length);
+		}
+		unionIC[names.size() - 1] = ic;
+	}
+
+	/**
+	 * The number of profiles in the corpus.
+	 */
+	public int size() {
+		return names.size();
+	}
+
+	/**
+	 * Finds the name of a profile.
+	 *
+	 * @param profile	The position the profile was added at
+	 */
+	public String getName(int profile) {
+		return names.get(profile);
+	}
+
+}
@@ -0,0 +1,256 @@
+package org.monarch.sim;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * This class answers whether one node is above another without finding a
+ * whole closure, using the GRAIL labelling of the snapshot's condensation.
+ *
+ * Each label comes from a depth first search up from the bottom of the DAG,
+ * visiting parents in a random order. A component's label is the interval
+ * from the lowest post-order number anywhere above it to its own post-order
+ * number, so every ancestor's interval lies inside the interval below it.
+ * One label which fails to nest proves a node isn't an ancestor. When every
+ * label nests, a depth first search confirms it, skipping any component
+ * whose labels rule it out.
+ */
+public class ReachabilityIndex {
+
+	/**
+	 * The number of labels each component gets by default.
+	 */
+	public static final int DEFAULT_LABELS = 5;
+
+	private final GraphSnapshot view;
+	private final Condensation condensation;
+	private final int labelCount;
+
+	// Label t of component c is lows[t * size + c] up to posts[t * size + c].
+	private final int [] lows;
+	private final int [] posts;
+
+	private final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>() {
+		@Override
+		protected Workspace initialValue() {
+			return new Workspace(condensation.size());
+		}
+	};
+
+	private static class Workspace {
+		final int [] stamps;
+		final int [] stack;
+		int epoch = 0;
+
+		Workspace(int size) {
+			stamps = new int [size];
+			stack = new int [size];
+		}
+	}
+
+	/**
+	 * Labels a snapshot with the default number of random labels.
+	 *
+	 * @param view	The snapshot to label, already restricted to the relevant edges
+	 */
+	public ReachabilityIndex(GraphSnapshot view) {
+		this(view, DEFAULT_LABELS, new Random());
+	}
+
+	/**
+	 * Labels a snapshot.
+	 *
+	 * @param view			The snapshot to label, already restricted to the relevant edges
+	 * @param labelCount	How many labels to give each component
+	 * @param random		The source of the order parents are visited in
+	 */
+	public ReachabilityIndex(GraphSnapshot view, int labelCount, Random random) {
+		if (labelCount < 1)
+		{
+			throw new IllegalArgumentException("At least one label is needed");
+		}
+
+		this.view = view;
+		this.condensation = Condensation.of(view);
+		this.labelCount = labelCount;
+
+		int size = condensation.size();
+		lows = new int [labelCount * size];
+		posts = new int [labelCount * size];
+
+		// Searches start from the components with nothing below them.
+		int [] bottoms = new int [size];
+		int bottomCount = 0;
+		for (int c = 0; c < size; c++)
+		{
+			if (condensation.childOffsets[c] == condensation.childOffsets[c + 1])
+			{
+				bottoms[bottomCount++] = c;
+			}
+		}
+
+		int [] stack = new int [size];
+		int [] positions = new int [size];
+		int [] rotations = new int [size];
+		boolean [] visited = new boolean [size];
+		for (int t = 0; t < labelCount; t++)
+		{
+			label(t * size, bottoms, bottomCount, random, stack, positions, rotations, visited);
+		}
+	}
+
+	private void label(int base, int [] bottoms, int bottomCount, Random random,
+			int [] stack, int [] positions, int [] rotations, boolean [] visited) {
+		int [] offsets = condensation.parentOffsets;
+		int [] parents = condensation.parents;
+
+		// Shuffle the starting points, and start each parent list at a random place.
+		for (int i = bottomCount - 1; i > 0; i--)
+		{
+			int j = random.nextInt(i + 1);
+			int swap = bottoms[i];
+			bottoms[i] = bottoms[j];
+			bottoms[j] = swap;
+		}
+		for (int c = 0; c < visited.length; c++)
+		{
+			int degree = offsets[c + 1] - offsets[c];
+			rotations[c] = degree > 1 ? random.nextInt(degree) : 0;
+			positions[c] = 0;
+		}
+		Arrays.fill(visited, false);
+
+		int post = 0;
+		for (int i = 0; i < bottomCount; i++)
+		{
+			int depth = 0;
+			stack[depth++] = bottoms[i];
+			visited[bottoms[i]] = true;
+			lows[base + bottoms[i]] = Integer.MAX_VALUE;
+
+			while (depth > 0)
+			{
+				int c = stack[depth - 1];
+				int degree = offsets[c + 1] - offsets[c];
+				if (positions[c] < degree)
+				{
+					int parent = parents[offsets[c] + (rotations[c] + positions[c]++) % degree];
+					if (! visited[parent])
+					{
+						visited[parent] = true;
+						lows[base + parent] = Integer.MAX_VALUE;
+						stack[depth++] = parent;
+					}
+					else
+					{
+						// The condensation is a DAG, so the parent is already finished.
+						lows[base + c] = Math.min(lows[base + c], lows[base + parent]);
+					}
+					continue;
+				}
+
+				posts[base + c] = post;
+				lows[base + c] = Math.min(lows[base + c], post);
+				post++;
+				depth--;
+				if (depth > 0)
+				{
+					int below = stack[depth - 1];
+					lows[base + below] = Math.min(lows[base + below], lows[base + c]);
+				}
+			}
+		}
+	}
+
+	public GraphSnapshot getView() {
+		return view;
+	}
+
+	/**
+	 * Whether every label of one component nests inside the labels of another.
+	 */
+	private boolean mayReach(int below, int above) {
+		int size = condensation.size();
+		for (int base = 0; base < labelCount * size; base += size)
+		{
+			if (lows[base + above] < lows[base + below] || posts[base + above] > posts[base + below])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Whether one node is anywhere above another (inclusive).
+	 *
+	 * @param ancestor		The dense id of the node which may be above
+	 * @param descendant	The dense id of the node which may be below
+	 */
+	public boolean isAncestor(int ancestor, int descendant) {
+		int target = condensation.components[ancestor];
+		int start = condensation.components[descendant];
+		if (target == start)
+		{
+			return true;
+		}
+
+		// Components above come first, so nothing numbered after the start is above it.
+		if (target > start || ! mayReach(start, target))
+		{
+			return false;
+		}
+
+		Workspace workspace = workspaces.get();
+		int epoch = ++workspace.epoch;
+		if (epoch == 0)
+		{
+			Arrays.fill(workspace.stamps, 0);
+			epoch = workspace.epoch = 1;
+		}
+		int [] stamps = workspace.stamps;
+		int [] stack = workspace.stack;
+
+		int depth = 0;
+		stack[depth++] = start;
+		stamps[start] = epoch;
+		while (depth > 0)
+		{
+			int c = stack[--depth];
+			for (int edge = condensation.parentOffsets[c]; edge < condensation.parentOffsets[c + 1]; edge++)
+			{
+				int parent = condensation.parents[edge];
+				if (parent == target)
+				{
+					return true;
+				}
+				if (stamps[parent] != epoch && parent > target && mayReach(parent, target))
+				{
+					stamps[parent] = epoch;
+					stack[depth++] = parent;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Whether one node is anywhere above another (inclusive).
+	 * Nodes outside the snapshot are never above or below anything.
+	 *
+	 * @param ancestor		The node which may be above
+	 * @param descendant	The node which may be below
+	 */
+	public boolean isAncestor(Node ancestor, Node descendant) {
+		int ancestorId = view.getId(ancestor);
+		int descendantId = view.getId(descendant);
+		if (ancestorId < 0 || descendantId < 0)
+		{
+			return ancestor.equals(descendant);
+		}
+		return isAncestor(ancestorId, descendantId);
+	}
+
+}
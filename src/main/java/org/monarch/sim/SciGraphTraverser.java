@@ -1,6 +1,7 @@
 package org.monarch.sim;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Set;
@@ -12,14 +13,12 @@ import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.Path;
 import org.neo4j.graphdb.RelationshipType;
-import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.traversal.Evaluation;
 import org.neo4j.graphdb.traversal.Evaluator;
-import org.neo4j.graphdb.traversal.Evaluators;
 import org.neo4j.graphdb.traversal.TraversalDescription;
+import org.neo4j.graphdb.traversal.UniquenessFactory;
 import org.neo4j.helpers.collection.IteratorUtil;
 import org.neo4j.kernel.Traversal;
-import org.neo4j.kernel.Uniqueness;
 import org.neo4j.tooling.GlobalGraphOperations;
 
 @Deprecated
@@ -27,8 +26,10 @@ public class SciGraphTraverser {
 	
 	private static final Logger logger = Logger.getLogger(SciGraphTraverser.class.getName());
 	
-	private static final int traversalCachedNodes = 10000;
+	// The endings of the properties each traverser adds to nodes.
+	private static final String [] KEY_SUFFIXES = {"_pushed", "_descendants", "_ic"};
 
+	private String name;
 	private String PUSHED_KEY;
 	private String DESCENDANT_KEY;
 	private String IC_KEY;
@@ -40,9 +41,19 @@ public class SciGraphTraverser {
 	private TraversalDescription basicDownwardTraversal = Traversal
 			.traversal()
 			.breadthFirst()
-			.uniqueness(Uniqueness.NODE_RECENT, traversalCachedNodes)
+			.uniqueness(new GlobalNodeUniqueness())
 			;
 	private boolean edgeTypesDefined = false;
+	// The full traversals down and up, built when first needed.
+	private TraversalDescription descendantTraversal;
+	private TraversalDescription ancestorTraversal;
+	// The same edges as the traversal, for building snapshots.
+	private EdgeFilter filter = EdgeFilter.all();
+	private int batchSize = BatchedPropertyWriter.DEFAULT_BATCH_SIZE;
+	
+	// The IC of every node, by dense id, once computeAllIC() has run.
+	private GraphSnapshot icView;
+	private double [] icValues;
 	
 	/**
 	 * Constructs a traverser to walk through a Neo4j database.
@@ -65,6 +76,7 @@ public class SciGraphTraverser {
 			edgeTypes.add(edgeType);
 		}
 		
+		this.name = name;
 		PUSHED_KEY = name + "_pushed";
 		DESCENDANT_KEY = name + "_descendants";
 		IC_KEY = name + "_ic";
@@ -83,7 +95,15 @@ public class SciGraphTraverser {
 			if (edgeType.toString().equals(typeName))
 			{
 				basicDownwardTraversal = basicDownwardTraversal.relationships(edgeType, dir);
+				
+				// The traversal goes down, so up is the other way.
+				EdgeFilter base = edgeTypesDefined ? filter : EdgeFilter.including(Collections.<String>emptyList());
+				filter = base.withDirection(typeName, dir.reverse());
 				edgeTypesDefined = true;
+				descendantTraversal = null;
+				ancestorTraversal = null;
+				icView = null;
+				icValues = null;
 				return;
 			}
 		}
@@ -100,40 +120,61 @@ public class SciGraphTraverser {
 		relationships(typeName, Direction.BOTH);
 	}
 	
-	private Collection<Node> traversalHelper(Node n, boolean up, boolean oneStep) {
-		TraversalDescription td = basicDownwardTraversal;
-		
-		// If we haven't set any edge types, assume all edges point up.
-		if (!edgeTypesDefined)
+	/**
+	 * Sets how traversals avoid revisiting nodes. By default, each node is
+	 * visited at most once per traversal.
+	 * 
+	 * @param uniqueness	The kind of uniqueness, such as Uniqueness.NODE_RECENT
+	 * @param parameter		Its parameter, or null
+	 */
+	public void setUniqueness(UniquenessFactory uniqueness, Object parameter) {
+		basicDownwardTraversal = basicDownwardTraversal.uniqueness(uniqueness, parameter);
+		descendantTraversal = null;
+		ancestorTraversal = null;
+	}
+	
+	/**
+	 * Sets how many property writes are collected before they're committed.
+	 * 
+	 * @param batchSize	The number of pending writes that triggers a commit
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+	
+	private TraversalDescription getTraversal(boolean up) {
+		if (descendantTraversal == null)
 		{
-			for (RelationshipType edgeType : edgeTypes)
+			TraversalDescription td = basicDownwardTraversal;
+			
+			// If we haven't set any edge types, assume all edges point up.
+			if (!edgeTypesDefined)
 			{
-				td = td.relationships(edgeType, Direction.INCOMING);
+				for (RelationshipType edgeType : edgeTypes)
+				{
+					td = td.relationships(edgeType, Direction.INCOMING);
+				}
 			}
+			
+			descendantTraversal = td;
+			ancestorTraversal = td.reverse();
 		}
+		return up ? ancestorTraversal : descendantTraversal;
+	}
+	
+	private Collection<Node> traversalHelper(Node n, boolean up, boolean oneStep) {
+		Collection<Node> nodes = new HashSet<>();
 		
-		// Handle the separate cases.
-		if (up)
-		{
-			td = td.reverse();
-		}		
+		// Neighbors are just the node's own edges, so don't bother traversing.
 		if (oneStep)
 		{
-			td = td
-					.evaluator(Evaluators.fromDepth(1))
-					.evaluator(Evaluators.toDepth(1))
-					;
+			filter.addNeighbors(n, up, nodes);
+			nodes.remove(n);
+			return nodes;
 		}
 		
-		// Traverse.
-		Iterable<Node> iter = td
-				.traverse(n)
-				.nodes()
-				;
-		
 		// Iterables are hard to work with, so convert to a Collection.
-		Collection<Node> nodes = new HashSet<>();
-		for (Node found : iter)
+		for (Node found : getTraversal(up).traverse(n).nodes())
 		{
 			nodes.add(found);
 		}
@@ -201,57 +242,82 @@ public class SciGraphTraverser {
 				;
 	}
 	
-	private void addDescendant(Node n) {
-		Transaction tx = db.beginTx();
-		
-		if (!n.hasProperty(DESCENDANT_KEY))
-		{
-			n.setProperty(DESCENDANT_KEY, 1);
-		}
-		else
-		{
-			n.setProperty(DESCENDANT_KEY, (int) n.getProperty(DESCENDANT_KEY) + 1);
-		}
-		
-		tx.success();
-		tx.finish();
-	}
-	
-	private void pushUp(Node n) {
+	private void pushUp(Node n, BatchedPropertyWriter writer) {
 		// If we've already pushed, do nothing.
 		if (n.hasProperty(PUSHED_KEY))
 		{
 			return;
 		}
 		
-		// Mark the node as pushed.
-		Transaction tx = db.beginTx();
-		n.setProperty(PUSHED_KEY, true);
-		tx.success();
-		tx.finish();
-		
-		// Add a descendant to each ancestor.
+		// Mark the node as pushed, and add a descendant to each ancestor.
+		writer.setProperty(n.getId(), PUSHED_KEY, true);
 		for (Node ancestor : getAncestors(n))
 		{
-			addDescendant(ancestor);
+			writer.increment(ancestor.getId(), DESCENDANT_KEY, 1);
 		}
 	}
 	
+	/**
+	 * Counts the descendants of every node into its descendant property.
+	 * 
+	 * The counts are collected in memory and committed in batches, together
+	 * with the pushed flags of the nodes they came from. Nodes already marked
+	 * as pushed are skipped.
+	 */
 	public void pushAllNodes() {
 		logger.info("Beginning pushAllNodes()");
+		BatchedPropertyWriter writer = new BatchedPropertyWriter(db, batchSize);
 		int count = 0;
 		for (Node n : GlobalGraphOperations.at(db).getAllNodes())
 		{
-			pushUp(n);
+			pushUp(n, writer);
+			writer.flushIfFull();
 			count++;
-			if (count % 100 == 0)
+			if (count % 10000 == 0)
 			{
-				logger.info("Pushed " + count + " nodes");
+				logger.info("Pushed " + count + " nodes, wrote " + writer.getWrittenCount() + " properties");
 			}
 		}
+		writer.flush();
 		logger.info("Finished pushAllNodes()");
 	}
 	
+	/**
+	 * Computes the IC of every node in memory and writes it to the database,
+	 * along with the descendant counts behind it.
+	 * 
+	 * Descendants are counted in one sweep over a snapshot of the edges we
+	 * traverse, from the leaves up, rather than by pushing each node up to its
+	 * ancestors. The results are written in batched transactions, with every
+	 * node marked as pushed, and kept for getIC().
+	 */
+	public void computeAllIC() {
+		logger.info("Beginning computeAllIC()");
+		GraphSnapshot view = GraphSnapshot.build(db).restrict(filter);
+		int [] nodesBelow = DescendantSweep.count(view);
+		double [] ic = new double [nodesBelow.length];
+		
+		BatchedPropertyWriter writer = new BatchedPropertyWriter(db, batchSize);
+		for (int id = 0; id < nodesBelow.length; id++)
+		{
+			long nodeId = view.getNodeId(id);
+			ic[id] = toIC(nodesBelow[id]);
+			writer.setProperty(nodeId, DESCENDANT_KEY, nodesBelow[id]);
+			writer.setProperty(nodeId, IC_KEY, ic[id]);
+			writer.setProperty(nodeId, PUSHED_KEY, true);
+			writer.flushIfFull();
+		}
+		writer.flush();
+		
+		icView = view;
+		icValues = ic;
+		logger.info("Finished computeAllIC(), wrote " + writer.getWrittenCount() + " properties");
+	}
+	
+	private double toIC(int descendants) {
+		return (Math.log(nodeCount) - Math.log(descendants)) / Math.log(2);
+	}
+	
 	/**
 	 * Finds the IC score of a given node.
 	 * 
@@ -265,30 +331,24 @@ public class SciGraphTraverser {
 		}
 		
 		// Check if we've already done the work.
+		if (icValues != null)
+		{
+			int id = icView.getId(n);
+			if (id != -1)
+			{
+				return icValues[id];
+			}
+		}
 		if (n.hasProperty(IC_KEY))
 		{
 			return (double) n.getProperty(IC_KEY);
 		}
-//		
-//		// Make all the descendants push up.
-//		for (Node descendant : getUnpushedDescendants(n))
-//		{
-//			pushUp(descendant);
-//		}
-//		
-//		// TODO: Everything related to IC will need to be recalculated to
-//		// handle annotations.
-//		int descendants = (int) n.getProperty(DESCENDANT_KEY);
-//		double ic = (Math.log(nodeCount) - Math.log(descendants)) / Math.log(2);
-//		
-//		Transaction tx = db.beginTx();
-//		n.setProperty(IC_KEY, ic);
-//		tx.success();
-//		tx.finish();
-//		
-//		return ic;
+		if (n.hasProperty(DESCENDANT_KEY))
+		{
+			return toIC((int) n.getProperty(DESCENDANT_KEY));
+		}
 		
-		// FIXME: Uncomment the above.
+		// FIXME: Without computeAllIC() or pushAllNodes(), every node looks the same.
 		return 1.0;
 	}
 	
@@ -383,6 +443,62 @@ public class SciGraphTraverser {
 		return lcs;
 	}
 	
-	// FIXME: There should be an optional cleanup method to remove all the extra properties.
+	/**
+	 * Removes the properties this traverser added to nodes, and forgets any
+	 * IC computed in memory.
+	 */
+	public void cleanup() {
+		cleanup(db, Collections.singleton(name), batchSize);
+		icView = null;
+		icValues = null;
+	}
+	
+	/**
+	 * Removes the properties the named traversers added to nodes. Other
+	 * properties are left alone, even if they look like a traverser's.
+	 * 
+	 * Nodes are scanned one at a time, and the removals are committed in a
+	 * transaction each time batchSize of them are pending. Each transaction
+	 * only holds locks on its own nodes, so read-only queries can run
+	 * alongside, though they may see some nodes cleaned and others not.
+	 * 
+	 * @param db		The database to clean
+	 * @param names		The names of the traversers to clean up after
+	 * @param batchSize	The number of removals to collect before committing
+	 * @return			The number of properties removed
+	 */
+	public static long cleanup(GraphDatabaseService db, Collection<String> names, int batchSize) {
+		logger.info("Beginning cleanup of " + names);
+		Set<String> keys = new HashSet<>();
+		for (String name : names)
+		{
+			for (String suffix : KEY_SUFFIXES)
+			{
+				keys.add(name + suffix);
+			}
+		}
+		
+		BatchedPropertyWriter writer = new BatchedPropertyWriter(db, batchSize);
+		int count = 0;
+		for (Node n : GlobalGraphOperations.at(db).getAllNodes())
+		{
+			for (String key : n.getPropertyKeys())
+			{
+				if (keys.contains(key))
+				{
+					writer.removeProperty(n.getId(), key);
+				}
+			}
+			writer.flushIfFull();
+			count++;
+			if (count % 10000 == 0)
+			{
+				logger.info("Cleaned " + count + " nodes, removed " + writer.getWrittenCount() + " properties");
+			}
+		}
+		writer.flush();
+		logger.info("Finished cleanup, removed " + writer.getWrittenCount() + " properties");
+		return writer.getWrittenCount();
+	}
 	
 }
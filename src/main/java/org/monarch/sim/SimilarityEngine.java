@@ -0,0 +1,518 @@
+package org.monarch.sim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * This class scores the semantic similarity of nodes, and of profiles made of
+ * several nodes, from the IC scores of a NaiveTraverser.
+ *
+ * Every node's ancestors are kept as a bitset over dense ids, along with the
+ * range of words actually in use, so each measure is a single loop of ANDs
+ * and bit counts over those words. Anonymous nodes are left out of every
+ * ancestor set, so they never count towards a score.
+ *
+ * The pairwise measures are Resnik (the IC of the MICA), Lin, Jiang-Conrath
+ * (as 1 / (1 + distance)) and Jaccard. Profiles are compared with SimGIC,
+ * SimUI, or the best match average of any pairwise measure. A TermProfile
+ * holds the bitsets for a profile, so a profile compared many times only has
+ * its ancestors found once.
+ *
+ * getMostSimilar() finds the terms with the highest Resnik score against a
+ * query. The snapshot's child lists serve as the inverted index from each
+ * ancestor to the terms beneath it. The query's ancestors are visited from the
+ * highest IC down, and the terms beneath each one which haven't been reached
+ * yet have it as their MICA. Terms already reached are not walked below, since
+ * everything beneath them was reached at the same time. The search stops once
+ * no remaining ancestor can beat the k-th best score.
+ *
+ * The scores are fixed when the engine is built. Build a new engine after
+ * pushing new IC scores or changing the edges.
+ */
+public class SimilarityEngine {
+
+	/**
+	 * The measures for comparing a pair of nodes.
+	 */
+	public enum Measure {
+		RESNIK, LIN, JIANG_CONRATH, JACCARD
+	}
+
+	private final ClosureEngine engine;
+	private final double [] ic;
+	private final BitSet hidden;
+
+	// Each thread's bitsets for scoring a pair of nodes, which are left
+	// cleared after each use.
+	private final ThreadLocal<long [][]> pairWords = new ThreadLocal<long [][]>() {
+		@Override
+		protected long [][] initialValue() {
+			return new long [2][(ic.length + 63) >>> 6];
+		}
+	};
+
+	// Each thread's heap for ordering a query's ancestors.
+	private static final ThreadLocal<IdHeap> ancestorHeaps = new ThreadLocal<IdHeap>() {
+		@Override
+		protected IdHeap initialValue() {
+			return new IdHeap(64);
+		}
+	};
+
+	/**
+	 * Sets up an engine over a snapshot.
+	 *
+	 * @param engine	The closure engine of the snapshot, restricted to the relevant edges
+	 * @param ic		The IC of each node, by dense id
+	 * @param hidden	The dense ids of nodes to leave out of ancestor sets
+	 */
+	public SimilarityEngine(ClosureEngine engine, double [] ic, BitSet hidden) {
+		this.engine = engine;
+		this.ic = ic;
+		this.hidden = hidden;
+	}
+
+	/**
+	 * The ancestors of a node, or the union of the ancestors of several nodes.
+	 */
+	public static class AncestorSet {
+
+		final long [] words;
+		// Only words from up to to are ever set.
+		final int from;
+		final int to;
+		final int count;
+		final double icSum;
+
+		AncestorSet(long [] words, int from, int to, int count, double icSum) {
+			this.words = words;
+			this.from = from;
+			this.to = to;
+			this.count = count;
+			this.icSum = icSum;
+		}
+
+		/**
+		 * The number of ancestors.
+		 */
+		public int size() {
+			return count;
+		}
+
+	}
+
+	/**
+	 * The ancestor sets of every node in a profile, and of the whole profile.
+	 */
+	public static class TermProfile {
+
+		final double [] termIC;
+		final AncestorSet [] terms;
+		final AncestorSet union;
+
+		TermProfile(double [] termIC, AncestorSet [] terms, AncestorSet union) {
+			this.termIC = termIC;
+			this.terms = terms;
+			this.union = union;
+		}
+
+		/**
+		 * The number of nodes in the profile.
+		 */
+		public int size() {
+			return terms.length;
+		}
+
+	}
+
+	// The IC of a node, for scoring outside the engine.
+	double getIC(int id) {
+		return ic[id];
+	}
+
+	// The ancestors of a node as sorted dense ids, leaving out hidden ones.
+	int [] getAncestorIds(int id) {
+		ClosureEngine.Closure closure = engine.getAncestors(id, 0);
+		int [] ids = new int [closure.size()];
+		int size = 0;
+		for (int i = 0; i < closure.size(); i++)
+		{
+			if (!hidden.get(closure.get(i)))
+			{
+				ids[size++] = closure.get(i);
+			}
+		}
+		ids = Arrays.copyOf(ids, size);
+		Arrays.sort(ids);
+		return ids;
+	}
+
+	int getId(Node n) {
+		int id = engine.getView().getId(n);
+		if (id < 0)
+		{
+			throw new IllegalArgumentException(n + " is not in the snapshot");
+		}
+		return id;
+	}
+
+	/**
+	 * Finds the ancestors of a node (inclusive), leaving out hidden ones.
+	 *
+	 * @param n	The node whose ancestors we want
+	 */
+	public AncestorSet getAncestors(Node n) {
+		return getAncestors(getId(n), new long [(ic.length + 63) >>> 6]);
+	}
+
+	private AncestorSet getAncestors(int id, long [] words) {
+		ClosureEngine.Closure closure = engine.getAncestors(id, 0);
+		return fill(words, closure.ids(), closure.size());
+	}
+
+	private AncestorSet fill(long [] words, int [] ids, int size) {
+		for (int i = 0; i < size; i++)
+		{
+			if (!hidden.get(ids[i]))
+			{
+				words[ids[i] >>> 6] |= 1L << ids[i];
+			}
+		}
+		return summarize(words);
+	}
+
+	// Finds the range, size and total IC of a filled bitset.
+	private AncestorSet summarize(long [] words) {
+		int from = 0;
+		while (from < words.length && words[from] == 0)
+		{
+			from++;
+		}
+		int to = words.length;
+		while (to > from && words[to - 1] == 0)
+		{
+			to--;
+		}
+
+		int count = 0;
+		double icSum = 0;
+		for (int w = from; w < to; w++)
+		{
+			count += Long.bitCount(words[w]);
+			icSum += sumIC(words[w], w);
+		}
+		return new AncestorSet(words, from, to, count, icSum);
+	}
+
+	/**
+	 * Finds the ancestors of each node in a profile, and of the whole profile.
+	 *
+	 * @param nodes	The nodes in the profile
+	 */
+	public TermProfile getProfile(Collection<Node> nodes) {
+		double [] termIC = new double [nodes.size()];
+		AncestorSet [] terms = new AncestorSet [nodes.size()];
+		long [] union = new long [(ic.length + 63) >>> 6];
+		int i = 0;
+		for (Node n : nodes)
+		{
+			termIC[i] = ic[getId(n)];
+			terms[i] = getAncestors(n);
+			for (int w = terms[i].from; w < terms[i].to; w++)
+			{
+				union[w] |= terms[i].words[w];
+			}
+			i++;
+		}
+		return new TermProfile(termIC, terms, summarize(union));
+	}
+
+	// Adds up the IC of the nodes in one word.
+	private double sumIC(long word, int w) {
+		double sum = 0;
+		while (word != 0)
+		{
+			sum += ic[(w << 6) + Long.numberOfTrailingZeros(word)];
+			word &= word - 1;
+		}
+		return sum;
+	}
+
+	private static int intersectionSize(AncestorSet first, AncestorSet second) {
+		int count = 0;
+		int to = Math.min(first.to, second.to);
+		for (int w = Math.max(first.from, second.from); w < to; w++)
+		{
+			count += Long.bitCount(first.words[w] & second.words[w]);
+		}
+		return count;
+	}
+
+	private double intersectionIC(AncestorSet first, AncestorSet second) {
+		double sum = 0;
+		int to = Math.min(first.to, second.to);
+		for (int w = Math.max(first.from, second.from); w < to; w++)
+		{
+			sum += sumIC(first.words[w] & second.words[w], w);
+		}
+		return sum;
+	}
+
+	// Finds the highest IC of any common ancestor, or 0 if there are none.
+	private double maxCommonIC(AncestorSet first, AncestorSet second) {
+		double max = 0;
+		int to = Math.min(first.to, second.to);
+		for (int w = Math.max(first.from, second.from); w < to; w++)
+		{
+			long word = first.words[w] & second.words[w];
+			while (word != 0)
+			{
+				max = Math.max(max, ic[(w << 6) + Long.numberOfTrailingZeros(word)]);
+				word &= word - 1;
+			}
+		}
+		return max;
+	}
+
+	private double score(AncestorSet first, double firstIC, AncestorSet second, double secondIC, Measure measure) {
+		switch (measure)
+		{
+		case RESNIK:
+			return maxCommonIC(first, second);
+		case LIN:
+			double total = firstIC + secondIC;
+			return total == 0 ? 0 : 2 * maxCommonIC(first, second) / total;
+		case JIANG_CONRATH:
+			return 1 / (1 + firstIC + secondIC - 2 * maxCommonIC(first, second));
+		case JACCARD:
+			int common = intersectionSize(first, second);
+			int all = first.count + second.count - common;
+			return all == 0 ? 0 : (double) common / all;
+		default:
+			throw new IllegalArgumentException("Unknown measure " + measure);
+		}
+	}
+
+	/**
+	 * Scores how similar two nodes are.
+	 *
+	 * @param first		One of the nodes
+	 * @param second	The other node
+	 * @param measure	The measure to use
+	 */
+	public double getSimilarity(Node first, Node second, Measure measure) {
+		int firstId = getId(first);
+		int secondId = getId(second);
+		long [][] words = pairWords.get();
+		AncestorSet firstAncestors = getAncestors(firstId, words[0]);
+		AncestorSet secondAncestors = getAncestors(secondId, words[1]);
+		try
+		{
+			return score(firstAncestors, ic[firstId], secondAncestors, ic[secondId], measure);
+		}
+		finally
+		{
+			// Only the words in use were set.
+			Arrays.fill(words[0], firstAncestors.from, firstAncestors.to, 0);
+			Arrays.fill(words[1], secondAncestors.from, secondAncestors.to, 0);
+		}
+	}
+
+	/**
+	 * The IC of the most informative common ancestor of two nodes.
+	 */
+	public double getResnik(Node first, Node second) {
+		return getSimilarity(first, second, Measure.RESNIK);
+	}
+
+	/**
+	 * Twice the Resnik score over the sum of the nodes' IC.
+	 */
+	public double getLin(Node first, Node second) {
+		return getSimilarity(first, second, Measure.LIN);
+	}
+
+	/**
+	 * 1 / (1 + distance), where the Jiang-Conrath distance is the sum of the
+	 * nodes' IC less twice the Resnik score.
+	 */
+	public double getJiangConrath(Node first, Node second) {
+		return getSimilarity(first, second, Measure.JIANG_CONRATH);
+	}
+
+	/**
+	 * The shared ancestors over all the ancestors of two nodes.
+	 */
+	public double getJaccard(Node first, Node second) {
+		return getSimilarity(first, second, Measure.JACCARD);
+	}
+
+	/**
+	 * The total IC of the ancestors two profiles share, over the total IC of
+	 * all their ancestors.
+	 *
+	 * @param first		One of the profiles
+	 * @param second	The other profile
+	 */
+	public double getSimGIC(TermProfile first, TermProfile second) {
+		double common = intersectionIC(first.union, second.union);
+		double all = first.union.icSum + second.union.icSum - common;
+		return all == 0 ? 0 : common / all;
+	}
+
+	/**
+	 * The number of ancestors two profiles share, over the number of all their
+	 * ancestors.
+	 *
+	 * @param first		One of the profiles
+	 * @param second	The other profile
+	 */
+	public double getSimUI(TermProfile first, TermProfile second) {
+		return score(first.union, 0, second.union, 0, Measure.JACCARD);
+	}
+
+	/**
+	 * Matches each node of either profile with its best match in the other,
+	 * and averages the two sides' average scores.
+	 *
+	 * @param first		One of the profiles
+	 * @param second	The other profile
+	 * @param measure	The measure to score pairs with
+	 */
+	public double getBestMatchAverage(TermProfile first, TermProfile second, Measure measure) {
+		if (first.size() == 0 || second.size() == 0)
+		{
+			return 0;
+		}
+
+		double firstTotal = 0;
+		double [] secondBest = new double [second.size()];
+		for (int i = 0; i < first.size(); i++)
+		{
+			double best = 0;
+			for (int j = 0; j < second.size(); j++)
+			{
+				double score = score(first.terms[i], first.termIC[i], second.terms[j], second.termIC[j], measure);
+				best = Math.max(best, score);
+				secondBest[j] = Math.max(secondBest[j], score);
+			}
+			firstTotal += best;
+		}
+
+		double secondTotal = 0;
+		for (double best : secondBest)
+		{
+			secondTotal += best;
+		}
+		return (firstTotal / first.size() + secondTotal / second.size()) / 2;
+	}
+
+	/**
+	 * Scores two profiles, finding the ancestors of both.
+	 *
+	 * @see #getSimGIC(TermProfile, TermProfile)
+	 */
+	public double getSimGIC(Collection<Node> first, Collection<Node> second) {
+		return getSimGIC(getProfile(first), getProfile(second));
+	}
+
+	/**
+	 * Scores two profiles, finding the ancestors of both.
+	 *
+	 * @see #getSimUI(TermProfile, TermProfile)
+	 */
+	public double getSimUI(Collection<Node> first, Collection<Node> second) {
+		return getSimUI(getProfile(first), getProfile(second));
+	}
+
+	/**
+	 * Scores two profiles, finding the ancestors of both.
+	 *
+	 * @see #getBestMatchAverage(TermProfile, TermProfile, Measure)
+	 */
+	public double getBestMatchAverage(Collection<Node> first, Collection<Node> second, Measure measure) {
+		return getBestMatchAverage(getProfile(first), getProfile(second), measure);
+	}
+
+	/**
+	 * Finds the terms with the highest Resnik score against a query, leaving
+	 * out the query itself, anonymous nodes and terms with no common ancestor.
+	 *
+	 * @param query	The dense id of the query
+	 * @param k		The number of terms to find
+	 * @return		The dense ids and scores of the terms, best first
+	 */
+	public TopK findMostSimilar(int query, int k) {
+		TopK best = new TopK(k);
+		GraphSnapshot view = engine.getView();
+
+		// Order the query's ancestors from the highest IC down.
+		ClosureEngine.Closure ancestors = engine.getAncestors(query, 0);
+		IdHeap heap = ancestorHeaps.get();
+		heap.clear();
+		for (int i = 0; i < ancestors.size(); i++)
+		{
+			int ancestor = ancestors.get(i);
+			if (!hidden.get(ancestor))
+			{
+				heap.push(ancestor, ic[ancestor]);
+			}
+		}
+
+		// The reached terms double as the queue for walking down.
+		ClosureEngine.Closure reached = engine.getEmptyClosure(1);
+		while (!heap.isEmpty())
+		{
+			double score = heap.peekKey();
+			if (best.isFull() && best.getMinScore() > score)
+			{
+				break;
+			}
+
+			int head = reached.size();
+			if (!reached.add(heap.pop()))
+			{
+				continue;
+			}
+			for (; head < reached.size(); head++)
+			{
+				int next = reached.get(head);
+				if (next != query && !hidden.get(next))
+				{
+					best.push(next, score);
+				}
+				for (int edge = view.childOffsets[next]; edge < view.childOffsets[next + 1]; edge++)
+				{
+					reached.add(view.children[edge]);
+				}
+			}
+		}
+
+		best.sort();
+		return best;
+	}
+
+	/**
+	 * Finds the terms with the highest Resnik score against a query, leaving
+	 * out the query itself, anonymous nodes and terms with no common ancestor.
+	 *
+	 * @param query	The node to compare against
+	 * @param k		The number of terms to find
+	 * @return		The terms, best first
+	 */
+	public List<Node> getMostSimilar(Node query, int k) {
+		TopK best = findMostSimilar(getId(query), k);
+		List<Node> nodes = new ArrayList<>();
+		for (int i = 0; i < best.size(); i++)
+		{
+			nodes.add(engine.getView().getNode(best.getId(i)));
+		}
+		return nodes;
+	}
+
+}
@@ -0,0 +1,156 @@
+package org.monarch.sim;
+
+/**
+ * A fixed-size heap which keeps the k best int ids pushed to it, by double
+ * score, in primitive arrays. The worst id kept is at the root, so checking
+ * whether a new id belongs is a single comparison. Ids with equal scores rank
+ * smallest first.
+ *
+ * Once sort() is called, the ids are in order from best to worst, and the
+ * heap may be cleared for reuse.
+ */
+public class TopK {
+
+	private final int [] ids;
+	private final double [] scores;
+	private int size = 0;
+	private boolean sorted = false;
+
+	public TopK(int k) {
+		if (k < 1)
+		{
+			throw new IllegalArgumentException("k must be positive, not " + k);
+		}
+		ids = new int [k];
+		scores = new double [k];
+	}
+
+	public void clear() {
+		size = 0;
+		sorted = false;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Whether k ids are kept, so new ids must beat the worst of them.
+	 */
+	public boolean isFull() {
+		return size == ids.length;
+	}
+
+	/**
+	 * The worst score kept.
+	 */
+	public double getMinScore() {
+		return scores[0];
+	}
+
+	/**
+	 * Offers an id to the heap.
+	 *
+	 * @param id	The id to offer
+	 * @param score	Its score
+	 * @return		Whether the id was kept
+	 */
+	public boolean push(int id, double score) {
+		if (sorted)
+		{
+			throw new IllegalStateException("The heap has been sorted");
+		}
+
+		if (size < ids.length)
+		{
+			// Move the new entry up until its parent is worse.
+			int slot = size++;
+			while (slot > 0)
+			{
+				int parent = (slot - 1) >>> 1;
+				if (!better(ids[parent], scores[parent], id, score))
+				{
+					break;
+				}
+				ids[slot] = ids[parent];
+				scores[slot] = scores[parent];
+				slot = parent;
+			}
+			ids[slot] = id;
+			scores[slot] = score;
+			return true;
+		}
+
+		if (!better(id, score, ids[0], scores[0]))
+		{
+			return false;
+		}
+		siftDown(id, score, size);
+		return true;
+	}
+
+	// Puts an entry at the root and moves it down until both children are better.
+	private void siftDown(int id, double score, int length) {
+		int slot = 0;
+		while (true)
+		{
+			int child = 2 * slot + 1;
+			if (child >= length)
+			{
+				break;
+			}
+			if (child + 1 < length && better(ids[child], scores[child], ids[child + 1], scores[child + 1]))
+			{
+				child++;
+			}
+			if (!better(id, score, ids[child], scores[child]))
+			{
+				break;
+			}
+			ids[slot] = ids[child];
+			scores[slot] = scores[child];
+			slot = child;
+		}
+		ids[slot] = id;
+		scores[slot] = score;
+	}
+
+	/**
+	 * Puts the ids in order from best to worst.
+	 */
+	public void sort() {
+		// Move the worst id to the back, one at a time.
+		for (int length = size - 1; length > 0; length--)
+		{
+			int worst = ids[0];
+			double worstScore = scores[0];
+			siftDown(ids[length], scores[length], length);
+			ids[length] = worst;
+			scores[length] = worstScore;
+		}
+		sorted = true;
+	}
+
+	/**
+	 * Finds the id at a position, which is its rank once sorted.
+	 *
+	 * @param i	The position
+	 */
+	public int getId(int i) {
+		return ids[i];
+	}
+
+	/**
+	 * Finds the score at a position.
+	 *
+	 * @param i	The position
+	 */
+	public double getScore(int i) {
+		return scores[i];
+	}
+
+	private static boolean better(int id, double score, int otherId, double otherScore) {
+		return score > otherScore || (score == otherScore && id < otherId);
+	}
+
+}
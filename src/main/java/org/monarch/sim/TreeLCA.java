@@ -0,0 +1,260 @@
+package org.monarch.sim;
+
+import java.util.Arrays;
+
+/**
+ * This class finds lowest common ancestors in constant time within the parts
+ * of a graph snapshot which are trees.
+ *
+ * A node is a tree node if it and every node above it has at most one parent,
+ * so its ancestors are just the chain up to its root. The tree nodes form a
+ * forest. An Euler tour of the forest lists each node every time the tour
+ * passes through it, and the LCA of two nodes is the shallowest node listed
+ * between their first visits. A sparse table holds the shallowest node of
+ * every run of a power of two positions, so any range is covered by two runs.
+ *
+ * Nodes with several parents, nodes in cycles and everything below them fall
+ * outside the forest, and callers must find their ancestors some other way.
+ */
+public class TreeLCA {
+
+	// What findTreeNodes() knows about each node, where 0 means nothing yet.
+	private static final byte ON_CHAIN = 1;
+	private static final byte TREE = 2;
+	private static final byte OTHER = 3;
+
+	private final GraphSnapshot view;
+
+	// The parent of each tree node, or -1 for roots and other nodes.
+	private final int [] parents;
+	private final boolean [] treeNodes;
+	private final int [] roots;
+
+	// The position of each tree node's first visit, and the depth at each visit.
+	private final int [] firstVisits;
+	private final int [] depths;
+
+	// shallowest[k][i] is the shallowest node visited at positions i up to i + 2^k.
+	private final int [][] shallowest;
+
+	/**
+	 * Finds the tree nodes of a snapshot and tours them.
+	 *
+	 * @param view	The snapshot to search, restricted to the relevant edges
+	 */
+	public TreeLCA(GraphSnapshot view) {
+		this.view = view;
+		int size = view.size();
+		parents = new int [size];
+		treeNodes = new boolean [size];
+		roots = new int [size];
+		firstVisits = new int [size];
+		Arrays.fill(parents, -1);
+		Arrays.fill(firstVisits, -1);
+
+		findTreeNodes();
+
+		// Gather each tree node's children in the forest.
+		int [] childOffsets = new int [size + 1];
+		int treeSize = 0;
+		for (int id = 0; id < size; id++)
+		{
+			if (treeNodes[id])
+			{
+				treeSize++;
+				if (parents[id] >= 0)
+				{
+					childOffsets[parents[id] + 1]++;
+				}
+			}
+		}
+		for (int id = 1; id <= size; id++)
+		{
+			childOffsets[id] += childOffsets[id - 1];
+		}
+		int [] children = new int [childOffsets[size]];
+		int [] slots = Arrays.copyOf(childOffsets, size);
+		for (int id = 0; id < size; id++)
+		{
+			if (treeNodes[id] && parents[id] >= 0)
+			{
+				children[slots[parents[id]]++] = id;
+			}
+		}
+
+		// Tour each tree, revisiting a node after each of its children.
+		int tourLength = Math.max(2 * treeSize - 1, 0);
+		int [] tour = new int [tourLength];
+		depths = new int [tourLength];
+		int [] stack = new int [treeSize];
+		int [] positions = new int [size];
+		int visits = 0;
+		for (int root = 0; root < size; root++)
+		{
+			if (!treeNodes[root] || parents[root] >= 0)
+			{
+				continue;
+			}
+
+			int depth = 0;
+			stack[depth++] = root;
+			roots[root] = root;
+			firstVisits[root] = visits;
+			tour[visits] = root;
+			depths[visits++] = 0;
+			while (depth > 0)
+			{
+				int next = stack[depth - 1];
+				int edge = childOffsets[next] + positions[next];
+				if (edge < childOffsets[next + 1])
+				{
+					positions[next]++;
+					int child = children[edge];
+					stack[depth++] = child;
+					roots[child] = root;
+					firstVisits[child] = visits;
+					tour[visits] = child;
+					depths[visits++] = depth - 1;
+					continue;
+				}
+
+				// Done with this node, so the tour returns to its parent.
+				depth--;
+				if (depth > 0)
+				{
+					tour[visits] = stack[depth - 1];
+					depths[visits++] = depth - 1;
+				}
+			}
+		}
+		shallowest = buildTable(tour, visits);
+	}
+
+	// A node is a tree node if its single parent is, or if it has no parents.
+	private void findTreeNodes() {
+		int size = view.size();
+		byte [] states = new byte [size];
+		int [] chain = new int [size];
+		for (int start = 0; start < size; start++)
+		{
+			// Climb single parents until we reach a node we know about.
+			int length = 0;
+			int next = start;
+			byte state;
+			while (true)
+			{
+				if (states[next] == TREE || states[next] == OTHER)
+				{
+					state = states[next];
+					break;
+				}
+				if (states[next] == ON_CHAIN)
+				{
+					// We came back around a cycle.
+					state = OTHER;
+					break;
+				}
+				int parentCount = view.parentOffsets[next + 1] - view.parentOffsets[next];
+				if (parentCount > 1)
+				{
+					states[next] = OTHER;
+					state = OTHER;
+					break;
+				}
+				states[next] = ON_CHAIN;
+				chain[length++] = next;
+				if (parentCount == 0)
+				{
+					state = TREE;
+					break;
+				}
+				next = view.parents[view.parentOffsets[next]];
+			}
+
+			// Everything on the chain shares the fate of the top.
+			while (length > 0)
+			{
+				int id = chain[--length];
+				states[id] = state;
+				if (state == TREE)
+				{
+					treeNodes[id] = true;
+					int parentCount = view.parentOffsets[id + 1] - view.parentOffsets[id];
+					parents[id] = parentCount == 0 ? -1 : view.parents[view.parentOffsets[id]];
+				}
+			}
+		}
+	}
+
+	private int [][] buildTable(int [] tour, int length) {
+		int levels = 1;
+		while ((1 << levels) <= length)
+		{
+			levels++;
+		}
+		int [][] table = new int [levels][];
+		table[0] = tour;
+		for (int k = 1; k < levels; k++)
+		{
+			int half = 1 << (k - 1);
+			int [] previous = table[k - 1];
+			int [] current = new int [length - (1 << k) + 1];
+			for (int i = 0; i < current.length; i++)
+			{
+				int left = previous[i];
+				int right = previous[i + half];
+				current[i] = depthOf(left) <= depthOf(right) ? left : right;
+			}
+			table[k] = current;
+		}
+		return table;
+	}
+
+	private int depthOf(int id) {
+		return depths[firstVisits[id]];
+	}
+
+	public GraphSnapshot getView() {
+		return view;
+	}
+
+	/**
+	 * Whether a node's ancestors are a single chain up to a root.
+	 *
+	 * @param id	The dense id of the node
+	 */
+	public boolean isTreeNode(int id) {
+		return treeNodes[id];
+	}
+
+	/**
+	 * Finds the parent of a tree node, or -1 for a root.
+	 *
+	 * @param id	The dense id of the tree node
+	 */
+	public int getParent(int id) {
+		return parents[id];
+	}
+
+	/**
+	 * Finds the lowest common ancestor of two tree nodes, or -1 if they are in
+	 * different trees.
+	 *
+	 * @param first		The dense id of one tree node
+	 * @param second	The dense id of the other tree node
+	 */
+	public int getLCA(int first, int second) {
+		if (roots[first] != roots[second])
+		{
+			return -1;
+		}
+
+		int from = Math.min(firstVisits[first], firstVisits[second]);
+		int to = Math.max(firstVisits[first], firstVisits[second]) + 1;
+		int k = 31 - Integer.numberOfLeadingZeros(to - from);
+		int left = shallowest[k][from];
+		int right = shallowest[k][to - (1 << k)];
+		return depthOf(left) <= depthOf(right) ? left : right;
+	}
+
+}
@@ -0,0 +1,142 @@
+package org.monarch.sim;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+public class BatchedPropertyWriterTest {
+
+	// A fresh tree for each test, since every test writes to it.
+	GraphDatabaseService db;
+	List<Node> nodes;
+
+	@Before
+	public void setUp() {
+		db = new TestGraphFactory().buildTreeDB(15);
+		nodes = new ArrayList<>();
+		for (Node n : GlobalGraphOperations.at(db).getAllNodes())
+		{
+			nodes.add(n);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		db.shutdown();
+	}
+
+	@Test
+	public void flushTest() {
+		BatchedPropertyWriter writer = new BatchedPropertyWriter(db, 2);
+		for (int i = 0; i < 10; i++)
+		{
+			for (Node n : nodes.subList(0, i + 1))
+			{
+				writer.increment(n.getId(), "count", 1);
+			}
+		}
+		writer.setProperty(nodes.get(0).getId(), "flag", true);
+		assertEquals(11, writer.getPendingCount());
+		assertFalse(nodes.get(0).hasProperty("count"));
+
+		writer.flush();
+		assertEquals(0, writer.getPendingCount());
+		assertEquals(11, writer.getWrittenCount());
+		assertEquals(true, nodes.get(0).getProperty("flag"));
+		for (int i = 0; i < 10; i++)
+		{
+			assertEquals(10 - i, nodes.get(i).getProperty("count"));
+		}
+		assertFalse(nodes.get(10).hasProperty("count"));
+
+		// Later increments add to what was written.
+		writer.increment(nodes.get(0).getId(), "count", 5);
+		writer.removeProperty(nodes.get(0).getId(), "flag");
+		writer.flush();
+		assertEquals(15, nodes.get(0).getProperty("count"));
+		assertFalse(nodes.get(0).hasProperty("flag"));
+	}
+
+	@Test
+	public void flushIfFullTest() {
+		BatchedPropertyWriter writer = new BatchedPropertyWriter(db, 3);
+		writer.increment(nodes.get(1).getId(), "count", 1);
+		writer.setProperty(nodes.get(1).getId(), "flag", true);
+		writer.flushIfFull();
+		assertEquals(2, writer.getPendingCount());
+		assertFalse(nodes.get(1).hasProperty("flag"));
+
+		writer.increment(nodes.get(2).getId(), "count", 1);
+		writer.flushIfFull();
+		assertEquals(0, writer.getPendingCount());
+		assertEquals(1, nodes.get(2).getProperty("count"));
+	}
+
+	@Test
+	public void numericIncrementTest() {
+		// Counts written as other kinds of number still add up.
+		Transaction tx = db.beginTx();
+		nodes.get(1).setProperty("count", 4L);
+		nodes.get(2).setProperty("count", (short) 2);
+		nodes.get(3).setProperty("count", "many");
+		tx.success();
+		tx.finish();
+
+		BatchedPropertyWriter writer = new BatchedPropertyWriter(db);
+		writer.increment(nodes.get(1).getId(), "count", 1);
+		writer.increment(nodes.get(2).getId(), "count", 1);
+		writer.flush();
+		assertEquals(5, nodes.get(1).getProperty("count"));
+		assertEquals(3, nodes.get(2).getProperty("count"));
+
+		// Anything else fails the flush, and nothing is written.
+		writer.increment(nodes.get(1).getId(), "count", 1);
+		writer.increment(nodes.get(3).getId(), "count", 1);
+		try
+		{
+			writer.flush();
+			fail("Incremented a string");
+		}
+		catch (IllegalStateException e)
+		{
+			// Expected.
+		}
+		assertEquals(5, nodes.get(1).getProperty("count"));
+		assertEquals(2, writer.getPendingCount());
+	}
+
+	@Test
+	public void failedFlushTest() {
+		// The flush is one transaction, however small the batch size.
+		BatchedPropertyWriter writer = new BatchedPropertyWriter(db, 1);
+		writer.increment(nodes.get(1).getId(), "count", 1);
+		writer.setProperty(nodes.get(1).getId(), "flag", true);
+		writer.setProperty(1000, "flag", true);
+		try
+		{
+			writer.flush();
+			fail("Wrote to a missing node");
+		}
+		catch (NotFoundException e)
+		{
+			// Expected.
+		}
+
+		// Nothing should have been written, and everything is still pending.
+		assertFalse(nodes.get(1).hasProperty("count"));
+		assertFalse(nodes.get(1).hasProperty("flag"));
+		assertEquals(3, writer.getPendingCount());
+		assertEquals(0, writer.getWrittenCount());
+	}
+
+}
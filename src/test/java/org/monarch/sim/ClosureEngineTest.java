@@ -0,0 +1,114 @@
+package org.monarch.sim;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+
+/**
+ * Checks ClosureEngine's closures and paths against plain searches of the
+ * database.
+ */
+public class ClosureEngineTest extends GraphFixture {
+
+	private static final EdgeFilter ALL = EdgeFilter.all();
+
+	private final GraphSnapshot view;
+	private final ClosureEngine engine;
+
+	public ClosureEngineTest(String graphName) {
+		super(graphName);
+		view = GraphSnapshot.build(db).restrict(ALL);
+		engine = new ClosureEngine(view);
+	}
+
+	// Reads a closure back as nodes, checking that no id appears twice.
+	private Set<Node> toNodes(ClosureEngine.Closure closure) {
+		Set<Node> found = new HashSet<>();
+		for (int i = 0; i < closure.size(); i++)
+		{
+			assertTrue(closure.contains(closure.get(i)));
+			assertTrue(found.add(view.getNode(closure.get(i))));
+		}
+		return found;
+	}
+
+	@Test
+	public void closureTest() {
+		for (Node n : nodes)
+		{
+			int id = view.getId(n);
+			Set<Node> above = GraphOracle.reach(n, ALL, true);
+			Set<Node> below = GraphOracle.reach(n, ALL, false);
+			assertEquals(above, toNodes(engine.getAncestors(id, 0)));
+			assertEquals(below, toNodes(engine.getDescendants(id, 1)));
+
+			// The start comes first, and nothing else is a member.
+			ClosureEngine.Closure ancestors = engine.getAncestors(id, 0);
+			assertEquals(id, ancestors.get(0));
+			for (Node other : nodes)
+			{
+				assertEquals(above.contains(other), ancestors.contains(view.getId(other)));
+			}
+		}
+	}
+
+	@Test
+	public void slotTest() {
+		for (Node n : nodes)
+		{
+			// Filling one slot leaves the other alone, and refilling a slot replaces it.
+			int id = view.getId(n);
+			ClosureEngine.Closure ancestors = engine.getAncestors(id, 0);
+			ClosureEngine.Closure descendants = engine.getDescendants(id, 1);
+			assertEquals(GraphOracle.reach(n, ALL, true), toNodes(ancestors));
+			assertSame(ancestors, engine.getDescendants(id, 0));
+			assertEquals(GraphOracle.reach(n, ALL, false), toNodes(ancestors));
+			assertEquals(GraphOracle.reach(n, ALL, false), toNodes(descendants));
+
+			ClosureEngine.Closure empty = engine.getEmptyClosure(1);
+			assertSame(descendants, empty);
+			assertEquals(0, empty.size());
+			assertFalse(empty.contains(id));
+		}
+	}
+
+	@Test
+	public void pathTest() {
+		for (Node first : nodes)
+		{
+			for (Node second : nodes)
+			{
+				int distance = GraphOracle.getDistance(first, second, ALL);
+				int [] path = engine.getPath(view.getId(first), view.getId(second));
+				if (distance < 0)
+				{
+					assertNull(path);
+					continue;
+				}
+
+				// Each step goes up a real edge, and no path is shorter.
+				assertEquals(distance + 1, path.length);
+				assertEquals(first, view.getNode(path[0]));
+				assertEquals(second, view.getNode(path[path.length - 1]));
+				for (int i = 1; i < path.length; i++)
+				{
+					Set<Node> parents = GraphOracle.getNeighbors(view.getNode(path[i - 1]), ALL, true);
+					assertTrue(parents.contains(view.getNode(path[i])));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void indexTest() {
+		for (Node n : nodes)
+		{
+			assertEquals(n.getId(), ClosureEngine.getIndex(n));
+		}
+	}
+
+}
@@ -0,0 +1,71 @@
+package org.monarch.sim;
+
+import static org.junit.Assert.*;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CompressedBitmapTest {
+
+	private void checkMatches(BitSet expected, CompressedBitmap actual, int range) {
+		assertEquals(expected.cardinality(), actual.cardinality());
+		for (int i = 0; i < range; i++)
+		{
+			assertEquals(expected.get(i), actual.contains(i));
+		}
+	}
+
+	@Test
+	public void sparseTest() {
+		// A few ids spread across several chunks.
+		BitSet expected = new BitSet();
+		CompressedBitmap actual = new CompressedBitmap();
+		int [] ids = {0, 5, 65535, 65536, 200000, 5};
+		for (int id : ids)
+		{
+			expected.set(id);
+			actual.add(id);
+		}
+		checkMatches(expected, actual, 300000);
+	}
+
+	@Test
+	public void denseTest() {
+		// Enough ids in one chunk to switch it to a bitmap.
+		BitSet expected = new BitSet();
+		CompressedBitmap actual = new CompressedBitmap();
+		for (int id = 0; id < 10000; id += 2)
+		{
+			expected.set(id);
+			actual.add(id);
+		}
+		checkMatches(expected, actual, 20000);
+	}
+
+	@Test
+	public void unionTest() {
+		// Merge random sets of varying density.
+		Random random = new Random(42);
+		BitSet expected = new BitSet();
+		CompressedBitmap actual = new CompressedBitmap();
+		for (int round = 0; round < 20; round++)
+		{
+			BitSet expectedPart = new BitSet();
+			CompressedBitmap actualPart = new CompressedBitmap();
+			int count = random.nextInt(3000);
+			for (int i = 0; i < count; i++)
+			{
+				int id = random.nextInt(150000);
+				expectedPart.set(id);
+				actualPart.add(id);
+			}
+			expected.or(expectedPart);
+			actual.or(actualPart);
+			checkMatches(expectedPart, actualPart, 150000);
+		}
+		checkMatches(expected, actual, 150000);
+	}
+
+}
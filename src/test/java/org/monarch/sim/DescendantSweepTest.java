@@ -0,0 +1,119 @@
+package org.monarch.sim;
+
+import static org.junit.Assert.*;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+
+/**
+ * Checks the descendant counts of DescendantSweep and IncrementalSweep against
+ * plain searches of the database.
+ */
+public class DescendantSweepTest extends GraphFixture {
+
+	private final GraphSnapshot full;
+
+	public DescendantSweepTest(String graphName) {
+		super(graphName);
+		full = GraphSnapshot.build(db);
+	}
+
+	// Counts the nodes below each node (inclusive), leaving some out.
+	private void checkCounts(GraphSnapshot view, EdgeFilter filter, BitSet excluded, int [] counts) {
+		assertEquals(view.size(), counts.length);
+		for (Node n : nodes)
+		{
+			int expected = 0;
+			for (Node below : GraphOracle.reach(n, filter, false))
+			{
+				if (excluded == null || !excluded.get(view.getId(below)))
+				{
+					expected++;
+				}
+			}
+			assertEquals(expected, counts[view.getId(n)]);
+		}
+	}
+
+	// Leaves out every other node.
+	private BitSet getExcluded(GraphSnapshot view) {
+		BitSet excluded = new BitSet(view.size());
+		for (int id = 0; id < view.size(); id += 2)
+		{
+			excluded.set(id);
+		}
+		return excluded;
+	}
+
+	@Test
+	public void countTest() {
+		EdgeFilter filter = EdgeFilter.all();
+		GraphSnapshot view = full.restrict(filter);
+		BitSet excluded = getExcluded(view);
+		checkCounts(view, filter, null, DescendantSweep.count(view));
+		checkCounts(view, filter, excluded, DescendantSweep.count(view, excluded));
+	}
+
+	@Test
+	public void parallelCountTest() {
+		EdgeFilter filter = EdgeFilter.all();
+		GraphSnapshot view = full.restrict(filter);
+		BitSet excluded = getExcluded(view);
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try
+		{
+			checkCounts(view, filter, null, DescendantSweep.count(view, pool));
+			checkCounts(view, filter, excluded, DescendantSweep.count(view, excluded, pool));
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void recountTest() {
+		EdgeFilter oldFilter = EdgeFilter.all();
+		GraphSnapshot oldView = full.restrict(oldFilter);
+		for (EdgeFilter newFilter : new EdgeFilter [] {
+				EdgeFilter.excluding(Collections.singleton("EQUIVALENT_TO")),
+				EdgeFilter.excluding(Collections.singleton("SUBCLASS_OF")),
+				oldFilter,
+				})
+		{
+			GraphSnapshot newView = full.restrict(newFilter);
+			ClosureEngine.Closure affected = IncrementalSweep.getAffected(oldView, newView);
+
+			// Nodes left out of the recount must not have changed.
+			int [] counts = DescendantSweep.count(oldView);
+			for (Node n : nodes)
+			{
+				int id = newView.getId(n);
+				if (!affected.contains(id))
+				{
+					assertEquals(GraphOracle.reach(n, newFilter, false).size(), counts[id]);
+				}
+			}
+
+			IncrementalSweep.recount(newView, affected, counts);
+			checkCounts(newView, newFilter, null, counts);
+
+			BitSet excluded = getExcluded(newView);
+			counts = DescendantSweep.count(oldView, excluded);
+			IncrementalSweep.recount(newView, affected, counts, excluded);
+			checkCounts(newView, newFilter, excluded, counts);
+		}
+	}
+
+	@Test
+	public void unchangedTest() {
+		// Nothing is affected when the edges are the same.
+		GraphSnapshot view = full.restrict(EdgeFilter.all());
+		assertEquals(0, IncrementalSweep.getAffected(view, full.restrict(EdgeFilter.all())).size());
+	}
+
+}
@@ -0,0 +1,113 @@
+package org.monarch.sim;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+/**
+ * Checks the neighbors an EdgeFilter finds, in the database and in a
+ * restricted snapshot, against a plain reading of each edge's direction.
+ */
+public class EdgeFilterTest extends GraphFixture {
+
+	public EdgeFilterTest(String graphName) {
+		super(graphName);
+	}
+
+	private static List<EdgeFilter> getFilters() {
+		return Arrays.asList(
+				EdgeFilter.all(),
+				EdgeFilter.including(Collections.singleton("SUBCLASS_OF")),
+				EdgeFilter.excluding(Collections.singleton("EQUIVALENT_TO")),
+				EdgeFilter.all().withDirection("SUBCLASS_OF", Direction.INCOMING),
+				EdgeFilter.all().withDirection("SUBCLASS_OF", Direction.BOTH),
+				EdgeFilter.including(Collections.singleton("OTHER")).withDirection("EQUIVALENT_TO", Direction.BOTH)
+				);
+	}
+
+	@Test
+	public void neighborsTest() {
+		for (EdgeFilter filter : getFilters())
+		{
+			for (Node n : nodes)
+			{
+				for (boolean up : new boolean [] {true, false})
+				{
+					Set<Node> found = new HashSet<>();
+					filter.addNeighbors(n, up, found);
+					assertEquals(GraphOracle.getNeighbors(n, filter, up), found);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void snapshotTest() {
+		GraphSnapshot full = GraphSnapshot.build(db);
+		for (EdgeFilter filter : getFilters())
+		{
+			GraphSnapshot view = full.restrict(filter);
+			for (Node n : nodes)
+			{
+				int id = view.getId(n);
+				Set<Node> parents = new HashSet<>();
+				for (int edge = view.parentOffsets[id]; edge < view.parentOffsets[id + 1]; edge++)
+				{
+					parents.add(view.getNode(view.parents[edge]));
+				}
+				Set<Node> children = new HashSet<>();
+				for (int edge = view.childOffsets[id]; edge < view.childOffsets[id + 1]; edge++)
+				{
+					children.add(view.getNode(view.children[edge]));
+				}
+				assertEquals(GraphOracle.getNeighbors(n, filter, true), parents);
+				assertEquals(GraphOracle.getNeighbors(n, filter, false), children);
+			}
+		}
+	}
+
+	@Test
+	public void ordinalTest() {
+		for (EdgeFilter filter : getFilters())
+		{
+			for (Node n : nodes)
+			{
+				for (Relationship edge : n.getRelationships(Direction.OUTGOING))
+				{
+					// Types are told apart by name, not by instance.
+					String name = edge.getType().name();
+					int ordinal = filter.getOrdinal(edge.getType());
+					assertEquals(ordinal, filter.getOrdinal(DynamicRelationshipType.withName(name)));
+
+					Direction up = filter.getUpDirection(name);
+					boolean outgoingUp = up == Direction.OUTGOING || up == Direction.BOTH;
+					boolean incomingUp = up == Direction.INCOMING || up == Direction.BOTH;
+					assertEquals(outgoingUp, filter.isUp(ordinal, Direction.OUTGOING));
+					assertEquals(incomingUp, filter.isUp(ordinal, Direction.INCOMING));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void describeTest() {
+		List<String> types = Arrays.asList("SUBCLASS_OF", "EQUIVALENT_TO");
+		assertEquals(EdgeFilter.all().describe(types),
+				EdgeFilter.excluding(Collections.singleton("OTHER")).describe(types));
+		assertFalse(EdgeFilter.all().describe(types)
+				.equals(EdgeFilter.excluding(Collections.singleton("EQUIVALENT_TO")).describe(types)));
+		assertFalse(EdgeFilter.all().describe(types)
+				.equals(EdgeFilter.all().withDirection("SUBCLASS_OF", Direction.INCOMING).describe(types)));
+	}
+
+}
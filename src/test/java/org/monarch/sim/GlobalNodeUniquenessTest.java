@@ -0,0 +1,71 @@
+package org.monarch.sim;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.traversal.TraversalDescription;
+import org.neo4j.kernel.Traversal;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+/**
+ * Checks that traversals using GlobalNodeUniqueness visit exactly the nodes a
+ * plain search reaches, each of them once.
+ */
+@SuppressWarnings("deprecation")
+public class GlobalNodeUniquenessTest extends GraphFixture {
+
+	public GlobalNodeUniquenessTest(String graphName) {
+		super(graphName);
+	}
+
+	// Walks up every type of edge.
+	private TraversalDescription getUpwardTraversal(TraversalDescription td) {
+		for (RelationshipType edgeType : GlobalGraphOperations.at(db).getAllRelationshipTypes())
+		{
+			td = td.relationships(edgeType, Direction.OUTGOING);
+		}
+		return td;
+	}
+
+	private void checkVisits(TraversalDescription td) {
+		for (Node n : nodes)
+		{
+			List<Node> visited = new ArrayList<>();
+			for (Node found : td.traverse(n).nodes())
+			{
+				visited.add(found);
+			}
+			assertEquals(visited.size(), new HashSet<>(visited).size());
+			assertEquals(GraphOracle.reach(n, EdgeFilter.all(), true), new HashSet<>(visited));
+		}
+	}
+
+	@Test
+	public void breadthFirstTest() {
+		checkVisits(getUpwardTraversal(Traversal.traversal().breadthFirst()
+				.uniqueness(new GlobalNodeUniqueness())));
+	}
+
+	@Test
+	public void depthFirstTest() {
+		checkVisits(getUpwardTraversal(Traversal.traversal().depthFirst()
+				.uniqueness(new GlobalNodeUniqueness())));
+	}
+
+	@Test
+	public void expectedSizeTest() {
+		// Too small a guess only means the visited set grows.
+		checkVisits(getUpwardTraversal(Traversal.traversal().breadthFirst()
+				.uniqueness(new GlobalNodeUniqueness(), 1)));
+		checkVisits(getUpwardTraversal(Traversal.traversal().breadthFirst()
+				.uniqueness(new GlobalNodeUniqueness(), nodes.size())));
+	}
+
+}
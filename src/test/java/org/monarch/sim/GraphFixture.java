@@ -0,0 +1,66 @@
+package org.monarch.sim;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+
+/**
+ * Runs every test of a subclass once on each of the small graphs the tests
+ * share. Tests must not change the graphs.
+ */
+@RunWith(Parameterized.class)
+public abstract class GraphFixture {
+
+	private static final Map<String, GraphDatabaseService> graphs = new HashMap<>();
+
+	@Parameters(name = "{0}")
+	public static Collection<Object []> getGraphNames() {
+		return Arrays.asList(new Object [][] {
+			// Balanced binary tree.
+			{"tree"},
+			// A directed cycle with one edge reversed.
+			{"cycle"},
+			// Graph with EQUIVALENT_TO edges.
+			{"equiv"},
+			// Every node has an edge to every node added before it.
+			{"complete"},
+		});
+	}
+
+	@BeforeClass
+	public static void setUpGraphs() throws Exception {
+		TestGraphFactory factory = new TestGraphFactory();
+		graphs.put("tree", factory.buildTreeDB(31));
+		graphs.put("cycle", factory.buildCycleDB());
+		graphs.put("equiv", factory.buildEquivDB());
+		graphs.put("complete", factory.buildCompleteDB(8));
+	}
+
+	@AfterClass
+	public static void tearDownGraphs() throws Exception {
+		for (GraphDatabaseService db : graphs.values())
+		{
+			db.shutdown();
+		}
+		graphs.clear();
+	}
+
+	protected final GraphDatabaseService db;
+	protected final List<Node> nodes;
+
+	protected GraphFixture(String graphName) {
+		db = graphs.get(graphName);
+		nodes = GraphOracle.getNodes(db);
+	}
+
+}
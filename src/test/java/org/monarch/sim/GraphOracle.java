@@ -0,0 +1,165 @@
+package org.monarch.sim;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+/**
+ * Plain breadth first searches over the database, for checking the faster
+ * implementations against.
+ */
+public class GraphOracle {
+
+	public static List<Node> getNodes(GraphDatabaseService db) {
+		List<Node> nodes = new ArrayList<>();
+		for (Node n : GlobalGraphOperations.at(db).getAllNodes())
+		{
+			nodes.add(n);
+		}
+		return nodes;
+	}
+
+	/**
+	 * Finds every node reachable from a node (inclusive).
+	 *
+	 * @param start	The node to start from
+	 * @param dir	The direction to follow edges in
+	 */
+	public static Set<Node> reach(Node start, Direction dir) {
+		return reach(start, dir, Collections.<String>emptyList());
+	}
+
+	/**
+	 * Finds every node reachable from a node (inclusive) along some types of
+	 * edges.
+	 *
+	 * @param start		The node to start from
+	 * @param dir		The direction to follow edges in
+	 * @param typeNames	The types of edges to follow, or none for all of them
+	 */
+	public static Set<Node> reach(Node start, Direction dir, Collection<String> typeNames) {
+		Set<Node> reached = new HashSet<>();
+		List<Node> queue = new ArrayList<>();
+		reached.add(start);
+		queue.add(start);
+		for (int head = 0; head < queue.size(); head++)
+		{
+			Node current = queue.get(head);
+			for (Relationship edge : current.getRelationships(dir))
+			{
+				if (!typeNames.isEmpty() && !typeNames.contains(edge.getType().name()))
+				{
+					continue;
+				}
+				Node other = edge.getOtherNode(current);
+				if (reached.add(other))
+				{
+					queue.add(other);
+				}
+			}
+		}
+		return reached;
+	}
+
+	// Whether an edge leads up, or down, from one of its ends under a filter.
+	private static boolean leads(Relationship edge, Node from, EdgeFilter filter, boolean up) {
+		Direction dir = filter.getUpDirection(edge.getType().name());
+		if (dir == null)
+		{
+			return false;
+		}
+		boolean outgoing = edge.getStartNode().equals(from);
+		Direction needed = outgoing == up ? Direction.OUTGOING : Direction.INCOMING;
+		return dir == needed || dir == Direction.BOTH;
+	}
+
+	/**
+	 * Finds the nodes one edge above or below a node under a filter.
+	 *
+	 * @param n			The node whose neighbors we want
+	 * @param filter	The filter deciding which edges lead up
+	 * @param up		Whether we want the nodes above, rather than below
+	 */
+	public static Set<Node> getNeighbors(Node n, EdgeFilter filter, boolean up) {
+		Set<Node> neighbors = new HashSet<>();
+		for (Relationship edge : n.getRelationships())
+		{
+			if (leads(edge, n, filter, up))
+			{
+				neighbors.add(edge.getOtherNode(n));
+			}
+		}
+		return neighbors;
+	}
+
+	/**
+	 * Finds every node above or below a node (inclusive) under a filter.
+	 *
+	 * @param start		The node to start from
+	 * @param filter	The filter deciding which edges lead up
+	 * @param up		Whether we want the nodes above, rather than below
+	 */
+	public static Set<Node> reach(Node start, EdgeFilter filter, boolean up) {
+		Set<Node> reached = new HashSet<>();
+		List<Node> queue = new ArrayList<>();
+		reached.add(start);
+		queue.add(start);
+		for (int head = 0; head < queue.size(); head++)
+		{
+			for (Node next : getNeighbors(queue.get(head), filter, up))
+			{
+				if (reached.add(next))
+				{
+					queue.add(next);
+				}
+			}
+		}
+		return reached;
+	}
+
+	/**
+	 * Finds the number of edges on a shortest path up from one node to
+	 * another under a filter.
+	 *
+	 * @param first		The lower node
+	 * @param second	The upper node
+	 * @param filter	The filter deciding which edges lead up
+	 * @return			The length of the path, or -1 if there isn't one
+	 */
+	public static int getDistance(Node first, Node second, EdgeFilter filter) {
+		Set<Node> reached = new HashSet<>();
+		List<Node> level = new ArrayList<>();
+		reached.add(first);
+		level.add(first);
+		for (int distance = 0; !level.isEmpty(); distance++)
+		{
+			List<Node> nextLevel = new ArrayList<>();
+			for (Node n : level)
+			{
+				if (n.equals(second))
+				{
+					return distance;
+				}
+				for (Node next : getNeighbors(n, filter, true))
+				{
+					if (reached.add(next))
+					{
+						nextLevel.add(next);
+					}
+				}
+			}
+			level = nextLevel;
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,75 @@
+package org.monarch.sim;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+
+public class ICProfileTest {
+
+	// Graph with EQUIVALENT_TO edges.
+	static GraphDatabaseService equivDB;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		equivDB = new TestGraphFactory().buildEquivDB();
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		equivDB.shutdown();
+	}
+
+	@Test
+	public void withoutEdgesTest() {
+		GraphSnapshot snapshot = GraphSnapshot.build(equivDB);
+		GraphSnapshot nodes = snapshot.withoutEdges();
+		assertTrue(nodes.hasSameNodes(snapshot));
+		assertEquals(snapshot.fingerprint(), nodes.fingerprint());
+		assertEquals(snapshot.numberingSizeInBytes(), nodes.numberingSizeInBytes());
+		for (Node n : GraphOracle.getNodes(equivDB))
+		{
+			int id = snapshot.getId(n);
+			assertEquals(id, nodes.getId(n));
+			assertEquals(n.getId(), nodes.getNodeId(id));
+		}
+	}
+
+	@Test
+	public void sizeTest() {
+		// A profile counts the numbering only when nothing else holds it.
+		GraphSnapshot snapshot = GraphSnapshot.build(equivDB);
+		double [] ic = new double [snapshot.size()];
+		int [] counts = new int [snapshot.size()];
+		ICProfile shared = new ICProfile("shared", snapshot, false, ic, counts, null, new ArrayList<String>());
+		ICProfile owned = new ICProfile("owned", snapshot.withoutEdges(), true, ic, counts, null, new ArrayList<String>());
+		assertEquals(12L * snapshot.size(), shared.sizeInBytes());
+		assertTrue(owned.sizeInBytes() >= shared.sizeInBytes() + snapshot.numberingSizeInBytes());
+		assertTrue(owned.sizeInBytes() < shared.sizeInBytes() + snapshot.numberingSizeInBytes() + snapshot.sizeInBytes());
+	}
+
+	@Test
+	public void savedWithoutSnapshotTest() throws IOException {
+		// Scores pushed without a snapshot still record which graph they came from.
+		NaiveTraverser pushed = new NaiveTraverser(equivDB);
+		pushed.pushAllNodes(new ArrayList<String>());
+		File file = File.createTempFile("scores", ".ic");
+		file.deleteOnExit();
+		pushed.saveIC(file);
+
+		NaiveTraverser mapped = new NaiveTraverser(equivDB, true);
+		mapped.loadIC(file);
+		for (Node n : GraphOracle.getNodes(equivDB))
+		{
+			assertEquals(pushed.getIC(n), mapped.getIC(n), 1e-9);
+		}
+	}
+
+}
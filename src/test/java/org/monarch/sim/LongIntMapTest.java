@@ -0,0 +1,83 @@
+package org.monarch.sim;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongIntMapTest {
+
+	@Test
+	public void negativeTest() {
+		LongIntMap map = new LongIntMap();
+		assertFalse(map.containsKey(-1));
+		assertEquals(0, map.get(-1));
+
+		map.put(3, 5);
+		map.add(9, 2);
+		assertFalse(map.containsKey(-1));
+		assertEquals(0, map.get(-1));
+		try
+		{
+			map.add(-1, 1);
+			fail("Added to a negative key");
+		}
+		catch (IllegalArgumentException e)
+		{
+			// Expected.
+		}
+		try
+		{
+			map.put(-1, 1);
+			fail("Put a negative key");
+		}
+		catch (IllegalArgumentException e)
+		{
+			// Expected.
+		}
+		assertEquals(2, map.size());
+		assertEquals(5, map.get(3));
+		assertEquals(2, map.get(9));
+
+		// Cleared slots keep their old values, which mustn't show through.
+		map.clear();
+		assertFalse(map.containsKey(-1));
+		assertEquals(0, map.get(-1));
+		assertEquals(0, map.get(3));
+	}
+
+	@Test
+	public void randomTest() {
+		// Compare against a HashMap, through several rounds of growing.
+		Random random = new Random(42);
+		LongIntMap map = new LongIntMap(4);
+		Map<Long, Integer> expected = new HashMap<>();
+		for (int i = 0; i < 5000; i++)
+		{
+			long key = random.nextInt(2000) * 1000003L;
+			int delta = random.nextInt(10) - 5;
+			Integer old = expected.get(key);
+			int value = (old == null ? 0 : old) + delta;
+			expected.put(key, value);
+			assertEquals(value, map.add(key, delta));
+		}
+		assertEquals(expected.size(), map.size());
+
+		// Every entry is visited exactly once by slot.
+		int visited = 0;
+		for (int slot = 0; slot < map.getCapacity(); slot++)
+		{
+			long key = map.getKey(slot);
+			if (key != -1)
+			{
+				assertEquals((int) expected.get(key), map.getValue(slot));
+				visited++;
+			}
+		}
+		assertEquals(expected.size(), visited);
+	}
+
+}
@@ -0,0 +1,62 @@
+package org.monarch.sim;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class LongSetTest {
+
+	@Test
+	public void negativeTest() {
+		LongSet set = new LongSet();
+		assertFalse(set.contains(-1));
+		assertFalse(set.contains(Long.MIN_VALUE));
+
+		set.add(0);
+		set.add(7);
+		assertFalse(set.contains(-1));
+		try
+		{
+			set.add(-1);
+			fail("Added a negative value");
+		}
+		catch (IllegalArgumentException e)
+		{
+			// Expected.
+		}
+		assertFalse(set.contains(-1));
+		assertEquals(2, set.size());
+		assertTrue(set.contains(0));
+		assertTrue(set.contains(7));
+	}
+
+	@Test
+	public void randomTest() {
+		// Compare against a HashSet, through several rounds of growing.
+		Random random = new Random(42);
+		LongSet set = new LongSet(4);
+		Set<Long> expected = new HashSet<>();
+		for (int i = 0; i < 5000; i++)
+		{
+			long value = random.nextInt(2000) * 1000003L;
+			assertEquals(expected.add(value), set.add(value));
+		}
+		assertEquals(expected.size(), set.size());
+		for (int i = 0; i < 2000; i++)
+		{
+			long value = i * 1000003L;
+			assertEquals(expected.contains(value), set.contains(value));
+			assertFalse(set.contains(value + 1));
+		}
+
+		set.clear();
+		assertEquals(0, set.size());
+		assertFalse(set.contains(0));
+		assertFalse(set.contains(-1));
+	}
+
+}
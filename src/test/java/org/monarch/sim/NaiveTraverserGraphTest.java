@@ -0,0 +1,468 @@
+package org.monarch.sim;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+
+/**
+ * Checks NaiveTraverser, with and without a snapshot, on each shared graph.
+ * Closures, paths and LCSs are checked against plain searches of the
+ * database, and everything built on them against those.
+ */
+public class NaiveTraverserGraphTest extends GraphFixture {
+
+	// By default, every edge leads up from its start to its end.
+	private static final EdgeFilter ALL = EdgeFilter.all();
+
+	public NaiveTraverserGraphTest(String graphName) {
+		super(graphName);
+	}
+
+	// Builds one traverser on the database, and one on a snapshot.
+	private List<NaiveTraverser> getTraversers() {
+		return Arrays.asList(new NaiveTraverser(db), new NaiveTraverser(db, true));
+	}
+
+	private double toIC(int nodesBelow) {
+		int totalNodes = nodes.size() - 1;
+		return (Math.log(totalNodes) - Math.log(nodesBelow)) / Math.log(2);
+	}
+
+	@Test
+	public void closureTest() {
+		for (NaiveTraverser traverser : getTraversers())
+		{
+			traverser.pushAllNodes(new ArrayList<String>());
+			for (Node n : nodes)
+			{
+				assertEquals(GraphOracle.getNeighbors(n, ALL, true), traverser.getParents(n));
+				assertEquals(GraphOracle.getNeighbors(n, ALL, false), traverser.getChildren(n));
+				assertEquals(GraphOracle.reach(n, ALL, true), traverser.getAncestors(n));
+				Set<Node> below = GraphOracle.reach(n, ALL, false);
+				assertEquals(below, traverser.getDescendants(n));
+				assertEquals(toIC(below.size()), traverser.getIC(n), 1e-9);
+			}
+		}
+	}
+
+	@Test
+	public void isAncestorTest() {
+		for (NaiveTraverser traverser : getTraversers())
+		{
+			for (Node descendant : nodes)
+			{
+				Set<Node> ancestors = GraphOracle.reach(descendant, ALL, true);
+				for (Node ancestor : nodes)
+				{
+					assertEquals(ancestors.contains(ancestor), traverser.isAncestor(ancestor, descendant));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void pathTest() {
+		for (NaiveTraverser traverser : getTraversers())
+		{
+			for (Node first : nodes)
+			{
+				for (Node second : nodes)
+				{
+					int distance = GraphOracle.getDistance(first, second, ALL);
+					List<Node> path = traverser.getShortestPath(first, second);
+					if (distance < 0)
+					{
+						assertNull(path);
+						continue;
+					}
+
+					// The path should be a real one, and as short as any.
+					assertEquals(distance + 1, path.size());
+					assertEquals(first, path.get(0));
+					assertEquals(second, path.get(path.size() - 1));
+					for (int i = 1; i < path.size(); i++)
+					{
+						assertTrue(GraphOracle.getNeighbors(path.get(i - 1), ALL, true).contains(path.get(i)));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks that the LCS of every pair of nodes is a common ancestor with
+	 * the highest IC, with and without a snapshot.
+	 *
+	 * @param db				The database to check
+	 * @param ignoredEdgeTypes	The edge types to leave out of the IC
+	 */
+	static void checkLCS(GraphDatabaseService db, Collection<String> ignoredEdgeTypes) {
+		List<Node> nodes = GraphOracle.getNodes(db);
+		NaiveTraverser store = new NaiveTraverser(db);
+		NaiveTraverser snapshot = new NaiveTraverser(db, true);
+		store.pushAllNodes(ignoredEdgeTypes);
+		snapshot.pushAllNodes(ignoredEdgeTypes);
+		for (Node first : nodes)
+		{
+			for (Node second : nodes)
+			{
+				Set<Node> common = GraphOracle.reach(first, ALL, true);
+				common.retainAll(GraphOracle.reach(second, ALL, true));
+				double maxIC = -1;
+				for (Node ancestor : common)
+				{
+					if (!snapshot.isAnonymous(ancestor))
+					{
+						maxIC = Math.max(maxIC, snapshot.getIC(ancestor));
+					}
+				}
+
+				Node lcs = snapshot.getLCS(first, second);
+				assertEquals(lcs, store.getLCS(first, second));
+				if (lcs == null)
+				{
+					assertEquals(-1, maxIC, 0);
+					continue;
+				}
+				assertTrue(common.contains(lcs));
+				assertEquals(maxIC, snapshot.getIC(lcs), 1e-9);
+			}
+		}
+	}
+
+	@Test
+	public void lcsTest() {
+		checkLCS(db, new ArrayList<String>());
+	}
+
+	@Test
+	public void closureIndexTest() {
+		// Everything fits, and then only the top of each graph does.
+		for (long budget : new long [] {1 << 20, 100})
+		{
+			for (int parallelism = 1; parallelism <= 2; parallelism++)
+			{
+				NaiveTraverser indexed = new NaiveTraverser(db, true);
+				indexed.setParallelism(parallelism);
+				indexed.setClosureBudget(budget);
+				indexed.pushAllNodes(new ArrayList<String>());
+
+				// The stored arrays should stay within the budget.
+				ClosureIndex index = ClosureIndex.build(indexed.getClosureEngine().getView(), budget, null);
+				assertTrue(index.sizeInBytes() <= budget);
+
+				NaiveTraverser expected = new NaiveTraverser(db, true);
+				expected.pushAllNodes(new ArrayList<String>());
+				for (Node first : nodes)
+				{
+					Set<Node> ancestors = GraphOracle.reach(first, ALL, true);
+					assertEquals(ancestors, indexed.getAncestors(first));
+					for (Node second : nodes)
+					{
+						Set<Node> common = new HashSet<>(ancestors);
+						common.retainAll(GraphOracle.reach(second, ALL, true));
+						assertEquals(common, indexed.getCommonAncestors(first, second));
+						assertEquals(expected.getLCS(first, second), indexed.getLCS(first, second));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void treeLCATest() {
+		NaiveTraverser traverser = new NaiveTraverser(db, true);
+		GraphSnapshot view = traverser.getClosureEngine().getView();
+		TreeLCA forest = new TreeLCA(view);
+		for (Node first : nodes)
+		{
+			// Tree nodes have a single chain of ancestors, and nothing else does.
+			Set<Node> ancestors = GraphOracle.reach(first, ALL, true);
+			int edgesAbove = 0;
+			for (Node ancestor : ancestors)
+			{
+				edgesAbove += GraphOracle.getNeighbors(ancestor, ALL, true).size();
+			}
+			boolean chain = edgesAbove == ancestors.size() - 1;
+			assertEquals(chain, forest.isTreeNode(view.getId(first)));
+			if (!chain)
+			{
+				continue;
+			}
+
+			// The LCA is the common ancestor with the most ancestors of its own.
+			for (Node second : nodes)
+			{
+				if (!forest.isTreeNode(view.getId(second)))
+				{
+					continue;
+				}
+				Set<Node> common = new HashSet<>(ancestors);
+				common.retainAll(GraphOracle.reach(second, ALL, true));
+				Node lca = null;
+				int depth = -1;
+				for (Node ancestor : common)
+				{
+					int above = GraphOracle.reach(ancestor, ALL, true).size();
+					if (above > depth)
+					{
+						lca = ancestor;
+						depth = above;
+					}
+				}
+				int expected = lca == null ? -1 : view.getId(lca);
+				assertEquals(expected, forest.getLCA(view.getId(first), view.getId(second)));
+			}
+		}
+	}
+
+	@Test
+	public void icMatrixTest() {
+		// With and without a snapshot, filled serially and in parallel.
+		for (boolean useSnapshot : new boolean [] {true, false})
+		{
+			for (int parallelism = 1; parallelism <= 2; parallelism++)
+			{
+				NaiveTraverser traverser = new NaiveTraverser(db, useSnapshot);
+				traverser.setParallelism(parallelism);
+				traverser.pushAllNodes(new ArrayList<String>());
+
+				// Every entry should agree with a separate LCS search.
+				ICMatrix matrix = traverser.getICMatrix(nodes, nodes);
+				double max = 0;
+				double total = 0;
+				double rowBests = 0;
+				for (int row = 0; row < nodes.size(); row++)
+				{
+					double rowBest = 0;
+					for (int column = 0; column < nodes.size(); column++)
+					{
+						Node lcs = traverser.getLCS(nodes.get(row), nodes.get(column));
+						double ic = lcs == null ? 0 : traverser.getIC(lcs);
+						assertEquals(lcs, matrix.getMICA(row, column));
+						assertEquals(ic, matrix.getIC(row, column), 1e-9);
+						max = Math.max(max, ic);
+						total += ic;
+						rowBest = Math.max(rowBest, ic);
+					}
+					rowBests += rowBest;
+				}
+				assertEquals(max, matrix.getMax(), 1e-9);
+				assertEquals(total / (nodes.size() * nodes.size()), matrix.getAverage(), 1e-9);
+				// Comparing a collection with itself makes both sides match alike.
+				assertEquals(rowBests / nodes.size(), matrix.getBestMatchAverage(), 1e-9);
+			}
+		}
+	}
+
+	private Set<Node> getNamedAncestors(NaiveTraverser traverser, Collection<Node> nodes) {
+		Set<Node> ancestors = new HashSet<>();
+		for (Node n : nodes)
+		{
+			for (Node ancestor : GraphOracle.reach(n, ALL, true))
+			{
+				if (!traverser.isAnonymous(ancestor))
+				{
+					ancestors.add(ancestor);
+				}
+			}
+		}
+		return ancestors;
+	}
+
+	@Test
+	public void similarityTest() {
+		NaiveTraverser traverser = new NaiveTraverser(db, true);
+		traverser.pushAllNodes(new ArrayList<String>());
+		SimilarityEngine similarity = traverser.getSimilarityEngine();
+		for (Node first : nodes)
+		{
+			for (Node second : nodes)
+			{
+				Node lcs = traverser.getLCS(first, second);
+				double resnik = lcs == null ? 0 : traverser.getIC(lcs);
+				double total = traverser.getIC(first) + traverser.getIC(second);
+				assertEquals(resnik, similarity.getResnik(first, second), 1e-9);
+				assertEquals(total == 0 ? 0 : 2 * resnik / total, similarity.getLin(first, second), 1e-9);
+				assertEquals(1 / (1 + total - 2 * resnik), similarity.getJiangConrath(first, second), 1e-9);
+
+				Set<Node> common = getNamedAncestors(traverser, Arrays.asList(first));
+				Set<Node> all = getNamedAncestors(traverser, Arrays.asList(first, second));
+				common.retainAll(getNamedAncestors(traverser, Arrays.asList(second)));
+				assertEquals((double) common.size() / all.size(), similarity.getJaccard(first, second), 1e-9);
+			}
+		}
+
+		// Compare the first half of the nodes with the second half.
+		List<Node> firstHalf = nodes.subList(0, nodes.size() / 2);
+		List<Node> secondHalf = nodes.subList(nodes.size() / 2, nodes.size());
+		Set<Node> all = getNamedAncestors(traverser, nodes);
+		Set<Node> common = getNamedAncestors(traverser, firstHalf);
+		common.retainAll(getNamedAncestors(traverser, secondHalf));
+		double commonIC = 0;
+		double allIC = 0;
+		for (Node n : common)
+		{
+			commonIC += traverser.getIC(n);
+		}
+		for (Node n : all)
+		{
+			allIC += traverser.getIC(n);
+		}
+		assertEquals(commonIC / allIC, similarity.getSimGIC(firstHalf, secondHalf), 1e-9);
+		assertEquals((double) common.size() / all.size(), similarity.getSimUI(firstHalf, secondHalf), 1e-9);
+
+		ICMatrix matrix = traverser.getICMatrix(firstHalf, secondHalf);
+		assertEquals(matrix.getBestMatchAverage(),
+				similarity.getBestMatchAverage(firstHalf, secondHalf, SimilarityEngine.Measure.RESNIK), 1e-9);
+	}
+
+	@Test
+	public void mostSimilarTest() {
+		NaiveTraverser traverser = new NaiveTraverser(db, true);
+		traverser.pushAllNodes(new ArrayList<String>());
+		SimilarityEngine similarity = traverser.getSimilarityEngine();
+		for (int k : new int [] {1, 5, 100})
+		{
+			for (Node query : nodes)
+			{
+				// Score every other related term the slow way.
+				List<Double> expected = new ArrayList<>();
+				for (Node n : nodes)
+				{
+					if (!n.equals(query) && !traverser.isAnonymous(n) && traverser.getLCS(query, n) != null)
+					{
+						expected.add(similarity.getResnik(query, n));
+					}
+				}
+				Collections.sort(expected, Collections.reverseOrder());
+				expected = expected.subList(0, Math.min(k, expected.size()));
+
+				List<Node> found = similarity.getMostSimilar(query, k);
+				assertEquals(expected.size(), found.size());
+				assertEquals(found.size(), new HashSet<>(found).size());
+				for (int i = 0; i < found.size(); i++)
+				{
+					assertFalse(found.get(i).equals(query));
+					assertEquals(expected.get(i), similarity.getResnik(query, found.get(i)), 1e-9);
+				}
+			}
+		}
+	}
+
+	private double getExpectedScore(NaiveTraverser traverser, SimilarityEngine similarity,
+			List<Node> query, List<Node> profile, CorpusScorer.Score score) {
+		switch (score)
+		{
+		case SIM_GIC:
+			return similarity.getSimGIC(query, profile);
+		case SIM_UI:
+			return similarity.getSimUI(query, profile);
+		case BEST_MATCH_AVERAGE:
+			return similarity.getBestMatchAverage(query, profile, SimilarityEngine.Measure.RESNIK);
+		case MAX_IC:
+			return traverser.getICMatrix(query, profile).getMax();
+		default:
+			return traverser.getICMatrix(query, profile).getAverage();
+		}
+	}
+
+	@Test
+	public void corpusTest() {
+		NaiveTraverser traverser = new NaiveTraverser(db, true);
+		traverser.pushAllNodes(new ArrayList<String>());
+		SimilarityEngine similarity = traverser.getSimilarityEngine();
+
+		// Enough profiles that the corpus is split across tasks.
+		ProfileCorpus corpus = new ProfileCorpus(similarity);
+		List<List<Node>> profiles = new ArrayList<>();
+		for (int i = 0; i < 200; i++)
+		{
+			List<Node> profile = Arrays.asList(nodes.get(i % nodes.size()), nodes.get((7 * i + 3) % nodes.size()));
+			profiles.add(profile);
+			corpus.add("profile " + i, profile);
+		}
+		List<Node> query = nodes.subList(nodes.size() / 2, nodes.size() / 2 + 3);
+
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try
+		{
+			// Scored across the pool, and on the calling thread.
+			for (CorpusScorer scorer : Arrays.asList(new CorpusScorer(corpus, pool), new CorpusScorer(corpus, null)))
+			{
+				for (CorpusScorer.Score score : CorpusScorer.Score.values())
+				{
+					List<Double> expected = new ArrayList<>();
+					for (List<Node> profile : profiles)
+					{
+						expected.add(getExpectedScore(traverser, similarity, query, profile, score));
+					}
+
+					CorpusScorer.Result result = scorer.score(query, score, 10);
+					assertEquals(10, result.getNames().size());
+					List<Double> sorted = new ArrayList<>(expected);
+					Collections.sort(sorted, Collections.reverseOrder());
+					for (int rank = 0; rank < 10; rank++)
+					{
+						int profile = Integer.parseInt(result.getNames().get(rank).substring("profile ".length()));
+						assertEquals(sorted.get(rank), result.getScore(rank), 1e-9);
+						assertEquals(expected.get(profile), result.getScore(rank), 1e-9);
+					}
+					assertTrue(result.getProfilesPerSecond() > 0);
+				}
+			}
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void minHashTest() {
+		NaiveTraverser traverser = new NaiveTraverser(db, true);
+		traverser.pushAllNodes(new ArrayList<String>());
+		SimilarityEngine similarity = traverser.getSimilarityEngine();
+
+		ProfileCorpus corpus = new ProfileCorpus(similarity);
+		List<List<Node>> profiles = new ArrayList<>();
+		for (int i = 0; i < 100; i++)
+		{
+			List<Node> profile = Arrays.asList(nodes.get(i % nodes.size()), nodes.get((5 * i + 1) % nodes.size()));
+			profiles.add(profile);
+			corpus.add("profile " + i, profile);
+		}
+		MinHashIndex index = new MinHashIndex(corpus, 16, 2, 42);
+		CorpusScorer scorer = new CorpusScorer(corpus, null);
+
+		for (int i = 0; i < profiles.size(); i += 7)
+		{
+			// A profile always collides with itself, and agrees everywhere.
+			List<Node> query = profiles.get(i);
+			int [] candidates = index.getCandidates(query, 10);
+			assertTrue(candidates.length > 0);
+			assertEquals(1, similarity.getSimUI(query, profiles.get(candidates[0])), 1e-9);
+
+			// Candidates are scored exactly.
+			CorpusScorer.Result result = scorer.score(query, CorpusScorer.Score.SIM_GIC, 3, candidates);
+			assertEquals(Math.min(3, candidates.length), result.getNames().size());
+			for (int rank = 0; rank < result.getNames().size(); rank++)
+			{
+				int profile = Integer.parseInt(result.getNames().get(rank).substring("profile ".length()));
+				assertEquals(similarity.getSimGIC(query, profiles.get(profile)), result.getScore(rank), 1e-9);
+			}
+		}
+	}
+
+}
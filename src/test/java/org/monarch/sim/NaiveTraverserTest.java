@@ -0,0 +1,288 @@
+package org.monarch.sim;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+public class NaiveTraverserTest {
+
+	// Balanced binary tree.
+	static GraphDatabaseService treeDB;
+	// A directed cycle with one edge reversed.
+	static GraphDatabaseService cycleDB;
+	// Graph with EQUIVALENT_TO edges.
+	static GraphDatabaseService equivDB;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		TestGraphFactory factory = new TestGraphFactory();
+		treeDB = factory.buildTreeDB(31);
+		cycleDB = factory.buildCycleDB();
+		equivDB = factory.buildEquivDB();
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		treeDB.shutdown();
+		cycleDB.shutdown();
+		equivDB.shutdown();
+	}
+
+	@Test
+	public void parallelPushTest() {
+		// Pushing level by level should give the same scores.
+		NaiveTraverser serial = new NaiveTraverser(treeDB, true);
+		NaiveTraverser parallel = new NaiveTraverser(treeDB, true);
+		parallel.setParallelism(4);
+		serial.pushAllNodes(new ArrayList<String>());
+		parallel.pushAllNodes(new ArrayList<String>());
+		
+		for (Node n : GlobalGraphOperations.at(treeDB).getAllNodes())
+		{
+			assertEquals(serial.getIC(n), parallel.getIC(n), 1e-9);
+		}
+	}
+
+	@Test
+	public void cycleICTest() {
+		// The EQUIVALENT_TO pair forms a cycle, which should share an IC.
+		NaiveTraverser traverser = new NaiveTraverser(equivDB, true);
+		traverser.pushAllNodes(new ArrayList<String>());
+		Node a = equivDB.getNodeById(1);
+		Node b = equivDB.getNodeById(2);
+		Node c = equivDB.getNodeById(3);
+		
+		double total = Math.log(6);
+		assertEquals((total - Math.log(2)) / Math.log(2), traverser.getIC(a), 1e-9);
+		assertEquals(traverser.getIC(a), traverser.getIC(b), 1e-9);
+		assertEquals((total - Math.log(3)) / Math.log(2), traverser.getIC(c), 1e-9);
+	}
+
+	@Test
+	public void anonymousICTest() {
+		// Leaving out the anonymous nodes (2 and 5) leaves 4 to count.
+		NaiveTraverser traverser = new NaiveTraverser(equivDB, true, true);
+		traverser.pushAllNodes(new ArrayList<String>());
+		Node a = equivDB.getNodeById(1);
+		Node b = equivDB.getNodeById(2);
+		Node c = equivDB.getNodeById(3);
+		
+		assertTrue(traverser.isAnonymous(b));
+		assertFalse(traverser.isAnonymous(a));
+		assertEquals(2, traverser.getIC(a), 1e-9);
+		assertEquals(1, traverser.getIC(c), 1e-9);
+		
+		// The anonymous node is never the LCS, even of itself.
+		assertEquals(a, traverser.getLCS(a, b));
+		
+		// Updates should leave them out as well.
+		traverser.excludeEdgeTypes(Arrays.asList("EQUIVALENT_TO"));
+		traverser.updateIC();
+		NaiveTraverser full = new NaiveTraverser(equivDB, true, true);
+		full.excludeEdgeTypes(Arrays.asList("EQUIVALENT_TO"));
+		full.pushAllNodes(new ArrayList<String>());
+		checkSameIC(equivDB, full, traverser);
+	}
+
+	private void checkSameIC(GraphDatabaseService db, NaiveTraverser expected, NaiveTraverser actual) {
+		for (Node n : GlobalGraphOperations.at(db).getAllNodes())
+		{
+			assertEquals(expected.getIC(n), actual.getIC(n), 1e-9);
+		}
+	}
+
+	@Test
+	public void incrementalEdgeTypeTest() {
+		// Dropping an edge type should only need the affected scores redone.
+		NaiveTraverser incremental = new NaiveTraverser(equivDB, true);
+		incremental.pushAllNodes(new ArrayList<String>());
+		incremental.excludeEdgeTypes(Arrays.asList("EQUIVALENT_TO"));
+		incremental.updateIC();
+		
+		NaiveTraverser full = new NaiveTraverser(equivDB, true);
+		full.excludeEdgeTypes(Arrays.asList("EQUIVALENT_TO"));
+		full.pushAllNodes(new ArrayList<String>());
+		checkSameIC(equivDB, full, incremental);
+	}
+
+	@Test
+	public void incrementalEdgeTest() {
+		// Move a subtree, then check the patched scores against a fresh push.
+		GraphDatabaseService db = new TestGraphFactory().buildTreeDB(15);
+		NaiveTraverser incremental = new NaiveTraverser(db, true);
+		incremental.pushAllNodes(new ArrayList<String>());
+		
+		Node moved = db.getNodeById(5);
+		Relationship oldEdge = moved.getRelationships(Direction.OUTGOING).iterator().next();
+		Transaction tx = db.beginTx();
+		Relationship newEdge = moved.createRelationshipTo(db.getNodeById(6), oldEdge.getType());
+		incremental.updateEdges(Arrays.asList(newEdge), Arrays.asList(oldEdge));
+		oldEdge.delete();
+		tx.success();
+		tx.finish();
+		
+		NaiveTraverser full = new NaiveTraverser(db, true);
+		full.pushAllNodes(new ArrayList<String>());
+		checkSameIC(db, full, incremental);
+		db.shutdown();
+	}
+
+	@Test
+	public void profileTest() {
+		// Both profiles should stay usable after switching edge types.
+		NaiveTraverser traverser = new NaiveTraverser(equivDB, true);
+		String all = traverser.pushAllNodes(new ArrayList<String>());
+		traverser.excludeEdgeTypes(Arrays.asList("EQUIVALENT_TO"));
+		String subclass = traverser.pushAllNodes(new ArrayList<String>());
+		assertFalse(all.equals(subclass));
+
+		NaiveTraverser allOnly = new NaiveTraverser(equivDB, true);
+		allOnly.pushAllNodes(new ArrayList<String>());
+		NaiveTraverser subclassOnly = new NaiveTraverser(equivDB, true);
+		subclassOnly.excludeEdgeTypes(Arrays.asList("EQUIVALENT_TO"));
+		subclassOnly.pushAllNodes(new ArrayList<String>());
+		for (Node n : GlobalGraphOperations.at(equivDB).getAllNodes())
+		{
+			assertEquals(allOnly.getIC(n), traverser.getIC(n, all), 1e-9);
+			assertEquals(subclassOnly.getIC(n), traverser.getIC(n, subclass), 1e-9);
+			assertEquals(subclassOnly.getIC(n), traverser.getIC(n), 1e-9);
+		}
+
+		traverser.useProfile(all);
+		checkSameIC(equivDB, allOnly, traverser);
+	}
+
+	@Test
+	public void profileBudgetTest() {
+		// With no room to spare, only the newest profile is kept.
+		NaiveTraverser traverser = new NaiveTraverser(equivDB, true);
+		traverser.setProfileBudget(0);
+		traverser.pushAllNodes(new ArrayList<String>());
+		String subclass = traverser.pushAllNodes(Arrays.asList("EQUIVALENT_TO"));
+		assertEquals(Arrays.asList(subclass), traverser.getProfileNames());
+	}
+
+	@Test
+	public void savedICTest() throws IOException {
+		// Mapped scores should match the pushed ones.
+		NaiveTraverser pushed = new NaiveTraverser(equivDB, true);
+		String name = pushed.pushAllNodes(new ArrayList<String>());
+		File file = File.createTempFile("scores", ".ic");
+		file.deleteOnExit();
+		pushed.saveIC(file);
+
+		NaiveTraverser mapped = new NaiveTraverser(equivDB, true);
+		assertEquals(name, mapped.loadIC(file));
+		checkSameIC(equivDB, pushed, mapped);
+		assertEquals(pushed.getLCS(equivDB.getNodeById(1), equivDB.getNodeById(3)),
+				mapped.getLCS(equivDB.getNodeById(1), equivDB.getNodeById(3)));
+	}
+
+	@Test(expected = IOException.class)
+	public void staleICTest() throws IOException {
+		// Scores saved from one graph shouldn't load against another.
+		NaiveTraverser pushed = new NaiveTraverser(cycleDB, true);
+		pushed.pushAllNodes(new ArrayList<String>());
+		File file = File.createTempFile("scores", ".ic");
+		file.deleteOnExit();
+		pushed.saveIC(file);
+
+		new NaiveTraverser(equivDB, true).loadIC(file);
+	}
+
+	@Test
+	public void mismatchedICTest() throws IOException {
+		// Scores pushed along other edge types shouldn't load either.
+		GraphDatabaseService db = new TestGraphFactory().buildPartDB();
+		NaiveTraverser pushed = new NaiveTraverser(db, true);
+		pushed.pushAllNodes(new ArrayList<String>());
+		File file = File.createTempFile("scores", ".ic");
+		file.deleteOnExit();
+		pushed.saveIC(file);
+
+		NaiveTraverser store = new NaiveTraverser(db);
+		NaiveTraverser snapshot = new NaiveTraverser(db, true);
+		store.setUpDirection("has_part", Direction.INCOMING);
+		snapshot.setUpDirection("has_part", Direction.INCOMING);
+		for (NaiveTraverser traverser : Arrays.asList(store, snapshot))
+		{
+			try
+			{
+				traverser.loadIC(file);
+				fail("Loaded scores pushed with other edge types");
+			}
+			catch (IOException e)
+			{
+				// Expected.
+			}
+		}
+
+		// A traverser following the same edge types can still load them.
+		assertEquals(pushed.getProfileNames().get(0), new NaiveTraverser(db).loadIC(file));
+		db.shutdown();
+	}
+
+	@Test
+	public void treePathTest() {
+		NaiveTraverser traverser = new NaiveTraverser(treeDB, true);
+		Node leaf = treeDB.getNodeById(31);
+		Node root = treeDB.getNodeById(1);
+
+		// The path from a leaf to the root visits every level once.
+		assertEquals(5, traverser.getShortestPath(leaf, root).size());
+		assertNull(traverser.getShortestPath(root, leaf));
+	}
+
+	private void checkDirections(NaiveTraverser traverser, GraphDatabaseService db) {
+		Node vehicle = db.getNodeById(1);
+		Node car = db.getNodeById(2);
+		Node wheel = db.getNodeById(3);
+		Node engine = db.getNodeById(4);
+
+		assertEquals(new HashSet<>(Arrays.asList(car)), traverser.getParents(engine));
+		assertEquals(new HashSet<>(Arrays.asList(wheel, car, vehicle)), traverser.getAncestors(wheel));
+		assertEquals(new HashSet<>(Arrays.asList(car, wheel, engine)), traverser.getDescendants(car));
+		assertEquals(new HashSet<>(Arrays.asList(wheel, engine)), traverser.getChildren(car));
+	}
+
+	@Test
+	public void directionTest() {
+		// has_part goes up from its end to its start.
+		GraphDatabaseService db = new TestGraphFactory().buildPartDB();
+		NaiveTraverser store = new NaiveTraverser(db);
+		NaiveTraverser snapshot = new NaiveTraverser(db, true);
+		store.setUpDirection("has_part", Direction.INCOMING);
+		snapshot.setUpDirection("has_part", Direction.INCOMING);
+		checkDirections(store, db);
+		checkDirections(snapshot, db);
+
+		// The car is above everything but the vehicle.
+		snapshot.pushAllNodes(new ArrayList<String>());
+		assertEquals((Math.log(4) - Math.log(3)) / Math.log(2), snapshot.getIC(db.getNodeById(2)), 1e-9);
+		db.shutdown();
+	}
+
+	@Test
+	public void ignoredLCSTest() {
+		// Scores pushed without some edges may rise going up the rest.
+		GraphDatabaseService db = new TestGraphFactory().buildLinkDB();
+		NaiveTraverserGraphTest.checkLCS(db, Arrays.asList("link"));
+		NaiveTraverserGraphTest.checkLCS(equivDB, Arrays.asList("EQUIVALENT_TO"));
+		db.shutdown();
+	}
+
+}
@@ -10,6 +10,8 @@ import org.junit.Test;
 import org.junit.rules.TestRule;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.traversal.UniquenessFactory;
+import org.neo4j.kernel.Uniqueness;
 import org.neo4j.tooling.GlobalGraphOperations;
 
 import com.carrotsearch.junitbenchmarks.BenchmarkRule;
@@ -127,6 +129,34 @@ public class Neo4jBenchmarks {
 		log.info("Found all ancestors");
 	}
 	
+	// Walks up from every node with the given uniqueness, and logs the total.
+	private void countAncestors(UniquenessFactory uniqueness, Object parameter) {
+		SciGraphTraverser uniqueTraverser = new SciGraphTraverser(testDB, "traverser");
+		uniqueTraverser.relationships("SUBCLASS_OF");
+		uniqueTraverser.setUniqueness(uniqueness, parameter);
+		long count = 0;
+		for (Node n : GlobalGraphOperations.at(testDB).getAllNodes())
+		{
+			count += uniqueTraverser.getAncestors(n).size();
+		}
+		log.info("Found " + count + " ancestors with " + uniqueness);
+	}
+	
+	@Test
+	public void recentUniquenessTest() {
+		countAncestors(Uniqueness.NODE_RECENT, 10000);
+	}
+	
+	@Test
+	public void globalUniquenessTest() {
+		countAncestors(Uniqueness.NODE_GLOBAL, null);
+	}
+	
+	@Test
+	public void primitiveUniquenessTest() {
+		countAncestors(new GlobalNodeUniqueness(), null);
+	}
+	
 //	@Test
 //	public void setICTest() {
 //		Neo4jTraversals.setAllIC(testDB);
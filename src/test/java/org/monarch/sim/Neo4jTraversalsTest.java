@@ -0,0 +1,90 @@
+package org.monarch.sim;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+
+@SuppressWarnings("deprecation")
+public class Neo4jTraversalsTest {
+
+	// Balanced binary tree.
+	static GraphDatabaseService treeDB;
+	// A directed cycle with one edge reversed.
+	static GraphDatabaseService cycleDB;
+	// Graph with EQUIVALENT_TO edges.
+	static GraphDatabaseService equivDB;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		TestGraphFactory factory = new TestGraphFactory();
+		treeDB = factory.buildTreeDB(31);
+		cycleDB = factory.buildCycleDB();
+		equivDB = factory.buildEquivDB();
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		treeDB.shutdown();
+		cycleDB.shutdown();
+		equivDB.shutdown();
+	}
+
+	// Checks a result holds exactly the expected nodes, through both
+	// iteration and contains().
+	private void checkSameNodes(Set<Node> expected, Collection<Node> found, List<Node> allNodes) {
+		assertEquals(expected.size(), found.size());
+		assertEquals(expected, new HashSet<>(found));
+		for (Node n : allNodes)
+		{
+			assertEquals(expected.contains(n), found.contains(n));
+		}
+	}
+
+	private void checkClosures(GraphDatabaseService db) {
+		List<Node> nodes = GraphOracle.getNodes(db);
+		for (Node first : nodes)
+		{
+			Set<Node> ancestors = GraphOracle.reach(first, Direction.OUTGOING);
+			checkSameNodes(ancestors, Neo4jTraversals.getAncestors(first), nodes);
+			checkSameNodes(GraphOracle.reach(first, Direction.INCOMING), Neo4jTraversals.getDescendants(first), nodes);
+
+			for (Node second : nodes)
+			{
+				Set<Node> common = new HashSet<>(ancestors);
+				common.retainAll(GraphOracle.reach(second, Direction.OUTGOING));
+				checkSameNodes(common, Neo4jTraversals.getCommonAncestors(first, second), nodes);
+			}
+		}
+	}
+
+	@Test
+	public void closureTest() {
+		for (GraphDatabaseService db : Arrays.asList(treeDB, cycleDB, equivDB))
+		{
+			checkClosures(db);
+		}
+	}
+
+	@Test
+	public void resultsOutliveNextCallTest() {
+		// Results don't share the per-thread workspace.
+		Node leaf = treeDB.getNodeById(31);
+		Collection<Node> ancestors = Neo4jTraversals.getAncestors(leaf);
+		Neo4jTraversals.getDescendants(treeDB.getNodeById(1));
+		Neo4jTraversals.getCommonAncestors(treeDB.getNodeById(2), treeDB.getNodeById(3));
+		checkSameNodes(GraphOracle.reach(leaf, Direction.OUTGOING), ancestors, GraphOracle.getNodes(treeDB));
+		assertFalse(ancestors.contains(null));
+	}
+
+}
@@ -0,0 +1,300 @@
+package org.monarch.sim;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.traversal.Evaluators;
+import org.neo4j.graphdb.traversal.TraversalDescription;
+import org.neo4j.kernel.Traversal;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+@SuppressWarnings("deprecation")
+public class SciGraphTraverserTest {
+
+	// Fresh graphs for each test, since every test writes to them.
+	// Balanced binary tree.
+	GraphDatabaseService treeDB;
+	// A directed cycle with one edge reversed.
+	GraphDatabaseService cycleDB;
+	// Graph with EQUIVALENT_TO edges.
+	GraphDatabaseService equivDB;
+
+	@Before
+	public void setUp() {
+		TestGraphFactory factory = new TestGraphFactory();
+		treeDB = factory.buildTreeDB(15);
+		cycleDB = factory.buildCycleDB();
+		equivDB = factory.buildEquivDB();
+	}
+
+	@After
+	public void tearDown() {
+		treeDB.shutdown();
+		cycleDB.shutdown();
+		equivDB.shutdown();
+	}
+
+	private List<Node> getNodes(GraphDatabaseService db) {
+		List<Node> nodes = new ArrayList<>();
+		for (Node n : GlobalGraphOperations.at(db).getAllNodes())
+		{
+			nodes.add(n);
+		}
+		return nodes;
+	}
+
+	// Counts the nodes below a node (inclusive) by walking down edges of the
+	// given types, or of every type if none are given.
+	private int countBelow(Node n, Collection<String> typeNames) {
+		Set<Node> below = new HashSet<>();
+		List<Node> toVisit = new ArrayList<>();
+		below.add(n);
+		toVisit.add(n);
+		while (!toVisit.isEmpty())
+		{
+			Node current = toVisit.remove(toVisit.size() - 1);
+			for (Relationship edge : current.getRelationships(Direction.INCOMING))
+			{
+				if (!typeNames.isEmpty() && !typeNames.contains(edge.getType().name()))
+				{
+					continue;
+				}
+				if (below.add(edge.getStartNode()))
+				{
+					toVisit.add(edge.getStartNode());
+				}
+			}
+		}
+		return below.size();
+	}
+
+	private double toIC(GraphDatabaseService db, int nodesBelow) {
+		int totalNodes = getNodes(db).size() - 1;
+		return (Math.log(totalNodes) - Math.log(nodesBelow)) / Math.log(2);
+	}
+
+	private void checkAllIC(GraphDatabaseService db, SciGraphTraverser traverser, String name,
+			Collection<String> typeNames) {
+		traverser.computeAllIC();
+		for (Node n : getNodes(db))
+		{
+			int nodesBelow = countBelow(n, typeNames);
+			double ic = toIC(db, nodesBelow);
+			assertEquals(nodesBelow, n.getProperty(name + "_descendants"));
+			assertEquals(ic, (double) n.getProperty(name + "_ic"), 1e-9);
+			assertEquals(true, n.getProperty(name + "_pushed"));
+			assertEquals(ic, traverser.getIC(n), 1e-9);
+		}
+	}
+
+	@Test
+	public void treeICTest() {
+		checkAllIC(treeDB, new SciGraphTraverser(treeDB, "ic"), "ic", Collections.<String>emptyList());
+	}
+
+	@Test
+	public void cycleICTest() {
+		checkAllIC(cycleDB, new SciGraphTraverser(cycleDB, "ic"), "ic", Collections.<String>emptyList());
+	}
+
+	@Test
+	public void equivICTest() {
+		checkAllIC(equivDB, new SciGraphTraverser(equivDB, "ic"), "ic", Collections.<String>emptyList());
+	}
+
+	@Test
+	public void pushedICTest() {
+		// Pushing stores only the descendant counts, which getIC() falls back on.
+		for (GraphDatabaseService db : Arrays.asList(treeDB, cycleDB, equivDB))
+		{
+			SciGraphTraverser traverser = new SciGraphTraverser(db, "pushed");
+			traverser.pushAllNodes();
+			for (Node n : getNodes(db))
+			{
+				int nodesBelow = countBelow(n, Collections.<String>emptyList());
+				assertEquals(nodesBelow, n.getProperty("pushed_descendants"));
+				assertFalse(n.hasProperty("pushed_ic"));
+				assertEquals(toIC(db, nodesBelow), traverser.getIC(n), 1e-9);
+			}
+		}
+	}
+
+	@Test
+	public void icFallbackTest() {
+		SciGraphTraverser traverser = new SciGraphTraverser(equivDB, "ic");
+		checkAllIC(equivDB, traverser, "ic", Collections.<String>emptyList());
+		List<Node> nodes = getNodes(equivDB);
+
+		// Changing the edges drops the IC in memory, so the stored IC is used
+		// until it's computed again.
+		traverser.relationships("SUBCLASS_OF", Direction.INCOMING);
+		for (Node n : nodes)
+		{
+			assertEquals((double) n.getProperty("ic_ic"), traverser.getIC(n), 1e-9);
+		}
+
+		// Without a stored IC, the stored descendant count is used.
+		Transaction tx = equivDB.beginTx();
+		for (Node n : nodes)
+		{
+			n.removeProperty("ic_ic");
+		}
+		tx.success();
+		tx.finish();
+		for (Node n : nodes)
+		{
+			assertEquals(toIC(equivDB, (int) n.getProperty("ic_descendants")), traverser.getIC(n), 1e-9);
+		}
+
+		// Without either, every node looks the same.
+		tx = equivDB.beginTx();
+		for (Node n : nodes)
+		{
+			n.removeProperty("ic_descendants");
+		}
+		tx.success();
+		tx.finish();
+		for (Node n : nodes)
+		{
+			assertEquals(1.0, traverser.getIC(n), 1e-9);
+		}
+
+		// Computing again only counts the edges now traversed.
+		checkAllIC(equivDB, traverser, "ic", Collections.singleton("SUBCLASS_OF"));
+	}
+
+	// Finds the nodes one step away along a downward traversal, the way
+	// getParents() and getChildren() used to.
+	private Set<Node> walkOneStep(TraversalDescription down, Node n, boolean up) {
+		TraversalDescription td = up ? down.reverse() : down;
+		td = td
+				.evaluator(Evaluators.fromDepth(1))
+				.evaluator(Evaluators.toDepth(1))
+				;
+		Set<Node> nodes = new HashSet<>();
+		for (Node found : td.traverse(n).nodes())
+		{
+			nodes.add(found);
+		}
+		return nodes;
+	}
+
+	private void checkNeighbors(GraphDatabaseService db, SciGraphTraverser traverser, TraversalDescription down) {
+		for (Node n : getNodes(db))
+		{
+			assertEquals(walkOneStep(down, n, true), new HashSet<>(traverser.getParents(n)));
+			assertEquals(walkOneStep(down, n, false), new HashSet<>(traverser.getChildren(n)));
+		}
+	}
+
+	private TraversalDescription getDownwardTraversal() {
+		return Traversal
+				.traversal()
+				.breadthFirst()
+				.uniqueness(new GlobalNodeUniqueness())
+				;
+	}
+
+	@Test
+	public void defaultNeighborsTest() {
+		// With no edge types given, every edge points up.
+		for (GraphDatabaseService db : Arrays.asList(treeDB, cycleDB, equivDB))
+		{
+			TraversalDescription down = getDownwardTraversal();
+			for (RelationshipType edgeType : GlobalGraphOperations.at(db).getAllRelationshipTypes())
+			{
+				down = down.relationships(edgeType, Direction.INCOMING);
+			}
+			checkNeighbors(db, new SciGraphTraverser(db, "neighbors"), down);
+		}
+	}
+
+	@Test
+	public void directedNeighborsTest() {
+		RelationshipType subclassType = DynamicRelationshipType.withName("SUBCLASS_OF");
+		RelationshipType otherType = DynamicRelationshipType.withName("OTHER");
+		RelationshipType equivType = DynamicRelationshipType.withName("EQUIVALENT_TO");
+		for (Direction dir : Direction.values())
+		{
+			SciGraphTraverser traverser = new SciGraphTraverser(cycleDB, "neighbors");
+			traverser.relationships("SUBCLASS_OF", dir);
+			checkNeighbors(cycleDB, traverser, getDownwardTraversal().relationships(subclassType, dir));
+
+			// Mix in other types going other ways.
+			traverser = new SciGraphTraverser(equivDB, "neighbors");
+			traverser.relationships("SUBCLASS_OF", dir);
+			traverser.relationships("OTHER", dir.reverse());
+			traverser.relationships("EQUIVALENT_TO");
+			TraversalDescription down = getDownwardTraversal()
+					.relationships(subclassType, dir)
+					.relationships(otherType, dir.reverse())
+					.relationships(equivType, Direction.BOTH)
+					;
+			checkNeighbors(equivDB, traverser, down);
+		}
+	}
+
+	@Test
+	public void cleanupTest() {
+		List<Node> nodes = getNodes(cycleDB);
+		BatchedPropertyWriter writer = new BatchedPropertyWriter(cycleDB);
+		for (Node n : nodes)
+		{
+			writer.setProperty(n.getId(), "first_pushed", true);
+			writer.setProperty(n.getId(), "first_ic", 1.0);
+			writer.setProperty(n.getId(), "second_descendants", 1);
+			writer.setProperty(n.getId(), "other_ic", 1.0);
+			writer.setProperty(n.getId(), "cleanupTest", 1);
+		}
+		writer.flush();
+
+		// Only the named traversers' properties go.
+		assertEquals(2 * nodes.size(), SciGraphTraverser.cleanup(cycleDB, Arrays.asList("first", "third"), 3));
+		for (Node n : nodes)
+		{
+			assertFalse(n.hasProperty("first_pushed"));
+			assertFalse(n.hasProperty("first_ic"));
+			assertTrue(n.hasProperty("second_descendants"));
+		}
+
+		// Properties which merely end like a traverser's are left alone.
+		assertEquals(nodes.size(), SciGraphTraverser.cleanup(cycleDB, Collections.singleton("second"), 3));
+		for (Node n : nodes)
+		{
+			assertFalse(n.hasProperty("second_descendants"));
+			assertTrue(n.hasProperty("other_ic"));
+			assertTrue(n.hasProperty("cleanupTest"));
+		}
+		assertEquals(0, SciGraphTraverser.cleanup(cycleDB, Collections.<String>emptyList(), 3));
+
+		// A traverser cleans up after itself, and forgets its IC.
+		SciGraphTraverser traverser = new SciGraphTraverser(cycleDB, "other");
+		traverser.computeAllIC();
+		traverser.cleanup();
+		for (Node n : nodes)
+		{
+			assertFalse(n.hasProperty("other_ic"));
+			assertFalse(n.hasProperty("other_descendants"));
+			assertFalse(n.hasProperty("other_pushed"));
+			assertEquals(1.0, traverser.getIC(n), 1e-9);
+		}
+	}
+
+}
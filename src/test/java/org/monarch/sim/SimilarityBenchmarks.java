@@ -0,0 +1,131 @@
+package org.monarch.sim;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+import com.carrotsearch.junitbenchmarks.BenchmarkRule;
+
+public class SimilarityBenchmarks {
+
+	@Rule
+	public TestRule benchmarkRun = new BenchmarkRule();
+
+	private static final Logger log = Logger.getLogger(SimilarityBenchmarks.class.getName());
+
+	private static final int PROFILES = 20000;
+	private static final int QUERIES = 50;
+	private static final int K = 10;
+
+	static GraphDatabaseService testDB;
+	static ProfileCorpus corpus;
+	static List<List<Node>> queries = new ArrayList<>();
+	// Both the exact and the pruned scoring run on the same pool.
+	static ForkJoinPool pool;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		TestGraphFactory factory = new TestGraphFactory();
+		testDB = factory.buildTreeDB(4000);
+		NaiveTraverser traverser = new NaiveTraverser(testDB, true);
+		traverser.pushAllNodes(new ArrayList<String>());
+
+		List<Node> nodes = new ArrayList<>();
+		for (Node n : GlobalGraphOperations.at(testDB).getAllNodes())
+		{
+			if (n.getId() != 0)
+			{
+				nodes.add(n);
+			}
+		}
+
+		Random random = new Random(0);
+		corpus = new ProfileCorpus(traverser.getSimilarityEngine());
+		for (int i = 0; i < PROFILES; i++)
+		{
+			corpus.add("profile " + i, getRandomProfile(nodes, random));
+		}
+		for (int i = 0; i < QUERIES; i++)
+		{
+			queries.add(getRandomProfile(nodes, random));
+		}
+		pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		pool.shutdown();
+		testDB.shutdown();
+	}
+
+	private static List<Node> getRandomProfile(List<Node> nodes, Random random) {
+		List<Node> profile = new ArrayList<>();
+		for (int i = 0; i < 5; i++)
+		{
+			profile.add(nodes.get(random.nextInt(nodes.size())));
+		}
+		return profile;
+	}
+
+	// Scores every query exhaustively and through the index, and logs the recall.
+	private void compare(int bands, int rows, int limit) {
+		MinHashIndex index = new MinHashIndex(corpus, bands, rows, 0);
+		CorpusScorer scorer = new CorpusScorer(corpus, pool);
+		long exactNanos = 0;
+		long prunedNanos = 0;
+		int found = 0;
+		for (List<Node> query : queries)
+		{
+			CorpusScorer.Result exact = scorer.score(query, CorpusScorer.Score.SIM_GIC, K);
+			exactNanos += exact.getElapsedNanos();
+
+			long start = System.nanoTime();
+			int [] candidates = index.getCandidates(query, limit);
+			CorpusScorer.Result pruned = scorer.score(query, CorpusScorer.Score.SIM_GIC, K, candidates);
+			prunedNanos += System.nanoTime() - start;
+
+			Set<String> expected = new HashSet<>(exact.getNames());
+			for (String name : pruned.getNames())
+			{
+				if (expected.contains(name))
+				{
+					found++;
+				}
+			}
+		}
+
+		log.info(bands + " bands of " + rows + " rows, " + limit + " candidates on "
+				+ pool.getParallelism() + " threads: recall "
+				+ (double) found / (QUERIES * K) + ", exact " + exactNanos / 1000000 + " ms, pruned "
+				+ prunedNanos / 1000000 + " ms");
+	}
+
+	@Test
+	public void fewWideBandsTest() {
+		compare(8, 4, 500);
+	}
+
+	@Test
+	public void manyNarrowBandsTest() {
+		compare(32, 2, 500);
+	}
+
+	@Test
+	public void moreCandidatesTest() {
+		compare(32, 2, 2000);
+	}
+
+}
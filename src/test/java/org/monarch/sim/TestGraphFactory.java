@@ -6,6 +6,7 @@ import java.util.ArrayList;
 
 import net.lingala.zip4j.core.ZipFile;
 
+import org.neo4j.graphdb.DynamicRelationshipType;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
@@ -204,5 +205,55 @@ public class TestGraphFactory extends GraphFactory {
 		
 		return db;
 	}
+	
+	public GraphDatabaseService buildPartDB() {
+		// Build a graph where part_of and has_part point opposite ways.
+		GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+		Node vehicle = addNode(db, "vehicle");
+		Node car = addNode(db, "car");
+		Node wheel = addNode(db, "wheel");
+		Node engine = addNode(db, "engine");
+		
+		RelationshipType partOf = DynamicRelationshipType.withName("part_of");
+		RelationshipType hasPart = DynamicRelationshipType.withName("has_part");
+		addEdge(db, car, vehicle);
+		addEdge(db, wheel, car, partOf);
+		addEdge(db, car, engine, hasPart);
+		
+		return db;
+	}
+	
+	public GraphDatabaseService buildLinkDB() {
+		// Build a graph where ignoring link edges leaves an ancestor with
+		// more IC above one with less.
+		GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+		Node root = addNode(db, "root");
+		Node linked = addNode(db, "linked");
+		Node middle = addNode(db, "middle");
+		Node parent = addNode(db, "parent");
+		Node left = addNode(db, "left");
+		Node right = addNode(db, "right");
+		
+		RelationshipType link = DynamicRelationshipType.withName("link");
+		addEdge(db, linked, root);
+		addEdge(db, middle, root);
+		addEdge(db, middle, linked, link);
+		addEdge(db, parent, middle);
+		addEdge(db, left, parent);
+		addEdge(db, right, parent);
+		
+		// The same again, but with only tree edges once links are followed.
+		Node treeLinked = addNode(db, "tree linked");
+		Node treeMiddle = addNode(db, "tree middle");
+		Node treeParent = addNode(db, "tree parent");
+		Node treeLeft = addNode(db, "tree left");
+		Node treeRight = addNode(db, "tree right");
+		addEdge(db, treeMiddle, treeLinked, link);
+		addEdge(db, treeParent, treeMiddle);
+		addEdge(db, treeLeft, treeParent);
+		addEdge(db, treeRight, treeParent);
+		
+		return db;
+	}
 
 }